@@ -0,0 +1,180 @@
+/*****************************************************************************
+ * STLMappedBinaryReader.java
+ * Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1.
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information.
+ *
+ ****************************************************************************/
+
+package org.j3d.loaders.stl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class to read STL (stereolithography) files in binary format from a local
+ * file by mapping it into memory.<p>
+ * Unlike {@link STLFileReader}, which hands back one facet at a time, this
+ * reader decodes the whole file straight into flat <code>float</code> arrays
+ * suitable for geometry built by reference: three vertices of three
+ * coordinates per facet, and the facet normal repeated for each vertex.
+ * Facets with a zero normal get one calculated from their vertices.<p>
+ * The file is mapped a window at a time, so files larger than the address
+ * space can be read too, as far as the arrays allow.
+ * @see STLFileReader
+ * @see STLBinaryParser
+ */
+public class STLMappedBinaryReader
+{
+    /**
+     * size of binary header
+     */
+    private static final int HEADER_SIZE = 84;
+
+    /**
+     * size of one facet record in binary format
+     */
+    private static final int RECORD_SIZE = 50;
+
+    /**
+     * size of comments in header
+     */
+    private static final int COMMENT_SIZE = 80;
+
+    /**
+     * number of facet records mapped at a time
+     */
+    private static final int WINDOW_FACETS = 1 << 20;
+
+    private final RandomAccessFile itsFile;
+    private final FileChannel      itsChannel;
+    private final int              itsNumOfFacets;
+
+    /**
+     * Creates a <code>STLMappedBinaryReader</code> object for a binary STL
+     * file.
+     * @param file <code>File</code> object of STL file to read.
+     * @throws IOException if the file can't be opened, or its size does not
+     *      match the number of facets in its header, which will be the case
+     *      for an ASCII file.
+     */
+    public STLMappedBinaryReader( final File file ) throws IOException
+    {
+        itsFile = new RandomAccessFile( file, "r" );
+        itsChannel = itsFile.getChannel( );
+        try
+        {
+            final long length = itsChannel.size( );
+            if( length < HEADER_SIZE )
+            {
+                throw new IOException( "File size does not match." );
+            }
+            final ByteBuffer count = ByteBuffer.allocate( 4 );
+            count.order( ByteOrder.LITTLE_ENDIAN );
+            while( count.hasRemaining( ) )
+            {
+                if( itsChannel.read( count, COMMENT_SIZE + count.position( ) ) < 0 )
+                {
+                    throw new IOException( "File size does not match." );
+                }
+            }
+            final long facets = count.getInt( 0 ) & 0xffffffffL;
+            // the arrays hold nine floats a facet
+            if( facets > Integer.MAX_VALUE / 9 ||
+                length != facets * RECORD_SIZE + HEADER_SIZE )
+            {
+                throw new IOException( "File size does not match." );
+            }
+            itsNumOfFacets = ( int ) facets;
+        }
+        catch( IOException e )
+        {
+            close( );
+            throw e;
+        }
+    }
+
+    /**
+     * Get number of facets in the file.
+     */
+    public int getNumOfFacets( )
+    {
+        return itsNumOfFacets;
+    }
+
+    /**
+     * Decodes every facet of the file.
+     * @param coordinates array of at least 9 * number of facets floats to
+     *      store the vertices in, as x, y, z of each vertex in turn.
+     * @param normals array of at least 9 * number of facets floats to store
+     *      the normal of each vertex in, as x, y, z.
+     */
+    public void read( final float[ ] coordinates, final float[ ] normals )
+    throws IOException
+    {
+        int c = 0;
+        for( int first = 0; first < itsNumOfFacets; first += WINDOW_FACETS )
+        {
+            final int facets = Math.min( WINDOW_FACETS, itsNumOfFacets - first );
+            final MappedByteBuffer buffer = itsChannel.map
+            (
+                FileChannel.MapMode.READ_ONLY,
+                HEADER_SIZE + ( long ) first * RECORD_SIZE,
+                ( long ) facets * RECORD_SIZE
+            );
+            buffer.order( ByteOrder.LITTLE_ENDIAN );
+            for( int i = 0, r = 0; i < facets; i ++, r += RECORD_SIZE )
+            {
+                float nx = buffer.getFloat( r );
+                float ny = buffer.getFloat( r + 4 );
+                float nz = buffer.getFloat( r + 8 );
+                for( int k = 0; k < 9; k ++ )
+                {
+                    coordinates[ c + k ] = buffer.getFloat( r + 12 + 4 * k );
+                }
+                if( nx == 0 && ny == 0 && nz == 0 )
+                {
+                    // Calculate normal
+                    final float ax = coordinates[ c + 3 ] - coordinates[ c ];
+                    final float ay = coordinates[ c + 4 ] - coordinates[ c + 1 ];
+                    final float az = coordinates[ c + 5 ] - coordinates[ c + 2 ];
+                    final float bx = coordinates[ c + 6 ] - coordinates[ c ];
+                    final float by = coordinates[ c + 7 ] - coordinates[ c + 1 ];
+                    final float bz = coordinates[ c + 8 ] - coordinates[ c + 2 ];
+                    nx = ay * bz - az * by;
+                    ny = az * bx - ax * bz;
+                    nz = ax * by - ay * bx;
+                    final float length =
+                        ( float ) Math.sqrt( nx * nx + ny * ny + nz * nz );
+                    if( length > 0 )
+                    {
+                        nx /= length;
+                        ny /= length;
+                        nz /= length;
+                    }
+                }
+                for( int k = 0; k < 9; k += 3 )
+                {
+                    normals[ c + k ] = nx;
+                    normals[ c + k + 1 ] = ny;
+                    normals[ c + k + 2 ] = nz;
+                }
+                c += 9;
+            }
+        }
+    }
+
+    /**
+     * Releases used resources. Must be called after finishing reading.
+     */
+    public void close( ) throws IOException
+    {
+        itsFile.close( );
+    }
+}
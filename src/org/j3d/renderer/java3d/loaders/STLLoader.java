@@ -22,11 +22,13 @@ import java.net.MalformedURLException;
 import java.net.URL;
 
 import javax.media.j3d.BranchGroup;
+import javax.media.j3d.GeometryArray;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.TriangleArray;
 import javax.vecmath.Vector3d;
 
 import org.j3d.loaders.stl.STLFileReader;
+import org.j3d.loaders.stl.STLMappedBinaryReader;
 
 import com.sun.j3d.loaders.IncorrectFormatException;
 import com.sun.j3d.loaders.LoaderBase;
@@ -71,6 +73,9 @@ public class STLLoader extends LoaderBase
     /**
      * Loads a STL file from a file. The data may be in ASCII or binary
      * format.<p>
+     * A binary file is mapped into memory and decoded straight into geometry
+     * built by reference (see {@link #createScene( STLMappedBinaryReader )});
+     * no progress is shown for it.<p>
      * The <code>getNamedObjects</code> method of the <code>Scene</code> object
      * will return <code>Shape3D</code> objects with no <code>Appearance</code>
      * set.
@@ -81,6 +86,23 @@ public class STLLoader extends LoaderBase
     public Scene load( String fileName ) throws FileNotFoundException,
     IncorrectFormatException, ParsingErrorException
     {
+        final File file = new File( fileName );
+        if( file.isFile( ) )
+        {
+            STLMappedBinaryReader reader = null;
+            try
+            {
+                reader = new STLMappedBinaryReader( file );
+            }
+            catch( IOException e )
+            {
+                // not binary; the ASCII parser may know it
+            }
+            if( reader != null )
+            {
+                return createScene( reader );
+            }
+        }
         try
         {
             return load( new File(fileName).toURI().toURL() );
@@ -238,4 +260,61 @@ public class STLLoader extends LoaderBase
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a <code>Scene</code> object with the contents of a binary STL
+     * file. The facets are decoded straight from the mapped file into the
+     * arrays of a <code>TriangleArray</code> built by reference, so the
+     * geometry is held once, as floats, and never copied vertex by vertex.
+     * Closes the reader after finishing reading.
+     * @param reader <code>STLMappedBinaryReader</code> object for reading the
+     *      STL file.
+     */
+    public static Scene createScene( final STLMappedBinaryReader reader )
+    throws IncorrectFormatException, ParsingErrorException
+    {
+        try
+        {
+            final int numOfFacets = reader.getNumOfFacets( );
+            final float[ ] coordinates = new float[ 9 * numOfFacets ];
+            final float[ ] normals = new float[ 9 * numOfFacets ];
+            reader.read( coordinates, normals );
+
+            final TriangleArray geometry = new TriangleArray
+            (
+                3 * numOfFacets,
+                TriangleArray.NORMALS | TriangleArray.COORDINATES |
+                TriangleArray.BY_REFERENCE
+            );
+            // readers of the geometry need to know where to find its data
+            geometry.setCapability( GeometryArray.ALLOW_FORMAT_READ );
+            geometry.setCapability( GeometryArray.ALLOW_REF_DATA_READ );
+            geometry.setCoordRefFloat( coordinates );
+            geometry.setNormalRefFloat( normals );
+
+            final SceneBase scene = new SceneBase( );
+            final BranchGroup bg = new BranchGroup( );
+            final Shape3D shape = new Shape3D( geometry );
+            bg.addChild( shape );
+            // binary file contains only one object, with no name
+            scene.addNamedObject( "Unknown_0", shape );
+            scene.setSceneGroup( bg );
+            return scene;
+        }
+        catch( IOException e )
+        {
+            throw new ParsingErrorException( e.toString( ) );
+        }
+        finally
+        {
+            try
+            {
+                reader.close( );
+            }
+            catch( IOException e )
+            {
+                e.printStackTrace( );
+            }
+        }
+    }
+}
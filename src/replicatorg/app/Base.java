@@ -33,6 +33,7 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Font;
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.MediaTracker;
 import java.awt.Toolkit;
@@ -639,6 +640,10 @@ public class Base {
 	static public void showMessage(String title, String message) {
 		if (title == null)
 			title = "Message";
+		if (GraphicsEnvironment.isHeadless()) {
+			logger.info(title + ": " + message);
+			return;
+		}
 		JOptionPane.showMessageDialog(new Frame(), message, title,
 				JOptionPane.INFORMATION_MESSAGE);
 	}
@@ -649,8 +654,12 @@ public class Base {
 	static public void showWarning(String title, String message, Exception e) {
 		if (title == null)
 			title = "Warning";
-		JOptionPane.showMessageDialog(new Frame(), message, title,
-				JOptionPane.WARNING_MESSAGE);
+		if (GraphicsEnvironment.isHeadless()) {
+			logger.warning(title + ": " + message);
+		} else {
+			JOptionPane.showMessageDialog(new Frame(), message, title,
+					JOptionPane.WARNING_MESSAGE);
+		}
 
 		if (e != null)
 			e.printStackTrace();
@@ -0,0 +1,387 @@
+/*
+ BuildRunner.java
+
+ Builds, estimates, simulates or compiles a job from the command line.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.app;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.ChunkedEstimator;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.S3GCompiler;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileSource;
+import replicatorg.plugin.toolpath.SkeinforgeGenerator;
+import replicatorg.plugin.toolpath.ToolpathGenerator;
+
+/**
+ * Runs a job without the main window, for scripts and machines with no
+ * display:
+ *
+ * BuildRunner [options] build|estimate|simulate|compile "machine name" job.gcode|model.stl
+ *
+ * Progress goes to standard output as JSON, one object per line, each with
+ * an "event" field; the log goes to standard error as usual.  An STL model
+ * is sliced with skeinforge first.
+ *
+ * Builds and simulations go through an ordinary MachineController, warmup
+ * and cooldown included.  A simulation swaps in a null driver, which runs
+ * the job as fast as it can (or --speedup times real time) without a
+ * machine.  compile writes an S3G file the way "Build to file" does.
+ */
+public class BuildRunner {
+	private static final String USAGE =
+		"Usage: BuildRunner [options] build|estimate|simulate|compile <machine name> <job.gcode|model.stl>\n" +
+		"  --port <port>        serial port to build on (default: the one in machines.xml)\n" +
+		"  --output <file.s3g>  where to compile to (default: next to the job)\n" +
+		"  --speedup <n>        run a simulation n times faster than real time (default: 0, no waiting)\n" +
+		"  --profile <profile>  skeinforge profile for slicing, by name or path\n" +
+		"  --raft               have skeinforge lay down a raft";
+
+	private String mode;
+	private String machineName;
+	private File input;
+	private String port = null;
+	private File output = null;
+	private double speedup = 0;
+	private String profile = null;
+	private boolean raft = false;
+
+	/**
+	 * Write one JSON object to standard output.
+	 * @param fields pairs of names and values
+	 */
+	static synchronized void emit(String event, Object... fields) {
+		StringBuffer sb = new StringBuffer("{\"event\":");
+		quote(sb, event);
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			sb.append(',');
+			quote(sb, fields[i].toString());
+			sb.append(':');
+			Object value = fields[i + 1];
+			if (value == null) {
+				sb.append("null");
+			} else if (value instanceof Number) {
+				double d = ((Number)value).doubleValue();
+				if (Double.isNaN(d) || Double.isInfinite(d)) {
+					sb.append("null");
+				} else if (value instanceof Double || value instanceof Float) {
+					sb.append(String.format("%1$.3f", d));
+				} else {
+					sb.append(value);
+				}
+			} else if (value instanceof Boolean) {
+				sb.append(value);
+			} else {
+				quote(sb, value.toString());
+			}
+		}
+		sb.append('}');
+		System.out.println(sb);
+		System.out.flush();
+	}
+
+	private static void quote(StringBuffer sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%1$04x", (int)c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Run the job.
+	 * @return whether it succeeded
+	 */
+	boolean run() throws InterruptedException {
+		if (!MachineFactory.getMachineNames().contains(machineName)) {
+			emit("error", "message", "No machine named \"" + machineName + "\" in machines.xml");
+			return false;
+		}
+		if (!input.isFile()) {
+			emit("error", "message", "Can't read " + input);
+			return false;
+		}
+		File gcode = input;
+		if (input.getName().toLowerCase().endsWith(".stl")) {
+			gcode = slice(input);
+			if (gcode == null) return false;
+		}
+		GCodeSource source;
+		try {
+			source = new MappedFileSource(gcode);
+		} catch (IOException ioe) {
+			emit("error", "message", "Can't read " + gcode + ": " + ioe.getMessage());
+			return false;
+		}
+		if ("estimate".equals(mode)) {
+			return estimate(source);
+		}
+		return runOnMachine(source);
+	}
+
+	private File slice(File model) {
+		SkeinforgeGenerator generator = new SkeinforgeGenerator();
+		String p = (profile != null) ? profile :
+			Base.preferences.get("replicatorg.skeinforge.profilePref", null);
+		if (p == null || !generator.configure(p, raft)) {
+			emit("error", "message", (p == null) ? "No skeinforge profile given" :
+				"No skeinforge profile \"" + p + "\"");
+			return null;
+		}
+		generator.addListener(new ToolpathGenerator.GeneratorListener() {
+			public void updateGenerator(String message) {
+				emit("slice", "message", message);
+			}
+			public void generationComplete(Completion completion, Object details) {
+			}
+		});
+		emit("slice", "model", model.getPath(), "profile", p);
+		File gcode = generator.generateToolpath(model.getAbsolutePath());
+		if (gcode == null || !gcode.isFile()) {
+			emit("error", "message", "Slicing " + model + " failed");
+			return null;
+		}
+		return gcode;
+	}
+
+	private boolean estimate(GCodeSource source) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		ChunkedEstimator estimator = new ChunkedEstimator(MachineFactory.getMachineNode(machineName));
+		estimator.estimate(source);
+		Rectangle2D.Double bounds = estimator.getBounds();
+		double millis = estimator.getBuildTime();
+		emit("estimate",
+				"lines", source.getLineCount(),
+				"seconds", millis / 1000.0,
+				"time", EstimationDriver.getBuildTimeString(millis),
+				"layers", estimator.getLayerTimes().getLayerCount(),
+				"xmin", bounds.getMinX(), "ymin", bounds.getMinY(),
+				"xmax", bounds.getMaxX(), "ymax", bounds.getMaxY(),
+				"elapsed", (System.currentTimeMillis() - start) / 1000.0);
+		emit("done", "status", "ok");
+		return true;
+	}
+
+	/**
+	 * Follows the machine through the job, reporting as it goes.
+	 */
+	private static class Monitor implements MachineListener {
+		private boolean started = false;
+		private boolean finished = false;
+		private boolean succeeded = false;
+		private boolean quiet = false;
+
+		public synchronized void machineStateChanged(MachineStateChangeEvent evt) {
+			MachineState s = evt.getState();
+			emit("state", "state", s.getState().toString(), "paused", s.isPaused());
+			if (s.isBuilding()) {
+				started = true;
+			} else if (started && !finished) {
+				if (s.getState() == MachineState.State.STOPPING || !s.isConnected()) {
+					finished = true;
+				} else if (s.isReady()) {
+					finished = succeeded = true;
+				}
+			}
+			notifyAll();
+		}
+
+		public synchronized void machineProgress(MachineProgressEvent event) {
+			if (quiet) return;
+			double percent = (event.getTotalLines() > 0) ?
+				100.0 * event.getLines() / event.getTotalLines() : 0;
+			emit("progress",
+					"lines", event.getLines(), "total", event.getTotalLines(),
+					"percent", percent,
+					"elapsed", event.getElapsed() / 1000.0,
+					"estimated", event.getEstimated() / 1000.0);
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+			emit("temperature",
+					"tool", event.getTool().getIndex(),
+					"celsius", event.getTool().getCurrentTemperature());
+		}
+
+		synchronized MachineState.State waitForConnection(MachineController machine)
+				throws InterruptedException {
+			while (true) {
+				MachineState.State s = machine.getMachineState().getState();
+				if (s != MachineState.State.CONNECTING) return s;
+				wait();
+			}
+		}
+
+		synchronized boolean waitForFinish() throws InterruptedException {
+			while (!finished) wait();
+			return succeeded;
+		}
+
+		/**
+		 * Report the end of the job.  Progress trails behind on its own
+		 * thread; nothing more of it is reported once this has been.
+		 */
+		synchronized void done(Object... fields) {
+			quiet = true;
+			emit("done", fields);
+		}
+	}
+
+	private boolean runOnMachine(GCodeSource source) throws InterruptedException {
+		final MachineController machine = MachineFactory.load(machineName);
+		Monitor monitor = new Monitor();
+		try {
+			if ("simulate".equals(mode)) {
+				NullDriver driver = new NullDriver();
+				driver.setSpeedup(speedup);
+				driver.setMachine(machine.getDriver().getMachine());
+				machine.driver = driver;
+			} else if ("build".equals(mode)) {
+				if (!(machine.getDriver() instanceof UsesSerial)) {
+					emit("error", "message", machineName + " doesn't use a serial port");
+					return false;
+				}
+				UsesSerial us = (UsesSerial)machine.getDriver();
+				String p = (port != null) ? port : (us.isExplicit() ? us.getPortName() : null);
+				if (p == null) {
+					emit("error", "message", "No serial port given for " + machineName);
+					return false;
+				}
+				try {
+					us.setSerial(new Serial(p, us));
+				} catch (SerialException se) {
+					emit("error", "message", "Can't open " + p + ": " + se.getMessage());
+					return false;
+				}
+			}
+			machine.addMachineStateListener(monitor);
+
+			if ("compile".equals(mode)) {
+				if (!S3GCompiler.supports(machine.getDriver())) {
+					emit("error", "message", machineName + " can't be compiled for");
+					return false;
+				}
+				File out = output;
+				if (out == null) {
+					String path = source instanceof MappedFileSource ?
+						((MappedFileSource)source).getFile().getPath() : input.getPath();
+					int dot = path.lastIndexOf('.');
+					out = new File(((dot > 0) ? path.substring(0, dot) : path) + ".s3g");
+				}
+				machine.setCodeSource(source);
+				machine.buildToFile(out.getPath());
+				boolean ok = monitor.waitForFinish();
+				monitor.done("status", ok ? "ok" : "failed", "output", out.getPath(),
+						"bytes", out.length());
+				return ok;
+			}
+
+			machine.connect();
+			if (monitor.waitForConnection(machine) != MachineState.State.READY) {
+				emit("error", "message", "Couldn't connect to " + machineName);
+				return false;
+			}
+			// stop the machine if we're killed mid-build.
+			Thread hook = new Thread() {
+				public void run() {
+					machine.stop();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(hook);
+			machine.setCodeSource(source);
+			machine.execute();
+			boolean ok = monitor.waitForFinish();
+			Runtime.getRuntime().removeShutdownHook(hook);
+			monitor.done("status", ok ? "ok" : "failed");
+			return ok;
+		} finally {
+			machine.removeMachineStateListener(monitor);
+			machine.dispose();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		BuildRunner runner = new BuildRunner();
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("--"); i++) {
+				String arg = args[i];
+				if ("--raft".equals(arg)) {
+					runner.raft = true;
+					continue;
+				}
+				if (i + 1 == args.length) usage();
+				String value = args[++i];
+				if ("--port".equals(arg)) {
+					runner.port = value;
+				} else if ("--output".equals(arg)) {
+					runner.output = new File(value);
+				} else if ("--speedup".equals(arg)) {
+					runner.speedup = Double.parseDouble(value);
+				} else if ("--profile".equals(arg)) {
+					runner.profile = value;
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			usage();
+		}
+		if (args.length - i != 3) usage();
+		runner.mode = args[i];
+		runner.machineName = args[i + 1];
+		runner.input = new File(args[i + 2]);
+		if (!"build".equals(runner.mode) && !"estimate".equals(runner.mode) &&
+				!"simulate".equals(runner.mode) && !"compile".equals(runner.mode)) {
+			usage();
+		}
+		System.exit(runner.run() ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
@@ -0,0 +1,94 @@
+package replicatorg.app;
+
+/**
+ * A fixed-size ring of bytes passed from exactly one writing thread to
+ * exactly one reading thread, without locks.  Each side only ever moves
+ * its own index; the other side's index is read through a volatile, which
+ * is all the Java memory model needs to make the bytes between them
+ * visible.
+ *
+ * Neither side blocks: write() and read() move as many bytes as they can
+ * and report how many that was.
+ */
+public class ByteRing {
+	private final byte[] buffer;
+	private final int mask;
+
+	// total bytes ever read and written; the indices are these mod the size
+	private volatile long head = 0;
+	private volatile long tail = 0;
+
+	/**
+	 * @param capacity the size of the ring; rounded up to a power of two.
+	 */
+	public ByteRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		buffer = new byte[size];
+		mask = size - 1;
+	}
+
+	public int capacity() { return buffer.length; }
+
+	/** Bytes waiting to be read. */
+	public int available() {
+		return (int)(tail - head);
+	}
+
+	/**
+	 * Writer side: copy in as much of the given bytes as there is room for.
+	 * @return the number of bytes written
+	 */
+	public int write(byte[] src, int off, int len) {
+		long t = tail;
+		int n = Math.min(len, buffer.length - (int)(t - head));
+		int start = (int)(t & mask);
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(src, off, buffer, start, first);
+		System.arraycopy(src, off + first, buffer, 0, n - first);
+		tail = t + n;
+		return n;
+	}
+
+	/**
+	 * Reader side: copy out as many waiting bytes as will fit.
+	 * @return the number of bytes read
+	 */
+	public int read(byte[] dst, int off, int len) {
+		long h = head;
+		int n = Math.min(len, (int)(tail - h));
+		int start = (int)(h & mask);
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(buffer, start, dst, off, first);
+		System.arraycopy(buffer, 0, dst, off + first, n - first);
+		head = h + n;
+		return n;
+	}
+
+	/**
+	 * Reader side: the next byte without consuming it, or -1 if there is
+	 * none.
+	 */
+	public int peek() {
+		long h = head;
+		if (h == tail) return -1;
+		return buffer[(int)(h & mask)] & 0xff;
+	}
+
+	/**
+	 * Reader side: drop up to n waiting bytes.
+	 * @return the number dropped
+	 */
+	public int skip(int n) {
+		long h = head;
+		n = Math.min(n, (int)(tail - h));
+		head = h + n;
+		return n;
+	}
+
+	/**
+	 * Reader side: drop everything waiting.
+	 */
+	public void clear() {
+		head = tail;
+	}
+}
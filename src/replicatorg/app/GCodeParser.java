@@ -25,8 +25,8 @@ package replicatorg.app;
 
 import java.lang.reflect.Method;
 
+import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.Hashtable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +39,7 @@ import replicatorg.app.exceptions.JobException;
 import replicatorg.app.exceptions.JobRewindException;
 import replicatorg.drivers.Driver;
 import replicatorg.machine.model.Axis;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 
 public class GCodeParser {
@@ -48,19 +49,32 @@ public class GCodeParser {
 	// our driver we use.
 	protected Driver driver;
 
-	// our code data storage guys.
-	protected Hashtable<String, Double> codeValues;
+	// our code data storage guys.  Both are indexed by letter ('A' == 0), so
+	// that looking up a code is an array access instead of a hash lookup.
+	protected double[] codeValues = new double[26];
 
-	protected Hashtable<String, Boolean> seenCodes;
+	// bitmask of the letters seen on the current line; bit 0 is 'A'.
+	protected int seenCodes = 0;
 
-	static protected String[] codes = { "D", "F", "G", "H", "I", "J", "K", "L",
-			"M", "P", "Q", "R", "S", "T", "X", "Y", "Z" };
+	// bitmask of the letters that have had a value assigned on this line.
+	private int valuedCodes = 0;
 
-	// our curve section variables.
-	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
-	public static double curveSectionInches = curveSectionMM / 25.4;
+	// true if the G code on this line was carried over from a previous line.
+	private boolean lastGCodeApplied = false;
+
+	// powers of ten that are exactly representable as doubles.
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1.0;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10.0;
+		}
+	}
 
-	protected double curveSection = 0.0;
+	// our curve section variables: the longest segment an arc is cut into,
+	// and the furthest a segment may stray from the true arc.
+	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
+	public static double arcToleranceMM = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
 
 	// our plane selection variables
 	protected static int XY_PLANE = 0;
@@ -81,6 +95,14 @@ public class GCodeParser {
 
 	protected Point3d delta;
 
+	// scratch points reused by every move; the driver copies what it keeps.
+	private final Point3d moveTarget = new Point3d();
+	private final Point3d moveStart = new Point3d();
+	private final Point3d arcPoint = new Point3d();
+
+	// merges straight moves on their way to the driver; null when off
+	private MoveCoalescer coalescer = null;
+
 	// false = incremental; true = absolute
 	boolean absoluteMode = false;
 
@@ -138,7 +160,6 @@ public class GCodeParser {
 	public GCodeParser() {
 		// we default to millimeters
 		units = UNITS_MM;
-		curveSection = curveSectionMM;
 
 		// precompile regexes for speed
 		parenPattern = Pattern.compile("\\((.*)\\)");
@@ -152,10 +173,6 @@ public class GCodeParser {
 		delta = new Point3d();
 		drillTarget = new Point3d();
 
-		// init our value tables.
-		codeValues = new Hashtable<String, Double>(codes.length, 1);
-		seenCodes = new Hashtable<String, Boolean>(codes.length, 1);
-
 		// init our offset
 		currentOffset = new Point3d();
 	}
@@ -182,6 +199,62 @@ public class GCodeParser {
 		currentOffset = driver.getOffset(0);
 	}
 
+	/**
+	 * Turn merging of nearly collinear moves on or off.  Turning it on
+	 * starts a fresh count of the moves merged.  A move still held back is
+	 * dropped, as when a stopped build is followed by a new one; call
+	 * flush() first to keep it.
+	 */
+	public void setCoalescing(boolean on) {
+		coalescer = on ? new MoveCoalescer(driver) : null;
+	}
+
+	/**
+	 * @return the coalescer merging moves, or null if moves aren't merged.
+	 */
+	public MoveCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Send on any move held back for merging.  This must be done at the end
+	 * of a job, and before waiting for the machine to catch up.
+	 */
+	public void flush() {
+		if (coalescer != null) coalescer.flush();
+	}
+
+	/**
+	 * Anything but a straight move has to wait for the moves before it to
+	 * go out; a line with no codes at all doesn't reach the driver.
+	 */
+	private void flushUnlessMove() {
+		if (coalescer == null) return;
+		if (hasCode('M') || hasCode('T') ||
+				(hasCode('G') && getCodeValue('G') != 0 && getCodeValue('G') != 1)) {
+			coalescer.flush();
+		}
+	}
+
+	/**
+	 * Where the machine will be once the moves sent so far are made.
+	 */
+	private void getCurrentPosition(Point3d p) {
+		if (coalescer != null) {
+			coalescer.getCurrentPosition(p);
+		} else {
+			driver.getCurrentPosition(p);
+		}
+	}
+
+	private void queuePoint(Point3d p) {
+		if (coalescer != null) {
+			coalescer.queuePoint(p);
+		} else {
+			driver.queuePoint(p);
+		}
+	}
+
 	/**
 	 * Parses a line of GCode, sets up the variables, etc.
 	 * 
@@ -195,31 +268,64 @@ public class GCodeParser {
 		// save our command
 		command = cmd;
 
-		// handle comments.
-		parseComments();
-		stripComments();
+		// handle comments.  Most lines have none, so skip the regexes unless
+		// there is something for them to find.
+		if (command.indexOf('(') >= 0 || command.indexOf(';') >= 0) {
+			parseComments();
+			stripComments();
+		}
 
 		// load all codes
-		for (int i = 0; i < codes.length; i++) {
-			double value = parseCode(codes[i]);
-			codeValues.put(new String(codes[i]), new Double(value));
-		}
+		scanCodes();
 
-		// if no command was seen, but parameters were,
-		// then use the last G code as the current command
-		if (!hasCode("G") && (hasCode("X") || hasCode("Y") || hasCode("Z"))) {
-			seenCodes.put(new String("G"), new Boolean(true));
-			codeValues.put(new String("G"), new Double(lastGCode));
-		}
+		applyLastGCode();
+		flushUnlessMove();
+		return true;
+	}
+
+	/**
+	 * Loads a line that has already been parsed, most likely from a
+	 * CachedGCodeSource.  The parser ends up in the same state as if the
+	 * original text had been handed to parse().
+	 */
+	public boolean parse(ParsedCommand parsed) {
+		cleanup();
+
+		command = parsed.getCommand();
+		comment = parsed.getComment();
+		seenCodes = valuedCodes = parsed.getCodes();
+		parsed.unpack(codeValues);
 
+		applyLastGCode();
+		flushUnlessMove();
 		return true;
 	}
 
-	private boolean findCode(String code) {
-		if (command.indexOf(code) >= 0)
-			return true;
-		else
-			return false;
+	/**
+	 * Capture the current line in its parsed form.  The modal G code is left
+	 * out, since it depends on the lines that were run before this one.
+	 */
+	public ParsedCommand getParsedCommand() {
+		int codes = seenCodes;
+		if (lastGCodeApplied)
+			codes &= ~(1 << ('G' - 'A'));
+		double[] values = new double[Integer.bitCount(codes)];
+		int idx = 0;
+		for (int i = 0; i < codeValues.length; i++) {
+			if ((codes & (1 << i)) != 0)
+				values[idx++] = codeValues[i];
+		}
+		return new ParsedCommand(codes, values, command, comment);
+	}
+
+	private void applyLastGCode() {
+		// if no command was seen, but parameters were,
+		// then use the last G code as the current command
+		if (!hasCode('G') && (hasCode('X') || hasCode('Y') || hasCode('Z'))) {
+			seenCodes |= 1 << ('G' - 'A');
+			codeValues['G' - 'A'] = lastGCode;
+			lastGCodeApplied = true;
+		}
 	}
 
 	public double convertToMM(double value, int units) {
@@ -230,12 +336,13 @@ public class GCodeParser {
 	}
 
 	public double getCodeValue(String c) {
-		Double d = (Double) codeValues.get(c);
+		return getCodeValue(c.charAt(0));
+	}
 
-		if (d != null)
-			return d.doubleValue();
-		else
+	public double getCodeValue(char c) {
+		if (c < 'A' || c > 'Z')
 			return 0.0;
+		return codeValues[c - 'A'];
 	}
 
 	/**
@@ -245,42 +352,86 @@ public class GCodeParser {
 	 *            code the code to check for (G, M, X, etc.)
 	 * @return boolean if the code was found or not
 	 */
-	private boolean hasCode(String code) {
-		Boolean b = (Boolean) seenCodes.get(code);
+	public boolean hasCode(String code) {
+		return hasCode(code.charAt(0));
+	}
 
-		if (b != null)
-			return b.booleanValue();
-		else
+	public boolean hasCode(char code) {
+		if (code < 'A' || code > 'Z')
 			return false;
+		return (seenCodes & (1 << (code - 'A'))) != 0;
 	}
 
 	/**
-	 * Finds out the value of the code we're looking for
-	 * 
-	 * @param char
-	 *            code the code whose value we're looking up
-	 * @return double the value of the code, -1 if not found.
+	 * Scan the command once, left to right, recording every code letter we
+	 * see along with the first number that directly follows that letter.  A
+	 * letter without a number is still noted as seen, with a value of 0.
 	 */
-	private double parseCode(String code) {
-		Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-		Matcher myMatcher = myPattern.matcher(command);
-
-		if (findCode(code)) {
-			seenCodes.put(code, new Boolean(true));
+	private void scanCodes() {
+		final String cmd = command;
+		final int length = cmd.length();
+		int i = 0;
+		while (i < length) {
+			char c = cmd.charAt(i++);
+			if (c < 'A' || c > 'Z')
+				continue;
+			int bit = 1 << (c - 'A');
+			seenCodes |= bit;
+
+			// find the extent of the number, if any.
+			int start = i;
+			while (i < length && isNumberChar(cmd.charAt(i)))
+				i++;
+			if (i > start && (valuedCodes & bit) == 0) {
+				valuedCodes |= bit;
+				codeValues[c - 'A'] = parseNumber(cmd, start, i);
+			}
+		}
+	}
 
-			if (myMatcher.find()) {
-				String match = myMatcher.group(1);
-				double number = Double.parseDouble(match);
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+	}
 
-				return number;
+	/**
+	 * Parse the decimal number in cmd[start,end) without creating any
+	 * garbage.  Anything unusual (stray signs, very long numbers) is handed
+	 * off to Double.parseDouble so that we behave exactly as before.
+	 */
+	private static double parseNumber(String cmd, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = cmd.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			c = cmd.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (fraction >= 0)
+					fraction++;
+				digits++;
+			} else if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else {
+				digits = -1;
+				break;
 			}
-			// send a 0 to that its noted somewhere.
-			else
-				return 0.0;
 		}
-
-		// bail with something relatively harmless
-		return 0.0;
+		// mantissa and divisor must both be exact for the quotient to be
+		// correctly rounded.
+		if (digits <= 0 || digits > 15 || fraction >= POW10.length) {
+			return Double.parseDouble(cmd.substring(start, end));
+		}
+		double value = (double) mantissa;
+		if (fraction > 0)
+			value = value / POW10[fraction];
+		return negative ? -value : value;
 	}
 
 	private void parseComments() {
@@ -636,7 +787,8 @@ public class GCodeParser {
 
 	private void executeGCodes() throws GCodeException {
 		// start us off at our current position...
-		Point3d temp = driver.getCurrentPosition();
+		Point3d temp = moveTarget;
+		getCurrentPosition(temp);
 
 		// initialize our points, etc.
 		double iVal = convertToMM(getCodeValue("I"), units); // / X offset
@@ -711,20 +863,16 @@ public class GCodeParser {
 				// call our arc drawing function.
 				if (hasCode("I") || hasCode("J")) {
 					// our centerpoint
-					Point3d center = new Point3d();
-					Point3d current = driver.getCurrentPosition();
-					center.x = current.x + iVal;
-					center.y = current.y + jVal;
+					driver.getCurrentPosition(arcPoint);
 
 					// draw the arc itself.
 					if (gCode == 2)
-						drawArc(center, temp, true);
+						drawArc(arcPoint.x + iVal, arcPoint.y + jVal, temp, true);
 					else
-						drawArc(center, temp, false);
+						drawArc(arcPoint.x + iVal, arcPoint.y + jVal, temp, false);
 				}
 				// or we want a radius based one
 				else if (hasCode("R")) {
-					Base.logger.warning("G02/G03 arcs with (R)adius parameter are not supported yet.");
 					if (gCode == 2)
 						drawRadius(temp, rVal, true);
 					else
@@ -755,14 +903,12 @@ public class GCodeParser {
 			case 20:
 			case 70:
 				units = UNITS_INCHES;
-				curveSection = curveSectionInches;
 				break;
 
 			// mm for Units
 			case 21:
 			case 71:
 				units = UNITS_MM;
-				curveSection = curveSectionMM;
 				break;
 
 			// This should be "return to home".  We need to introduce new GCodes for homing.
@@ -1036,85 +1182,107 @@ public class GCodeParser {
 		}
 	}
 
-	private void drawArc(Point3d center, Point3d endpoint, boolean clockwise) {
-		// System.out.println("Arc from " + current.toString() + " to " +
-		// endpoint.toString() + " with center " + center);
-
-		// angle variables.
-		double angleA;
-		double angleB;
-		double angle;
-		double radius;
-		double length;
-
-		// delta variables.
-		double aX;
-		double aY;
-		double bX;
-		double bY;
-
-		// figure out our deltas
-		Point3d current = driver.getCurrentPosition();
-		aX = current.x - center.x;
-		aY = current.y - center.y;
-		bX = endpoint.x - center.x;
-		bY = endpoint.y - center.y;
-
-		// Clockwise
-		if (clockwise) {
-			angleA = Math.atan2(bY, bX);
-			angleB = Math.atan2(aY, aX);
-		}
-		// Counterclockwise
-		else {
-			angleA = Math.atan2(aY, aX);
-			angleB = Math.atan2(bY, bX);
+	/**
+	 * Cut an arc in the XY plane into straight moves, starting from the
+	 * current position.  Z moves evenly along the arc, for helices.
+	 *
+	 * Each point is found by rotating the last one by a fixed angle rather
+	 * than with a cos() and sin() apiece.  The last move goes to the
+	 * endpoint itself, so rounding doesn't carry over into later moves.
+	 */
+	private void drawArc(double cx, double cy, Point3d endpoint, boolean clockwise) {
+		driver.getCurrentPosition(arcPoint);
+		double startZ = arcPoint.z;
+		double aX = arcPoint.x - cx;
+		double aY = arcPoint.y - cy;
+		double bX = endpoint.x - cx;
+		double bY = endpoint.y - cy;
+
+		// the angle to sweep; if the start and end are the same, it's a
+		// complete circle.
+		double angleA = Math.atan2(aY, aX);
+		double angleB = Math.atan2(bY, bX);
+		double angle = clockwise ? angleA - angleB : angleB - angleA;
+		if (angle <= 0)
+			angle += 2 * Math.PI;
+		double radius = Math.sqrt(aX * aX + aY * aY);
+
+		int steps = arcSegments(radius, angle);
+		double theta = (clockwise ? -angle : angle) / steps;
+		double cos = Math.cos(theta);
+		double sin = Math.sin(theta);
+		double x = aX;
+		double y = aY;
+		for (int s = 1; s < steps; s++) {
+			double nx = x * cos - y * sin;
+			y = x * sin + y * cos;
+			x = nx;
+			arcPoint.x = cx + x;
+			arcPoint.y = cy + y;
+			arcPoint.z = startZ + (endpoint.z - startZ) * s / steps;
+			setTarget(arcPoint);
 		}
+		setTarget(endpoint);
+	}
 
-		// Make sure angleB is always greater than angleA
-		// and if not add 2PI so that it is (this also takes
-		// care of the special case of angleA == angleB,
-		// ie we want a complete circle)
-		if (angleB <= angleA)
-			angleB += 2 * Math.PI;
-		angle = angleB - angleA;
-		// calculate a couple useful things.
-		radius = Math.sqrt(aX * aX + aY * aY);
-		length = radius * angle;
-
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
-
-		// this is the real draw action.
-		Point3d newPoint = new Point3d();
-		double arcStartZ = current.z;
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.x = center.x + radius
-					* Math.cos(angleA + angle * ((double) step / steps));
-			newPoint.y = center.y + radius
-					* Math.sin(angleA + angle * ((double) step / steps));
-			newPoint.z = arcStartZ + (endpoint.z - arcStartZ) * s / steps;
-
-			// start the move
-			setTarget(newPoint);
+	/**
+	 * The number of moves to cut an arc into: as few as keep every chord
+	 * within the arc tolerance of the arc and no longer than the curve
+	 * section.  The machine can't place a point closer than half a step,
+	 * so the tolerance is never taken to be finer than that, and a chord
+	 * isn't made shorter than two steps.
+	 * @param radius the radius of the arc, in mm
+	 * @param angle the angle it sweeps, in radians
+	 */
+	private int arcSegments(double radius, double angle) {
+		MachineModel machine = driver.getMachine();
+		double step = 0;
+		if (machine != null) {
+			step = Math.max(machine.xStepsToMM(1), machine.yStepsToMM(1));
 		}
+		double tolerance = Math.max(arcToleranceMM, step / 2);
+		if (radius <= tolerance)
+			return 1;
+		// a chord spanning t radians strays r(1 - cos(t/2)) from the arc
+		double maxAngle = 2 * Math.acos(1 - tolerance / radius);
+		if (curveSectionMM > 0 && curveSectionMM < 2 * radius)
+			maxAngle = Math.min(maxAngle, 2 * Math.asin(curveSectionMM / (2 * radius)));
+		int steps = (int) Math.ceil(angle / maxAngle);
+		if (step > 0)
+			steps = Math.min(steps, (int) (radius * angle / (2 * step)));
+		return Math.max(1, steps);
 	}
 
-	private void drawRadius(Point3d endpoint, double r, boolean clockwise) {
-		// not supported!
+	/**
+	 * Draw an arc given by its radius rather than its center.  Of the two
+	 * circles through both ends, a positive radius takes the one giving an
+	 * arc of less than half a turn, and a negative one the other.
+	 */
+	private void drawRadius(Point3d endpoint, double r, boolean clockwise)
+			throws GCodeException {
+		driver.getCurrentPosition(arcPoint);
+		double x = endpoint.x - arcPoint.x;
+		double y = endpoint.y - arcPoint.y;
+		double d2 = x * x + y * y;
+		if (d2 == 0)
+			throw new GCodeException("An arc given by its radius can't be a complete circle; use I and J.");
+		double h2 = 4 * r * r - d2;
+		if (h2 < 0) {
+			// allow for endpoints rounded to a few decimal places
+			if (Math.sqrt(d2) - 2 * Math.abs(r) > arcToleranceMM)
+				throw new GCodeException("Arc radius " + r + " is too small to reach the endpoint.");
+			h2 = 0;
+		}
+		// the distance from the middle of the chord to the center, over
+		// half the chord's length.
+		double h = -Math.sqrt(h2 / d2);
+		if (!clockwise)
+			h = -h;
+		if (r < 0)
+			h = -h;
+		double cx = arcPoint.x + (x - y * h) / 2;
+		double cy = arcPoint.y + (y + x * h) / 2;
+		drawArc(cx, cy, endpoint, clockwise);
 	}
 
 	private void setTarget(Point3d p) {
@@ -1124,12 +1292,13 @@ public class GCodeParser {
 		// If you really want two seperate moves, do it when you generate your
 		// toolpath.
 		// move z first
-		Point3d current = driver.getCurrentPosition();		
+		Point3d current = moveStart;
+		getCurrentPosition(current);
 		if (p.z != current.z) {
-			driver.queuePoint(new Point3d(current.x, current.y, p.z));
+			current.z = p.z;
+			queuePoint(current);
 		}
-		driver.queuePoint(new Point3d(p));
-		current = new Point3d(p);
+		queuePoint(p);
 	}
 
 	/**
@@ -1206,6 +1375,133 @@ public class GCodeParser {
 		return null;
 	}
 
+	/**
+	 * ModalState captures the parser state that carries over from one line
+	 * to the next (units, positioning mode, feedrate, the last G code, etc.),
+	 * so that a run of code can be resumed or started partway through a file.
+	 */
+	public static class ModalState {
+		boolean absoluteMode;
+		int units;
+		double feedrate;
+		int lastGCode;
+		int tool;
+		int plane;
+		final Point3d offset = new Point3d();
+		final Point3d drillTarget = new Point3d();
+		double drillRetract;
+		double drillFeedrate;
+		int drillDwell;
+		double drillPecksize;
+
+		public boolean isAbsolute() { return absoluteMode; }
+		public void setAbsolute(boolean absolute) { absoluteMode = absolute; }
+		public boolean isInches() { return units == UNITS_INCHES; }
+		public void setInches(boolean inches) { units = inches ? UNITS_INCHES : UNITS_MM; }
+		public double getFeedrate() { return feedrate; }
+		public void setFeedrate(double feedrate) { this.feedrate = feedrate; }
+		public int getLastGCode() { return lastGCode; }
+		public void setLastGCode(int gCode) { lastGCode = gCode; }
+		public int getTool() { return tool; }
+		public void setTool(int tool) { this.tool = tool; }
+		public int getPlane() { return plane; }
+		public void setPlane(int plane) { this.plane = plane; }
+		public Point3d getOffset() { return offset; }
+
+		/**
+		 * Record the parameters of a canned drilling cycle.
+		 */
+		public void setDrillCycle(Point3d target, double retract, double feedrate,
+				int dwell, double pecksize) {
+			drillTarget.set(target);
+			drillRetract = retract;
+			drillFeedrate = feedrate;
+			drillDwell = dwell;
+			drillPecksize = pecksize;
+		}
+		public Point3d getDrillTarget() { return drillTarget; }
+		public double getDrillRetract() { return drillRetract; }
+		public double getDrillFeedrate() { return drillFeedrate; }
+		public int getDrillDwell() { return drillDwell; }
+		public double getDrillPecksize() { return drillPecksize; }
+
+		public ModalState copy() {
+			ModalState m = new ModalState();
+			m.set(this);
+			return m;
+		}
+
+		public void set(ModalState m) {
+			absoluteMode = m.absoluteMode;
+			units = m.units;
+			feedrate = m.feedrate;
+			lastGCode = m.lastGCode;
+			tool = m.tool;
+			plane = m.plane;
+			offset.set(m.offset);
+			setDrillCycle(m.drillTarget, m.drillRetract, m.drillFeedrate,
+					m.drillDwell, m.drillPecksize);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ModalState)) return false;
+			ModalState m = (ModalState)o;
+			return absoluteMode == m.absoluteMode &&
+				units == m.units &&
+				feedrate == m.feedrate &&
+				lastGCode == m.lastGCode &&
+				tool == m.tool &&
+				plane == m.plane &&
+				offset.equals(m.offset) &&
+				drillTarget.equals(m.drillTarget) &&
+				drillRetract == m.drillRetract &&
+				drillFeedrate == m.drillFeedrate &&
+				drillDwell == m.drillDwell &&
+				drillPecksize == m.drillPecksize;
+		}
+
+		public int hashCode() {
+			return (int)Double.doubleToLongBits(feedrate) ^ lastGCode ^ (units << 8);
+		}
+	}
+
+	/**
+	 * Capture the modal state as it stands after the current line.
+	 */
+	public ModalState getModalState() {
+		ModalState m = new ModalState();
+		m.absoluteMode = absoluteMode;
+		m.units = units;
+		m.feedrate = feedrate;
+		m.lastGCode = hasCode('G') ? (int) getCodeValue('G') : lastGCode;
+		m.tool = tool;
+		m.plane = currentPlane;
+		m.offset.set(currentOffset);
+		m.setDrillCycle(drillTarget, drillRetract, drillFeedrate, drillDwell,
+				drillPecksize);
+		return m;
+	}
+
+	/**
+	 * Restore a previously captured modal state.  Any line that was being
+	 * parsed is discarded.
+	 */
+	public void setModalState(ModalState m) {
+		cleanup();
+		absoluteMode = m.absoluteMode;
+		units = m.units;
+		feedrate = m.feedrate;
+		lastGCode = m.lastGCode;
+		tool = m.tool;
+		currentPlane = m.plane;
+		currentOffset = new Point3d(m.offset);
+		drillTarget = new Point3d(m.drillTarget);
+		drillRetract = m.drillRetract;
+		drillFeedrate = m.drillFeedrate;
+		drillDwell = m.drillDwell;
+		drillPecksize = m.drillPecksize;
+	}
+
 	/**
 	 * probe the Z depth of the point
 	 */
@@ -1226,15 +1522,17 @@ public class GCodeParser {
 	 */
 	public void cleanup() {
 		// move us to our target.
-		delta = new Point3d();
+		delta.set(0, 0, 0);
 
 		// save our gcode
 		if (hasCode("G"))
 			lastGCode = (int) getCodeValue("G");
 
 		// clear our gcodes.
-		codeValues.clear();
-		seenCodes.clear();
+		Arrays.fill(codeValues, 0.0);
+		seenCodes = 0;
+		valuedCodes = 0;
+		lastGCodeApplied = false;
 
 		// empty comments
 		comment = "";
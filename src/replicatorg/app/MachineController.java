@@ -19,10 +19,29 @@
 
 package replicatorg.app;
 
+import java.awt.GraphicsEnvironment;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 
@@ -37,20 +56,28 @@ import replicatorg.app.exceptions.JobException;
 import replicatorg.app.exceptions.JobRewindException;
 import replicatorg.app.tools.XML;
 import replicatorg.app.ui.MainWindow;
+import replicatorg.drivers.ChunkedEstimator;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverFactory;
 import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.IncrementalEstimator;
 import replicatorg.drivers.OnboardParameters;
+import replicatorg.drivers.S3GCompiler;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
+import replicatorg.drivers.motion.LayerTimes;
 import replicatorg.machine.MachineListener;
 import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.ProgressPublisher;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
+import replicatorg.model.CloseableIterator;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.ParsedGCodeSource;
 import replicatorg.model.StringListSource;
 
 /**
@@ -65,31 +92,139 @@ import replicatorg.model.StringListSource;
  */
 public class MachineController {
 
-	private MachineState state = new MachineState();
-	public MachineState getMachineState() { return state.clone(); }
+	// The current state.  States never change, so anyone may read this
+	// without locking; changes are made by swapping in a new state.
+	private final AtomicReference<MachineState> state =
+		new AtomicReference<MachineState>(new MachineState());
+
+	public MachineState getMachineState() { return state.get(); }
+
+	// Changes not yet told to listeners, as {previous, next}, in the order
+	// they were made.  Changes are made with this locked, so that they
+	// queue up in order; one thread at a time delivers them, without it.
+	private final LinkedList<MachineState[]> pendingChanges = new LinkedList<MachineState[]>();
+	private boolean delivering = false;
 	
-	private void setState(MachineState state) {
-		MachineState oldState = this.state;
-		this.state = state;
-		if (!oldState.equals(state)) {
-			emitStateChange(oldState,state);
-			// wake up machine thread
-			synchronized(machineThread) {
-				machineThread.notify();
+	private void setState(MachineState next) {
+		MachineState prev;
+		synchronized (pendingChanges) {
+			prev = state.getAndSet(next);
+			if (prev.equals(next)) return;
+			pendingChanges.add(new MachineState[] { prev, next });
+		}
+		changed();
+	}
+
+	private void setState(MachineState.State next) {
+		MachineState current;
+		do {
+			current = state.get();
+		} while (!changeState(current, current.withState(next)));
+	}
+
+	/**
+	 * Move from one state to the next, if the state is still the one
+	 * expected.
+	 * @return false if the state changed in the meantime.
+	 */
+	private boolean changeState(MachineState expected, MachineState next) {
+		synchronized (pendingChanges) {
+			if (!state.compareAndSet(expected, next)) return false;
+			if (expected.equals(next)) return true;
+			pendingChanges.add(new MachineState[] { expected, next });
+		}
+		changed();
+		return true;
+	}
+
+	/**
+	 * Wake the machine thread for a change, and tell the listeners about
+	 * every change not yet delivered, oldest first.  If another thread is
+	 * already delivering, it delivers this change too, after the ones
+	 * before it.
+	 */
+	private void changed() {
+		wakeMachineThread();
+		synchronized (pendingChanges) {
+			if (delivering) return;
+			delivering = true;
+		}
+		boolean drained = false;
+		try {
+			while (!drained) {
+				MachineState[] change;
+				synchronized (pendingChanges) {
+					change = pendingChanges.poll();
+					if (change == null) {
+						delivering = false;
+						drained = true;
+					}
+				}
+				if (change != null) emitStateChange(change[0], change[1]);
+			}
+		} finally {
+			if (!drained) {
+				// a listener threw; let the next change carry on.
+				synchronized (pendingChanges) {
+					delivering = false;
+				}
 			}
 		}
 	}
 
-	private void setState(MachineState.State state) {
-		MachineState newState = getMachineState();
-		newState.setState(state);
-		setState(newState);
+	// The machine thread waits on this when it has nothing to do, or while
+	// the build is paused.  wakeups counts calls to wakeMachineThread(), so
+	// that a wakeup between looking at the state and waiting isn't lost.
+	private final Lock wakeLock = new ReentrantLock();
+	private final Condition wakeCondition = wakeLock.newCondition();
+	private volatile int wakeups = 0;
+
+	void wakeMachineThread() {
+		wakeLock.lock();
+		try {
+			wakeups++;
+			wakeCondition.signalAll();
+		} finally {
+			wakeLock.unlock();
+		}
 	}
 
 	// Build statistics
 	private int linesProcessed = -1;
 	private int linesTotal = -1;
 	private double startTimeMillis = -1;
+
+	/** Counts the bytes read through it. */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public long getCount() { return count; }
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		// counting can't be wound back.
+		public boolean markSupported() { return false; }
+	}
 	
 	/**
 	 * The MachineThread is responsible for communicating with the machine.
@@ -98,17 +233,38 @@ public class MachineController {
 	 * 
 	 */
 	class MachineThread extends Thread {
-		private long lastPolled = 0;
-		private boolean pollingEnabled = false;
-		private long pollIntervalMs = 1000;
+		/**
+		 * Watch the temperature during a build, if the user asked for it.
+		 */
+		private void startStatusPolling() {
+			if (!state.get().isSimulating() &&
+					Base.preferences.getBoolean("build.monitor_temp",false)) {
+				poller.request(this, StatusPoller.Sensor.TEMPERATURE, 1000);
+			}
+		}
 
-		synchronized void startStatusPolling(long interval) {
-			pollingEnabled = true;
-			pollIntervalMs = interval;
+		private void stopStatusPolling() {
+			poller.cancel(this);
 		}
 
-		synchronized void stopStatusPolling() {
-			pollingEnabled = false;
+		/**
+		 * Wait to be woken up, or for the given time.
+		 * @param ticket the value of wakeups when the caller last looked at
+		 * the state; we don't wait if there's been a wakeup since.
+		 * @param millis as from StatusPoller.poll(); -1 waits until woken.
+		 */
+		private void idle(int ticket, long millis) throws InterruptedException {
+			wakeLock.lock();
+			try {
+				if (wakeups != ticket) return;
+				if (millis < 0) {
+					wakeCondition.await();
+				} else if (millis > 0) {
+					wakeCondition.await(millis, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				wakeLock.unlock();
+			}
 		}
 		
 		/**
@@ -144,124 +300,179 @@ public class MachineController {
 		}
 		
 		private boolean buildCodesInternal(GCodeSource source) throws BuildFailureException, InterruptedException {
-			if (!state.isBuilding()) {
+			if (!state.get().isBuilding()) {
 				// Do not continue build if the machine is not building or paused
 				return false;
 			}
 
-			Iterator<String> i = source.iterator();
-			while (i.hasNext()) {
-				String line = i.next();
-				linesProcessed++;
-				if (Thread.interrupted()) {
-					Base.logger.info("build thread interrupted");
-					return false;
-				}
+			// Sources that carry pre-parsed lines let us skip the text scan.
+			// Otherwise the lines are parsed ahead on another thread while
+			// this one waits on the machine.
+			Iterator<String> i = null;
+			Iterator<ParsedCommand> pi = null;
+			ParseAhead ahead = null;
+			int parseAhead = Base.preferences.getInt("build.parse_ahead", 4096);
+			if (source instanceof ParsedGCodeSource) {
+				pi = ((ParsedGCodeSource)source).parsedIterator();
+			} else if (parseAhead > 0) {
+				pi = ahead = new ParseAhead(source, parseAhead);
+			} else {
+				i = source.iterator();
+			}
+			try {
+				while (pi != null ? pi.hasNext() : i.hasNext()) {
+					linesProcessed++;
+					if (Thread.interrupted()) {
+						Base.logger.info("build thread interrupted");
+						return false;
+					}
 				
-				// use our parser to handle the stuff.
-				if (simulator.isSimulating())
-					simulator.parse(line);
-				if (!state.isSimulating()) { driver.parse(line); }
+					// use our parser to handle the stuff.
+					if (pi != null) {
+						ParsedCommand command = pi.next();
+						if (simulator.isSimulating())
+							simulator.parse(command);
+						if (!state.get().isSimulating()) { driver.parse(command); }
+					} else {
+						String line = i.next();
+						if (simulator.isSimulating())
+							simulator.parse(line);
+						if (!state.get().isSimulating()) { driver.parse(line); }
+					}
 				
-				try {
-					GCodeParser.StopInfo info = driver.getParser().getStops();
-					if (info != null &&
-							Base.preferences.getBoolean("machine.optionalstops",true) &&
-							state.isBuilding() &&
-							state.isInteractiveTarget()) {
-						JobException e = info.getException(); 
-						if (info.isOptional()) {
-							int result = JOptionPane.showConfirmDialog(null, info.getMessage(),
-									"Continue Build?", JOptionPane.YES_NO_OPTION);
-							if (result != JOptionPane.YES_OPTION) {
-								e = info.getCancelException();
+					try {
+						GCodeParser.StopInfo info = driver.getParser().getStops();
+						if (info != null &&
+								Base.preferences.getBoolean("machine.optionalstops",true) &&
+								!GraphicsEnvironment.isHeadless() &&
+								state.get().isBuilding() &&
+								state.get().isInteractiveTarget()) {
+							JobException e = info.getException(); 
+							if (info.isOptional()) {
+								int result = JOptionPane.showConfirmDialog(null, info.getMessage(),
+										"Continue Build?", JOptionPane.YES_NO_OPTION);
+								if (result != JOptionPane.YES_OPTION) {
+									e = info.getCancelException();
+								}
+							} else {
+								JOptionPane.showMessageDialog(null, info.getMessage(), 
+										"Build stop", JOptionPane.INFORMATION_MESSAGE);
+							}
+							if (e != null) {
+								throw e;
 							}
-						} else {
-							JOptionPane.showMessageDialog(null, info.getMessage(), 
-									"Build stop", JOptionPane.INFORMATION_MESSAGE);
 						}
-						if (e != null) {
-							throw e;
+					} catch (JobEndException e) {
+						return false;
+					} catch (JobCancelledException e) {
+						return false;
+					} catch (JobRewindException e) {
+						if (ahead != null) {
+							ahead.close();
+							pi = ahead = new ParseAhead(source, parseAhead);
+						} else if (pi != null) {
+							close(pi);
+							pi = ((ParsedGCodeSource)source).parsedIterator();
+						} else {
+							close(i);
+							i = source.iterator();
 						}
+						continue;
+					} catch (JobException e) {
+						Base.logger.severe("Unknown job exception emitted");
 					}
-				} catch (JobEndException e) {
-					return false;
-				} catch (JobCancelledException e) {
-					return false;
-				} catch (JobRewindException e) {
-					i = source.iterator();
-					continue;
-				} catch (JobException e) {
-					Base.logger.severe("Unknown job exception emitted");
-				}
 				
-				// simulate the command.
-				if (simulator.isSimulating())
-					simulator.execute();
+					// simulate the command.
+					if (simulator.isSimulating())
+						simulator.execute();
 				
-				try {
-					if (!state.isSimulating()) {
-						// The inDriver bracketing is to avoid
-						// interrupting this thread outside of the
-						// call to the driver code.
-						synchronized(driver) {
-							inDriver = true;
-						}
-						driver.execute();
-						synchronized(driver) {
-							inDriver = false;
+					try {
+						if (!state.get().isSimulating()) {
+							// The inDriver bracketing is to avoid
+							// interrupting this thread outside of the
+							// call to the driver code.
+							synchronized(driver) {
+								inDriver = true;
+							}
+							driver.execute();
+							synchronized(driver) {
+								inDriver = false;
+							}
 						}
+					} catch (GCodeException e) {
+						// TODO: prompt the user to continue.
+						Base.logger.severe("Error: " + e.getMessage());
+					} catch (InterruptedException ie) {
+						// We're in the middle of a stop or shutdown
+						inDriver = false;
 					}
-				} catch (GCodeException e) {
-					// TODO: prompt the user to continue.
-					Base.logger.severe("Error: " + e.getMessage());
-				} catch (InterruptedException ie) {
-					// We're in the middle of a stop or shutdown
-					inDriver = false;
-				}
-				
-				// did we get any errors?
-				if (!state.isSimulating()) {
-					driver.checkErrors();
-				}
 				
-				// are we paused?
-				if (state.isPaused()) {
-					if (!state.isSimulating()) driver.pause();
-					while (state.isPaused()) {
-						synchronized(this) { wait(); }
+					// did we get any errors?
+					if (!state.get().isSimulating()) {
+						driver.checkErrors();
 					}
-					if (!state.isSimulating()) driver.unpause();
-				}
 				
-				// bail if we got interrupted.
-				if (state.getState() == MachineState.State.STOPPING) {
-					driver.stop();
-					return false;
-				}
-				// send out updates
-				if (pollingEnabled) {
-					long curMillis = System.currentTimeMillis();
-					if (lastPolled + pollIntervalMs <= curMillis) {
-						lastPolled = curMillis;
-						pollStatus();
+					if (!afterCommand()) {
+						return false;
 					}
 				}
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							linesProcessed,
-							linesTotal);
-				emitProgress(progress);
+			} finally {
+				// let go of the source if the build stopped short of the end
+				close(pi);
+				close(i);
+			}
+			// we may have been interrupted waiting on the next line.
+			if (Thread.interrupted()) {
+				Base.logger.info("build thread interrupted");
+				return false;
 			}
 			
-			// wait for driver to finish up.
-			if (!state.isSimulating()) while (!driver.isFinished()) {
+			// send any move held back for merging, then wait for driver to
+			// finish up.
+			if (!state.get().isSimulating()) driver.getParser().flush();
+			if (!state.get().isSimulating()) while (!driver.isFinished()) {
 				Thread.sleep(100);
 			}
 			return true;
 		}
 
+		private void close(Iterator<?> i) {
+			if (i instanceof CloseableIterator) ((CloseableIterator<?>)i).close();
+		}
+
+		/**
+		 * Wait out a pause, then take any readings due and send out progress.
+		 * @return false if the build is being stopped.
+		 */
+		private boolean afterCommand() throws InterruptedException {
+			// are we paused?
+			if (state.get().isPaused()) {
+				if (!state.get().isSimulating()) {
+					driver.getParser().flush();
+					driver.pause();
+				}
+				while (true) {
+					int ticket = wakeups;
+					if (!state.get().isPaused()) break;
+					idle(ticket, state.get().isSimulating() ? -1 : poller.poll(true));
+				}
+				if (!state.get().isSimulating()) driver.unpause();
+			}
+			
+			// bail if we got interrupted.
+			if (state.get().getState() == MachineState.State.STOPPING) {
+				driver.stop();
+				return false;
+			}
+			// slip in any readings that are due.
+			if (!state.get().isSimulating()) poller.poll(driver.isQueryCheap());
+			progress.update((double)System.currentTimeMillis()-startTimeMillis,
+					estimatedBuildTime,
+					linesProcessed,
+					linesTotal);
+			return true;
+		}
+
 		/**
 		 * Reset machine to its basic state.
 		 * 
@@ -272,17 +483,8 @@ public class MachineController {
 			driver.reset();
 		}
 
-		public boolean isReady() { return state.isReady(); }
+		public boolean isReady() { return state.get().isReady(); }
 
-		public void pollStatus() {
-			if (state.isBuilding()) {
-				if (Base.preferences.getBoolean("build.monitor_temp",false)) {
-					driver.readTemperature();
-					emitToolStatus(driver.getMachine().currentTool());
-				}
-			}
-		}
-		
 		public void forceReset() {
 			setState(new MachineState(MachineState.State.NOT_ATTACHED));
 			interruptDriver();
@@ -306,31 +508,160 @@ public class MachineController {
 			linesTotal = warmupCommands.size() + 
 				cooldownCommands.size() +
 				source.getLineCount();
-			startStatusPolling(1000);
+			startStatusPolling();
 			try {
-				if (!state.isSimulating()) {
+				if (!state.get().isSimulating()) {
 					driver.getCurrentPosition(); // reconcile position
 				}
+				driver.getParser().setCoalescing(!state.get().isSimulating() && MoveCoalescer.isEnabled());
 				runWarmupCommands();
 				Base.logger.info("Running build.");
 				buildCodesInternal(source);
 				runCooldownCommands();
-				if (!state.isSimulating()) {
+				MoveCoalescer coalescer = driver.getParser().getCoalescer();
+				if (coalescer != null) {
+					Base.logger.info("Merged " + coalescer.getMovesIn() + " moves into " +
+							coalescer.getMovesOut() + "; " + coalescer.getMovesSaved() + " packets saved.");
+				}
+				if (!state.get().isSimulating()) {
 					driver.invalidatePosition();
 				}
 				setState(new MachineState(MachineState.State.READY));
 			} catch (BuildFailureException e) {
+				showBuildFailure(e);
+				setState(MachineState.State.STOPPING);
+			} catch (IllegalStateException e) {
+				// the source was closed under us; see MappedFileSource.
+				showBuildFailure(new BuildFailureException(e.getMessage()));
+				setState(MachineState.State.STOPPING);
+			} catch (InterruptedException e) {
+				Base.logger.warning("MachineController interrupted");
+			} finally {
+				driver.getParser().setCoalescing(false);
+				stopStatusPolling();
+			}
+		}
+
+		private void showBuildFailure(BuildFailureException e) {
+			if (GraphicsEnvironment.isHeadless()) {
+				Base.logger.severe("Build failure: " + e.getMessage());
+			} else {
 				JOptionPane.showMessageDialog(null, e.getMessage(),
 						"Build Failure", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+
+		/**
+		 * Compile the job, with the warmup and cooldown commands, straight
+		 * to a build file.
+		 */
+		private void compileInternal(GCodeSource source, String path) {
+			startTimeMillis = System.currentTimeMillis();
+			S3GCompiler compiler = new S3GCompiler(machineNode);
+			OutputStream out = null;
+			try {
+				out = new BufferedOutputStream(new FileOutputStream(path));
+				synchronized(driver) {
+					inDriver = true;
+				}
+				compiler.compile(out,
+						new StringListSource(warmupCommands),
+						source,
+						new StringListSource(cooldownCommands));
+				out.close();
+				out = null;
+				Base.logger.info("Wrote " + compiler.getByteCount() + " bytes to " + path);
+				setState(new MachineState(MachineState.State.READY));
+			} catch (IOException e) {
+				Base.logger.severe("Couldn't write the build file: " + e.getMessage());
+				setState(MachineState.State.STOPPING);
+			} catch (IllegalStateException e) {
+				// the source was closed under us; see MappedFileSource.
+				Base.logger.severe("Couldn't compile the build file: " + e.getMessage());
+				setState(MachineState.State.STOPPING);
+			} catch (InterruptedException e) {
+				Base.logger.info("Build to file stopped.");
+				setState(MachineState.State.STOPPING);
+			} finally {
+				synchronized(driver) {
+					inDriver = false;
+				}
+				if (out != null) {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}
 
+		/**
+		 * Send the machine the commands in a build file.
+		 */
+		private void replayInternal(String path) {
+			if (!(driver instanceof SDCardCapture)) {
+				setState(MachineState.State.STOPPING);
+				return;
+			}
+			SDCardCapture sdcc = (SDCardCapture)driver;
+			startTimeMillis = System.currentTimeMillis();
+			FileInputStream file = null;
+			startStatusPolling();
+			try {
+				file = new FileInputStream(path);
+				// progress is counted in bytes of the file rather than lines
+				linesProcessed = 0;
+				linesTotal = (int)Math.min(Integer.MAX_VALUE, file.getChannel().size());
+				// the file runs ahead of what's been replayed by up to a
+				// buffer's worth, so count what's been taken from the buffer.
+				CountingInputStream in = new CountingInputStream(new BufferedInputStream(file));
+				driver.getCurrentPosition(); // reconcile position
+				Base.logger.info("Replaying " + path);
+				while (true) {
+					if (Thread.interrupted()) {
+						Base.logger.info("build thread interrupted");
+						setState(MachineState.State.STOPPING);
+						return;
+					}
+					synchronized(driver) {
+						inDriver = true;
+					}
+					boolean more = sdcc.replayFileCommand(in);
+					synchronized(driver) {
+						inDriver = false;
+					}
+					if (!more) break;
+					driver.checkErrors();
+					linesProcessed = (int)Math.min(Integer.MAX_VALUE, in.getCount());
+					if (!afterCommand()) {
+						return;
+					}
+				}
+				while (!driver.isFinished()) {
+					Thread.sleep(100);
+				}
+				driver.invalidatePosition();
+				setState(new MachineState(MachineState.State.READY));
+			} catch (IOException e) {
+				Base.logger.severe("Couldn't replay " + path + ": " + e.getMessage());
+				setState(MachineState.State.STOPPING);
+			} catch (BuildFailureException e) {
+				showBuildFailure(e);
+				setState(MachineState.State.STOPPING);
 			} catch (InterruptedException e) {
 				Base.logger.warning("MachineController interrupted");
 			} finally {
+				synchronized(driver) {
+					inDriver = false;
+				}
 				stopStatusPolling();
+				if (file != null) {
+					try { file.close(); } catch (IOException e) {}
+				}
 			}
 		}
 
 		String remoteName = null;
+
+		// a build file to send the machine instead of the current source
+		String replayPath = null;
 		
 		private void buildRemoteInternal(String remoteName) {
 			if (remoteName == null || !(driver instanceof SDCardCapture)) return;
@@ -343,16 +674,18 @@ public class MachineController {
 			while (!driver.isFinished()) {
 				try {
 					// are we paused?
-					if (state.isPaused()) {
+					if (state.get().isPaused()) {
 						driver.pause();
-						while (state.isPaused()) {
-							synchronized(this) { wait(); }
+						while (true) {
+							int ticket = wakeups;
+							if (!state.get().isPaused()) break;
+							idle(ticket, -1);
 						}
 						driver.unpause();
 					}
 					
 					// bail if we got interrupted.
-					if (state.getState() == MachineState.State.STOPPING) {
+					if (state.get().getState() == MachineState.State.STOPPING) {
 						driver.stop();
 						return;
 					}
@@ -390,45 +723,57 @@ public class MachineController {
 			this.remoteName = remoteName;
 			setState(MachineState.State.PLAYBACK);
 		}
+
+		public void replay(String path) {
+			currentSource = null;
+			replayPath = path;
+			setState(new MachineState(MachineState.State.BUILDING,MachineState.Target.MACHINE));
+		}
 		
 		public void pauseBuild() {
-			if (state.isBuilding() && !state.isPaused()) {
-				MachineState newState = getMachineState();
-				newState.setPaused(true);
-				setState(newState);
-			}
+			MachineState current;
+			do {
+				current = state.get();
+				if (!current.isBuilding() || current.isPaused()) return;
+			} while (!changeState(current, current.withPaused(true)));
 		}
 		
 		public void resumeBuild() {
-			if (state.isBuilding() && state.isPaused()) {
-				MachineState newState = getMachineState();
-				newState.setPaused(false);
-				setState(newState);
-			}
+			MachineState current;
+			do {
+				current = state.get();
+				if (!current.isBuilding() || !current.isPaused()) return;
+			} while (!changeState(current, current.withPaused(false)));
 		}
 		
 		public void stopBuild() {
 			driver.getMachine().currentTool().setTargetTemperature(0);
 			driver.getMachine().currentTool().setPlatformTargetTemperature(0);
-			if (state.isBuilding()) {
-				setState(MachineState.State.STOPPING);
-				interruptDriver();
-			}
+			MachineState current;
+			do {
+				current = state.get();
+				if (!current.isBuilding()) return;
+			} while (!changeState(current, current.withState(MachineState.State.STOPPING)));
+			interruptDriver();
 		}
 		
 		public void shutdown() {
 			running = false;
 			stopBuild();
-			synchronized(this) { notify(); }
+			wakeMachineThread();
 		}
 
-		private boolean running = true;
+		private volatile boolean running = true;
 		
 		public void run() {
 			while (running) {
 				try {
-					if (state.getState() == MachineState.State.BUILDING) {
-						if (state.getTarget() == MachineState.Target.SD_UPLOAD) {
+					// act on one snapshot of the state, taken before we
+					// might have to wait for a change.
+					int ticket = wakeups;
+					MachineState current = state.get();
+					if (current.getState() == MachineState.State.BUILDING) {
+						if (current.getTarget() == MachineState.Target.SD_UPLOAD) {
 							if (driver instanceof SDCardCapture) {
 								SDCardCapture sdcc = (SDCardCapture)driver;
 								if (processSDResponse(sdcc.beginCapture(remoteName))) { 
@@ -438,8 +783,10 @@ public class MachineController {
 							} else {
 								setState(MachineState.State.STOPPING);
 							}
-						} else if (state.getTarget() == MachineState.Target.FILE) {
-							if (driver instanceof SDCardCapture) {
+						} else if (current.getTarget() == MachineState.Target.FILE) {
+							if (S3GCompiler.supports(driver)) {
+								compileInternal(currentSource, remoteName);
+							} else if (driver instanceof SDCardCapture) {
 								SDCardCapture sdcc = (SDCardCapture)driver;
 								try {
 									sdcc.beginFileCapture(remoteName); 
@@ -451,13 +798,17 @@ public class MachineController {
 							} else {
 								setState(MachineState.State.STOPPING);
 							}
+						} else if (replayPath != null) {
+							String path = replayPath;
+							replayPath = null;
+							replayInternal(path);
 						} else {
 							// Ordinary build
 							buildInternal(currentSource);
 						}
-					} else if (state.getState() == MachineState.State.PLAYBACK) {
+					} else if (current.getState() == MachineState.State.PLAYBACK) {
 						buildRemoteInternal(remoteName);
-					} else if (state.getState() == MachineState.State.CONNECTING) {
+					} else if (current.getState() == MachineState.State.CONNECTING) {
 						driver.initialize();
 						if (driver.isInitialized()) {
 							readName();
@@ -465,17 +816,19 @@ public class MachineController {
 						} else {
 							setState(MachineState.State.NOT_ATTACHED);
 						}
-					} else if (state.getState() == MachineState.State.STOPPING) {
+					} else if (current.getState() == MachineState.State.STOPPING) {
 						setState(MachineState.State.READY);						
 					} else {
-						synchronized(this) {
-							if (state.getState() == MachineState.State.READY ||
-									state.getState() == MachineState.State.NOT_ATTACHED ||
-									state.getState() == MachineState.State.PLAYBACK ||
-									state.isPaused()) {
-								wait();
-							} else {
-							}
+						// take readings while idle, too.
+						long wait = -1;
+						if (current.getState() == MachineState.State.READY) {
+							wait = poller.poll(true);
+						}
+						if (current.getState() == MachineState.State.READY ||
+								current.getState() == MachineState.State.NOT_ATTACHED ||
+								current.getState() == MachineState.State.PLAYBACK ||
+								current.isPaused()) {
+							idle(ticket, wait);
 						}
 					}
 				} catch (InterruptedException ie) {
@@ -496,6 +849,9 @@ public class MachineController {
 		}
 	}
 	MachineThread machineThread = new MachineThread();
+
+	// reads temperatures and positions for whoever asks
+	private final StatusPoller poller = new StatusPoller(this);
 	
 	// The GCode source of the current build source.
 	protected GCodeSource source;
@@ -520,6 +876,12 @@ public class MachineController {
 	// estimated build time in millis
 	protected double estimatedBuildTime = 0;
 
+	// estimated build time broken down by layer
+	protected LayerTimes estimatedLayerTimes = new LayerTimes();
+
+	// keeps checkpoints of the job in the editor between estimates
+	private IncrementalEstimator editorEstimator = null;
+
 	// our warmup/cooldown commands
 	protected Vector<String> warmupCommands;
 
@@ -542,8 +904,28 @@ public class MachineController {
 		machineThread.start();
 	}
 
+	/**
+	 * Point the machine at the gcode to run.  The source it replaces is
+	 * closed, if it holds anything open.
+	 */
 	public void setCodeSource(GCodeSource source) {
+		GCodeSource old = this.source;
 		this.source = source;
+		if (old != source) close(old);
+	}
+
+	private static void close(GCodeSource source) {
+		if (source instanceof Closeable) {
+			try {
+				((Closeable)source).close();
+			} catch (IOException ioe) {
+				Base.logger.fine("Could not close gcode source: " + ioe.getMessage());
+			}
+		}
+	}
+
+	public GCodeSource getCodeSource() {
+		return source;
 	}
 
 	// TODO: hide this behind an API
@@ -653,38 +1035,60 @@ public class MachineController {
 	public void estimate() {
 		if (source == null) { return; }
 		try {
-			EstimationDriver estimator = new EstimationDriver();
-			estimator.setMachine(loadModel());
-
-			// run each line through the estimator
-			for (String line : source) {
-				// parse only if line is NOT a Twitterbot M code
-				if ((line.indexOf(GCodeParser.TB_CODE + Integer.toString(GCodeParser.TB_INIT)) == -1) &&
-					(line.indexOf(GCodeParser.TB_CODE + Integer.toString(GCodeParser.TB_MESSAGE)) == -1) &&
-					(line.indexOf(GCodeParser.TB_CODE + Integer.toString(GCodeParser.TB_CLEANUP)) == -1)) {
-					// use our parser to handle the stuff.
-					estimator.parse(line);
-					estimator.execute();
+			Rectangle2D.Double bounds;
+			if (source instanceof JEditTextAreaSource) {
+				// the job is being edited; only re-estimate what changed.
+				if (editorEstimator == null) {
+					editorEstimator = new IncrementalEstimator(machineNode);
 				}
+				editorEstimator.setDocument(((JEditTextAreaSource)source).getDocument());
+				editorEstimator.estimate(source);
+				bounds = editorEstimator.getBounds();
+				estimatedBuildTime = editorEstimator.getBuildTime();
+				estimatedLayerTimes = editorEstimator.getLayerTimes();
+			} else {
+				ChunkedEstimator estimator = new ChunkedEstimator(machineNode);
+				estimator.estimate(source);
+				bounds = estimator.getBounds();
+				estimatedBuildTime = estimator.getBuildTime();
+				estimatedLayerTimes = estimator.getLayerTimes();
 			}
 
 			if (simulator != null) {
-				simulator.setSimulationBounds(estimator.getBounds());
+				simulator.setSimulationBounds(bounds);
 			}
 			// oh, how this needs to be cleaned up...
 			if (driver instanceof SimulationDriver) {
-				((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
+				((SimulationDriver)driver).setSimulationBounds(bounds);
 			}
-			estimatedBuildTime = estimator.getBuildTime();
 			Base.logger.info("Estimated build time is: "
 					+ EstimationDriver.getBuildTimeString(estimatedBuildTime));
+			if (Base.logger.isLoggable(Level.FINE)) {
+				for (int i = 0; i < estimatedLayerTimes.getLayerCount(); i++) {
+					Base.logger.fine("Layer at " + estimatedLayerTimes.getZ(i) + "mm: "
+							+ EstimationDriver.getBuildTimeString(estimatedLayerTimes.getMillis(i), true));
+				}
+			}
 		} catch (InterruptedException e) {
-			assert (false);
-			// Should never happen
+			// Someone wants this thread back.  Whatever was estimated so far
+			// is only part of the job, so don't keep it.
+			estimatedBuildTime = 0;
+			estimatedLayerTimes = new LayerTimes();
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private MachineModel loadModel() {
+	/**
+	 * The build time from the last estimate, broken down by layer.
+	 */
+	public LayerTimes getEstimatedLayerTimes() {
+		return estimatedLayerTimes;
+	}
+
+	/**
+	 * A fresh copy of the machine's model, for a driver of its own.
+	 */
+	public MachineModel loadModel() {
 		MachineModel model = new MachineModel();
 		model.loadXML(machineNode);
 		return model;
@@ -742,6 +1146,14 @@ public class MachineController {
 		}
 	}
 
+	/**
+	 * The poller that keeps this machine's temperatures and position up to
+	 * date.
+	 */
+	public StatusPoller getStatusPoller() {
+		return poller;
+	}
+
 	public Driver getDriver() {
 		return driver;
 	}
@@ -757,40 +1169,47 @@ public class MachineController {
 		return cachedModel;
 	}
 
-	synchronized public void stop() {
+	public void stop() {
 		machineThread.stopBuild();
 	}
 
-	synchronized public boolean isInitialized() {
+	public boolean isInitialized() {
 		return (driver != null && driver.isInitialized());
 	}
 
-	synchronized public void pause() {
+	public void pause() {
 		machineThread.pauseBuild();
 	}
 
-	synchronized public void upload(String remoteName) {
+	public void upload(String remoteName) {
 		machineThread.upload(source, remoteName);
 	}
 
-	synchronized public void buildToFile(String path) {
+	public void buildToFile(String path) {
 		machineThread.buildToFile(source, path);
 	}
 
+	/**
+	 * Send the machine a build file made by buildToFile().
+	 */
+	public void replay(String path) {
+		machineThread.replay(path);
+	}
+
 	
-	synchronized public void unpause() {
+	public void unpause() {
 		machineThread.resumeBuild();
 	}
 
-	synchronized public void reset() {
+	public void reset() {
 		machineThread.reset();
 	}
 
-	synchronized public void connect() {
+	public void connect() {
 		machineThread.connect();
 	}
 
-	synchronized public boolean isPaused() {
+	public boolean isPaused() {
 		return getMachineState().isPaused();
 	}
 	
@@ -808,31 +1227,37 @@ public class MachineController {
 			getSimulatorDriver().dispose();
 		}
 		driver.dispose();
+		close(source);
 		setState(new MachineState(MachineState.State.NOT_ATTACHED));
 	}
 	
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
+	private final CopyOnWriteArrayList<MachineListener> listeners =
+		new CopyOnWriteArrayList<MachineListener>();
+	// build progress goes out through this, off the machine thread.
+	private final ProgressPublisher progress = new ProgressPublisher();
 	
 	public void addMachineStateListener(MachineListener listener) {
 		listeners.add(listener);
+		progress.addListener(listener);
 		listener.machineStateChanged(new MachineStateChangeEvent(this,getMachineState()));
 	}
 
 	public void removeMachineStateListener(MachineListener listener) {
 		listeners.remove(listener);
+		progress.removeListener(listener);
 	}
 
 	protected void emitStateChange(MachineState prev, MachineState current) {
+		// progress from before the change goes out ahead of it.
+		progress.flush();
 		MachineStateChangeEvent e = new MachineStateChangeEvent(this, current, prev);
 		for (MachineListener l : listeners) {
 			l.machineStateChanged(e);
 		}
 	}
 
-	protected void emitProgress(MachineProgressEvent progress) {
-		for (MachineListener l : listeners) {
-			l.machineProgress(progress);
-		}
+	protected void emitProgress(MachineProgressEvent event) {
+		progress.publish(event);
 	}
 
 	protected void emitToolStatus(ToolModel tool) {
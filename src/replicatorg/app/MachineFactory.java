@@ -83,7 +83,7 @@ public class MachineFactory {
 	}
 
 	// look for machine configuration node.
-	private static Node getMachineNode(String name) {
+	public static Node getMachineNode(String name) {
 		// load config...
 		Document dom = loadMachinesConfig();
 
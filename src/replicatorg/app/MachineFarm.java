@@ -0,0 +1,531 @@
+/*
+ MachineFarm.java
+
+ Runs a queue of jobs across many machines at once.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileSource;
+
+/**
+ * Runs many machines without a user interface, handing queued jobs out to
+ * whichever machines are free.  Each machine is an ordinary
+ * MachineController with its own machine thread, so the machines talk to
+ * their ports independently; the farm itself only ever reacts to their
+ * events, and never waits on a machine.  Jobs are started from a small
+ * pool of threads, since starting one means estimating it first.
+ *
+ * A job may ask for a particular kind of machine, by its name in
+ * machines.xml, or take the first free machine of any kind.
+ *
+ * Machines using the null driver ("3-Axis Simulator") stand in for real
+ * ones when trying the farm out.
+ */
+public class MachineFarm {
+	/**
+	 * A job waiting for, or running on, a machine.
+	 */
+	public static class Job {
+		public enum Status {
+			/** Waiting for a machine. */
+			QUEUED,
+			/** Handed to a machine, which hasn't started yet. */
+			STARTING,
+			RUNNING,
+			DONE,
+			/** Stopped, by the machine or by cancel(). */
+			STOPPED,
+			/** The machine went away, or wouldn't start the job. */
+			FAILED
+		}
+
+		private final int id;
+		private final String name;
+		private final GCodeSource source;
+		private final String machineType;
+		// a source the farm opened itself, and closes when the job finishes
+		private Closeable owned = null;
+
+		private volatile Status status = Status.QUEUED;
+		private volatile String machine = null;
+		private volatile int lines = 0;
+		private volatile int totalLines = 0;
+		private volatile long started = 0;
+		private volatile long finished = 0;
+
+		Job(int id, String name, GCodeSource source, String machineType) {
+			this.id = id;
+			this.name = name;
+			this.source = source;
+			this.machineType = machineType;
+		}
+
+		public int getId() { return id; }
+		public String getName() { return name; }
+		/** The kind of machine this job needs, or null for any. */
+		public String getMachineType() { return machineType; }
+		public Status getStatus() { return status; }
+		/** The machine the job was given to, if any. */
+		public String getMachine() { return machine; }
+		public int getLines() { return lines; }
+		public int getTotalLines() { return totalLines; }
+
+		public boolean isFinished() {
+			return status == Status.DONE || status == Status.STOPPED ||
+				status == Status.FAILED;
+		}
+
+		/** How long the job ran or has been running, in milliseconds. */
+		public long getElapsed() {
+			if (started == 0) return 0;
+			return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+		}
+
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("#").append(id).append(" ").append(name).append(": ").append(status);
+			if (machine != null) sb.append(" on ").append(machine);
+			if (status == Status.RUNNING && totalLines > 0) {
+				sb.append(String.format(" %1$.1f%%", 100.0 * lines / totalLines));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * One machine in the farm, and the job it's running.  Events come in
+	 * on the machine's own threads.
+	 */
+	private class Slot implements MachineListener {
+		final String label;
+		final String type;
+		final MachineController controller;
+		// changed only with the farm locked
+		volatile Job job = null;
+		// a job that has finished, but whose run may still be winding down
+		Job ending = null;
+		volatile double temperature = -1;
+
+		Slot(String label, String type, MachineController controller) {
+			this.label = label;
+			this.type = type;
+			this.controller = controller;
+		}
+
+		public void machineStateChanged(MachineStateChangeEvent evt) {
+			stateChanged(this, evt.getPreviousState(), evt.getState());
+		}
+
+		public void machineProgress(MachineProgressEvent event) {
+			Job j = job;
+			if (j != null) {
+				j.lines = event.getLines();
+				j.totalLines = event.getTotalLines();
+			}
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+			temperature = event.getTool().getCurrentTemperature();
+		}
+
+		public String toString() {
+			MachineState s = controller.getMachineState();
+			StringBuffer sb = new StringBuffer(label);
+			sb.append(": ").append(s.getState());
+			if (s.isPaused()) sb.append(" (paused)");
+			if (temperature >= 0) sb.append(String.format(" %1$.0f\u00B0C", temperature));
+			Job j = job;
+			if (j != null) sb.append(" - ").append(j);
+			return sb.toString();
+		}
+	}
+
+	private static final ExecutorService starter = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Farm job start");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final List<Slot> slots = new CopyOnWriteArrayList<Slot>();
+	// guarded by this
+	private final LinkedList<Job> queue = new LinkedList<Job>();
+	private final Vector<Job> jobs = new Vector<Job>();
+	private int nextId = 1;
+
+	/**
+	 * Add a machine that needs no port, such as a simulated one.
+	 * @param type the machine's name in machines.xml
+	 */
+	public MachineController addMachine(String type) {
+		MachineController controller = MachineFactory.load(type);
+		addMachine(type, controller);
+		return controller;
+	}
+
+	/**
+	 * Add a machine on the given serial port.
+	 * @param type the machine's name in machines.xml
+	 */
+	public MachineController addMachine(String type, String port) throws SerialException {
+		MachineController controller = MachineFactory.load(type);
+		if (controller.getDriver() instanceof UsesSerial) {
+			UsesSerial us = (UsesSerial)controller.getDriver();
+			us.setSerial(new Serial(port, us));
+		}
+		addMachine(type, controller);
+		return controller;
+	}
+
+	/**
+	 * Add a machine that's already been loaded, and connect to it.
+	 */
+	public void addMachine(String type, MachineController controller) {
+		Slot slot;
+		synchronized(this) {
+			slot = new Slot(type + " #" + (slots.size() + 1), type, controller);
+			slots.add(slot);
+		}
+		controller.addMachineStateListener(slot);
+		controller.connect();
+	}
+
+	/**
+	 * Queue a job.
+	 * @param machineType the kind of machine to run it on, or null for any
+	 */
+	public Job submit(String name, GCodeSource source, String machineType) {
+		return submit(name, source, machineType, null);
+	}
+
+	/**
+	 * Queue a gcode file to run on any machine.
+	 */
+	public Job submit(File file) throws IOException {
+		MappedFileSource source = new MappedFileSource(file);
+		return submit(file.getName(), source, null, source);
+	}
+
+	private Job submit(String name, GCodeSource source, String machineType, Closeable owned) {
+		Job job;
+		synchronized(this) {
+			job = new Job(nextId++, name, source, machineType);
+			job.owned = owned;
+			jobs.add(job);
+			queue.add(job);
+		}
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * Take a job off the queue, or stop it if it's running.
+	 */
+	public void cancel(Job job) {
+		Slot running = null;
+		synchronized(this) {
+			if (queue.remove(job)) {
+				finish(job, Job.Status.STOPPED);
+				release(job);
+				return;
+			}
+			for (Slot slot : slots) {
+				if (slot.job == job) running = slot;
+			}
+		}
+		if (running != null) running.controller.stop();
+	}
+
+	/**
+	 * Every job submitted so far, oldest first.
+	 */
+	public List<Job> getJobs() {
+		return new Vector<Job>(jobs);
+	}
+
+	public List<MachineController> getMachines() {
+		List<MachineController> machines = new Vector<MachineController>();
+		for (Slot slot : slots) {
+			machines.add(slot.controller);
+		}
+		return machines;
+	}
+
+	/**
+	 * Whether every job submitted has finished.
+	 */
+	public synchronized boolean isIdle() {
+		if (!queue.isEmpty()) return false;
+		for (Slot slot : slots) {
+			if (slot.job != null) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until every job submitted has finished.
+	 * @param millis the longest to wait, or 0 to wait for good
+	 * @return whether the farm is idle
+	 */
+	public synchronized boolean waitUntilIdle(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (!isIdle()) {
+			if (millis == 0) {
+				wait();
+			} else {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) return false;
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A line for each machine, then a count of jobs by status.
+	 */
+	public String getStatus() {
+		StringBuffer sb = new StringBuffer();
+		for (Slot slot : slots) {
+			sb.append(slot).append('\n');
+		}
+		int[] counts = new int[Job.Status.values().length];
+		for (Job job : getJobs()) {
+			counts[job.getStatus().ordinal()]++;
+		}
+		for (Job.Status s : Job.Status.values()) {
+			if (counts[s.ordinal()] == 0) continue;
+			sb.append(counts[s.ordinal()]).append(' ').append(s.toString().toLowerCase()).append("  ");
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Stop every machine and let go of its port.
+	 */
+	public void dispose() {
+		synchronized(this) {
+			for (Job job : queue) {
+				finish(job, Job.Status.STOPPED);
+				release(job);
+			}
+			queue.clear();
+		}
+		for (Slot slot : slots) {
+			slot.controller.stop();
+			slot.controller.removeMachineStateListener(slot);
+			slot.controller.dispose();
+		}
+		synchronized(this) {
+			// the machine threads are gone, and their sources with them.
+			for (Slot slot : slots) {
+				if (slot.job != null) release(slot.job);
+				if (slot.ending != null) release(slot.ending);
+				slot.ending = null;
+			}
+			slots.clear();
+			notifyAll();
+		}
+	}
+
+	private void stateChanged(Slot slot, MachineState prev, MachineState current) {
+		synchronized(this) {
+			Job job = slot.job;
+			if (job != null) {
+				if (current.isBuilding()) {
+					if (job.status == Job.Status.STARTING) {
+						job.status = Job.Status.RUNNING;
+						job.started = System.currentTimeMillis();
+					}
+				} else if (job.status == Job.Status.RUNNING) {
+					if (current.getState() == MachineState.State.STOPPING) {
+						finish(job, Job.Status.STOPPED);
+						slot.job = null;
+					} else if (current.isReady()) {
+						finish(job, Job.Status.DONE);
+						slot.job = null;
+					} else if (!current.isConnected()) {
+						finish(job, Job.Status.FAILED);
+						slot.job = null;
+					}
+					if (slot.job == null) slot.ending = job;
+				}
+			}
+			// A stopped build keeps reading its source until the machine
+			// thread notices; only once it has moved on is the source free.
+			if (slot.ending != null && !current.isBuilding() &&
+					current.getState() != MachineState.State.STOPPING) {
+				release(slot.ending);
+				slot.ending = null;
+			}
+		}
+		if (current.isReady()) dispatch();
+	}
+
+	/**
+	 * Hand queued jobs to free machines.
+	 */
+	private synchronized void dispatch() {
+		if (queue.isEmpty()) return;
+		for (Slot slot : slots) {
+			if (slot.job != null || !slot.controller.getMachineState().isReady()) continue;
+			Iterator<Job> i = queue.iterator();
+			while (i.hasNext()) {
+				Job job = i.next();
+				if (job.machineType == null || job.machineType.equals(slot.type)) {
+					i.remove();
+					start(slot, job);
+					break;
+				}
+			}
+			if (queue.isEmpty()) return;
+		}
+	}
+
+	private void start(final Slot slot, final Job job) {
+		slot.job = job;
+		job.status = Job.Status.STARTING;
+		job.machine = slot.label;
+		starter.execute(new Runnable() {
+			public void run() {
+				try {
+					// Counting lines can mean reading the whole file, so it's
+					// done here rather than with the farm locked.
+					job.totalLines = job.source.getLineCount();
+					slot.controller.setCodeSource(job.source);
+					slot.controller.execute();
+				} catch (RuntimeException re) {
+					Base.logger.severe("Couldn't start " + job.name + " on " + slot.label + ": " + re);
+					synchronized(MachineFarm.this) {
+						if (slot.job == job && job.status == Job.Status.STARTING) {
+							finish(job, Job.Status.FAILED);
+							release(job);
+							slot.job = null;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	// called with the farm locked
+	private void finish(Job job, Job.Status status) {
+		job.status = status;
+		job.finished = System.currentTimeMillis();
+		Base.logger.info("Job " + job);
+		notifyAll();
+	}
+
+	// called with the farm locked, once nothing is reading the job's source
+	private void release(Job job) {
+		if (job.owned == null) return;
+		try {
+			job.owned.close();
+		} catch (IOException ioe) {
+			Base.logger.warning("Couldn't close " + job.name + ": " + ioe);
+		}
+		job.owned = null;
+	}
+
+	/**
+	 * Run jobs on a farm from the command line:
+	 * MachineFarm -m "machine name" [-p port] [-n copies] ... job.gcode ...
+	 *
+	 * Each -m adds a machine; -p gives the port of the machine before it,
+	 * and -n adds that many copies of a machine that needs no port.
+	 */
+	public static void main(String[] args) throws Exception {
+		MachineFarm farm = new MachineFarm();
+		List<File> files = new Vector<File>();
+		String type = null;
+		String port = null;
+		int copies = 1;
+		for (int i = 0; i <= args.length; i++) {
+			String arg = (i < args.length) ? args[i] : null;
+			boolean option = arg != null && arg.startsWith("-");
+			if ((arg == null || "-m".equals(arg)) && type != null) {
+				// add the machine we've been reading about.
+				if (port != null) {
+					farm.addMachine(type, port);
+				} else {
+					for (int c = 0; c < copies; c++) farm.addMachine(type);
+				}
+				type = port = null;
+				copies = 1;
+			}
+			if (arg == null) break;
+			if (option && i + 1 == args.length) usage();
+			if ("-m".equals(arg)) {
+				type = args[++i];
+			} else if ("-p".equals(arg)) {
+				port = args[++i];
+			} else if ("-n".equals(arg)) {
+				copies = Integer.parseInt(args[++i]);
+			} else if (option) {
+				usage();
+			} else {
+				files.add(new File(arg));
+			}
+		}
+		if (farm.getMachines().isEmpty() || files.isEmpty()) usage();
+
+		for (File f : files) {
+			farm.submit(f);
+		}
+		long interval = Base.preferences.getInt("farm.status_interval_ms", 2000);
+		while (!farm.waitUntilIdle(interval)) {
+			System.out.println(farm.getStatus());
+			System.out.println();
+		}
+		int failed = 0;
+		for (Job job : farm.getJobs()) {
+			System.out.println(job + String.format(" (%1$.1fs)", job.getElapsed() / 1000.0));
+			if (job.getStatus() != Job.Status.DONE) failed++;
+		}
+		farm.dispose();
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: MachineFarm -m <machine name> [-p <port>] [-n <copies>] ... <job.gcode> ...");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ MoveCoalescer.java
+
+ Merges runs of nearly collinear moves before they reach the driver.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.app;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.Driver;
+
+/**
+ * Sits between the parser and Driver.queuePoint(), holding back the last
+ * move so that the next one can be folded into it.  Slicers write curves
+ * as long runs of tiny, nearly straight moves, and every one of them costs
+ * a packet and a slot in the machine's queue.
+ *
+ * A move is folded into the one held back when they run at the same
+ * feedrate, its direction is within the angle tolerance of the held move,
+ * and none of the points being dropped would end up further than the
+ * distance tolerance from the merged move.
+ *
+ * The held move has to go out before anything else reaches the driver;
+ * the parser calls flush() for any line that isn't a plain G0 or G1, and
+ * whoever runs the parser must flush at the end of a job and before
+ * waiting on the machine.
+ */
+public class MoveCoalescer {
+	/** The most points one merged move may stand in for. */
+	private static final int MAX_MERGED = 64;
+
+	private final Driver driver;
+	private final double cosTolerance;
+	private final double tolerance;
+
+	// the move held back: from (sx,sy,sz) to (ex,ey,ez) at feedrate
+	private boolean pending = false;
+	private double sx, sy, sz;
+	private double ex, ey, ez;
+	private double feedrate;
+
+	// the end points of the moves folded into the held one, x y z in turn
+	private final double[] merged = new double[MAX_MERGED * 3];
+	private int mergedCount = 0;
+
+	private final Point3d scratch = new Point3d();
+
+	private long movesIn = 0;
+	private long movesOut = 0;
+
+	/**
+	 * @param driver the driver to pass the moves on to
+	 * @param angle the largest change of direction to merge across, in
+	 * degrees
+	 * @param tolerance the furthest a dropped point may lie from the merged
+	 * move, in mm
+	 */
+	public MoveCoalescer(Driver driver, double angle, double tolerance) {
+		this.driver = driver;
+		this.cosTolerance = Math.cos(Math.toRadians(angle));
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * A coalescer using the tolerances from the preferences.
+	 */
+	public MoveCoalescer(Driver driver) {
+		this(driver,
+				Base.preferences.getDouble("replicatorg.parser.coalesce_angle", 1.0),
+				Base.preferences.getDouble("replicatorg.parser.coalesce_mm", 0.02));
+	}
+
+	/**
+	 * Whether moves should be merged on their way to the machine.
+	 */
+	public static boolean isEnabled() {
+		return Base.preferences.getBoolean("replicatorg.parser.coalesce_moves", false);
+	}
+
+	/** The number of moves handed to the coalescer. */
+	public long getMovesIn() { return movesIn; }
+
+	/** The number of moves passed on to the driver. */
+	public long getMovesOut() { return movesOut; }
+
+	/** The number of moves, and so packets, saved by merging. */
+	public long getMovesSaved() { return movesIn - movesOut - (pending ? 1 : 0); }
+
+	/**
+	 * Where the machine will be once the moves handed over so far are
+	 * made, including the one held back.
+	 */
+	public void getCurrentPosition(Point3d p) {
+		if (pending) {
+			p.set(ex, ey, ez);
+		} else {
+			driver.getCurrentPosition(p);
+		}
+	}
+
+	/**
+	 * Move to p at the driver's current feedrate.  p isn't kept.
+	 */
+	public void queuePoint(Point3d p) {
+		double f = driver.getCurrentFeedrate();
+		movesIn++;
+		if (pending && f == feedrate && canExtend(p.x, p.y, p.z)) {
+			if (ex != sx || ey != sy || ez != sz) {
+				merged[mergedCount * 3] = ex;
+				merged[mergedCount * 3 + 1] = ey;
+				merged[mergedCount * 3 + 2] = ez;
+				mergedCount++;
+			}
+			ex = p.x;
+			ey = p.y;
+			ez = p.z;
+			return;
+		}
+		flush();
+		driver.getCurrentPosition(scratch);
+		sx = scratch.x;
+		sy = scratch.y;
+		sz = scratch.z;
+		ex = p.x;
+		ey = p.y;
+		ez = p.z;
+		feedrate = f;
+		mergedCount = 0;
+		pending = true;
+	}
+
+	/**
+	 * Send the move held back, if there is one.
+	 */
+	public void flush() {
+		if (!pending) return;
+		pending = false;
+		// the parser may have moved on to another feedrate already.
+		double current = driver.getCurrentFeedrate();
+		if (current != feedrate) driver.setFeedrate(feedrate);
+		scratch.set(ex, ey, ez);
+		driver.queuePoint(scratch);
+		if (current != feedrate) driver.setFeedrate(current);
+		movesOut++;
+	}
+
+	/**
+	 * Whether the held move can be stretched to end at (x,y,z).
+	 */
+	private boolean canExtend(double x, double y, double z) {
+		if (mergedCount == MAX_MERGED) return false;
+		double dx = ex - sx, dy = ey - sy, dz = ez - sz;
+		double held = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		// a held move of length zero is simply replaced.
+		if (held == 0) return true;
+		double nx = x - ex, ny = y - ey, nz = z - ez;
+		double next = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (next == 0) return true;
+		if ((dx * nx + dy * ny + dz * nz) < cosTolerance * held * next) return false;
+		// every point dropped so far, and the current end, must stay close
+		// to the line from the start to the new end.
+		if (distance(ex, ey, ez, x, y, z) > tolerance) return false;
+		for (int i = 0; i < mergedCount; i++) {
+			if (distance(merged[i * 3], merged[i * 3 + 1], merged[i * 3 + 2], x, y, z) > tolerance)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The distance from (px,py,pz) to the line from the start of the held
+	 * move to (x,y,z).
+	 */
+	private double distance(double px, double py, double pz, double x, double y, double z) {
+		double lx = x - sx, ly = y - sy, lz = z - sz;
+		double qx = px - sx, qy = py - sy, qz = pz - sz;
+		// |l x q| / |l|
+		double cx = ly * qz - lz * qy;
+		double cy = lz * qx - lx * qz;
+		double cz = lx * qy - ly * qx;
+		double l2 = lx * lx + ly * ly + lz * lz;
+		if (l2 == 0) return Math.sqrt(qx * qx + qy * qy + qz * qz);
+		return Math.sqrt((cx * cx + cy * cy + cz * cz) / l2);
+	}
+}
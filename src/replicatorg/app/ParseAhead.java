@@ -0,0 +1,114 @@
+package replicatorg.app;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import replicatorg.model.CloseableIterator;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Parses the lines of a job on a thread of its own, so that the build
+ * thread can spend its time talking to the machine.  Parsed lines are
+ * handed over in batches through a bounded queue; when the build thread
+ * falls behind (waiting on the machine, or paused), the parsing thread
+ * blocks once the queue is full.
+ *
+ * Lines are parsed the way ChunkedEstimator parses them: on a parser of
+ * their own, with no modal G code filled in.  That is left to the
+ * driver's parser when the line is run, since it depends on the lines
+ * run before.
+ *
+ * The iterator blocks until the next line has been parsed.  If the build
+ * thread is interrupted while waiting, iteration ends early with the
+ * thread's interrupt status set.
+ */
+class ParseAhead implements CloseableIterator<ParsedCommand> {
+	/** Lines handed over at a time. */
+	private static final int BATCH = 256;
+	private static final ParsedCommand[] END = new ParsedCommand[0];
+
+	private final BlockingQueue<ParsedCommand[]> queue;
+	private final Thread thread;
+	// set by the parsing thread if reading the source fails
+	private volatile RuntimeException failure = null;
+
+	private ParsedCommand[] batch = null;
+	private int index = 0;
+
+	/**
+	 * Start parsing the source.
+	 * @param lines about how many lines to parse ahead of the build
+	 */
+	ParseAhead(final GCodeSource source, int lines) {
+		queue = new ArrayBlockingQueue<ParsedCommand[]>(Math.max(1, lines / BATCH));
+		thread = new Thread("Parse ahead") {
+			public void run() {
+				Iterator<String> i = source.iterator();
+				try {
+					GCodeParser parser = new GCodeParser();
+					while (i.hasNext()) {
+						ParsedCommand[] b = new ParsedCommand[BATCH];
+						int n = 0;
+						while (n < BATCH && i.hasNext()) {
+							parser.parse(i.next());
+							b[n++] = parser.getParsedCommand();
+						}
+						if (n < BATCH) {
+							ParsedCommand[] shorter = new ParsedCommand[n];
+							System.arraycopy(b, 0, shorter, 0, n);
+							b = shorter;
+						}
+						queue.put(b);
+					}
+				} catch (InterruptedException ie) {
+					return; // closed
+				} catch (RuntimeException re) {
+					failure = re;
+				} finally {
+					if (i instanceof CloseableIterator) ((CloseableIterator<?>)i).close();
+				}
+				try {
+					queue.put(END);
+				} catch (InterruptedException ie) {
+					// closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean hasNext() {
+		if (batch != null && index < batch.length) return true;
+		if (batch == END) return false;
+		try {
+			batch = queue.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			batch = END;
+		}
+		index = 0;
+		if (batch == END && failure != null) throw failure;
+		return batch.length > 0;
+	}
+
+	public ParsedCommand next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		return batch[index++];
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop parsing and throw away whatever was parsed but not used.
+	 */
+	public void close() {
+		thread.interrupt();
+		queue.clear();
+		batch = END;
+	}
+}
@@ -0,0 +1,84 @@
+package replicatorg.app;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A single line of GCode in its parsed form: the set of code letters present
+ * on the line, the value attached to each, and the comment and command text
+ * that survived comment stripping.  A ParsedCommand can be loaded straight
+ * into a GCodeParser, skipping the text scan entirely.
+ *
+ * The binary form is an int bitmask of the letters seen (bit 0 is 'A'),
+ * followed by one double per set bit in letter order, then the command and
+ * comment strings.
+ */
+public class ParsedCommand {
+	private final int codes;
+	private final double[] values;
+	private final String command;
+	private final String comment;
+
+	ParsedCommand(int codes, double[] values, String command, String comment) {
+		this.codes = codes;
+		this.values = values;
+		this.command = command;
+		this.comment = comment;
+	}
+
+	/**
+	 * @return a bitmask of the code letters present; bit 0 is 'A'.
+	 */
+	public int getCodes() { return codes; }
+
+	public boolean hasCode(char code) {
+		return (codes & (1 << (code - 'A'))) != 0;
+	}
+
+	/**
+	 * @return the value of the given code, or 0 if it was not present.
+	 */
+	public double getCodeValue(char code) {
+		int bit = 1 << (code - 'A');
+		if ((codes & bit) == 0) return 0.0;
+		return values[Integer.bitCount(codes & (bit - 1))];
+	}
+
+	/**
+	 * Copy our values into a letter-indexed array of 26 doubles.
+	 */
+	void unpack(double[] target) {
+		int remaining = codes;
+		int idx = 0;
+		while (remaining != 0) {
+			int letter = Integer.numberOfTrailingZeros(remaining);
+			target[letter] = values[idx++];
+			remaining &= remaining - 1;
+		}
+	}
+
+	public String getCommand() { return command; }
+
+	public String getComment() { return comment; }
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(codes);
+		for (int i = 0; i < values.length; i++) {
+			out.writeDouble(values[i]);
+		}
+		out.writeUTF(command);
+		out.writeUTF(comment);
+	}
+
+	public static ParsedCommand read(DataInput in) throws IOException {
+		int codes = in.readInt();
+		double[] values = new double[Integer.bitCount(codes)];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		String command = in.readUTF();
+		String comment = in.readUTF();
+		return new ParsedCommand(codes, values, command, comment);
+	}
+}
@@ -27,8 +27,6 @@ package replicatorg.app;
 import gnu.io.CommPortIdentifier;
 import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
-import gnu.io.SerialPortEvent;
-import gnu.io.SerialPortEventListener;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,12 +35,13 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 import replicatorg.app.exceptions.SerialException;
 import replicatorg.app.exceptions.UnknownSerialPortException;
 import replicatorg.drivers.UsesSerial;
 
-public class Serial implements SerialPortEventListener {
+public class Serial {
 	/**
 	 * Serial.Name objects are simple compact objects that hold the name
 	 * of a serial port, along with the port's current availability.
@@ -180,10 +179,12 @@ public class Serial implements SerialPortEventListener {
 			port = (SerialPort)portId.open("replicatorG", 2000);
 			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
 
+			// Let the reader thread wake up now and then to see if it
+			// should stop.
+			port.enableReceiveTimeout(READER_POLL_MILLIS);
 			input = port.getInputStream();
 			output = port.getOutputStream();
-			port.addEventListener(this);
-			port.notifyOnDataAvailable(true);
+			startReader();
 		} catch (PortInUseException e) {
 			throw new SerialException(
 					"Serial port '"
@@ -200,7 +201,16 @@ public class Serial implements SerialPortEventListener {
 	 * Unregister and close the port.
 	 */
 	public synchronized void dispose() {
-		if (port != null) port.removeEventListener();
+		Thread r = reader;
+		reader = null;
+		if (r != null) {
+			r.interrupt();
+			try {
+				r.join(2 * READER_POLL_MILLIS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		if (input != null)
 			try {
 				input.close();
@@ -235,58 +245,154 @@ public class Serial implements SerialPortEventListener {
 		port.setRTS(true);
 	}
 	
+	/** How long the reader thread blocks in the port before checking in. */
+	private static final int READER_POLL_MILLIS = 100;
+
+	/**
+	 * Bytes from the port, on their way from the reader thread to whoever is
+	 * reading.  Readers take turns through readLock, so the ring only ever
+	 * sees one reader at a time.
+	 */
+	private final ByteRing readRing = new ByteRing(64 * 1024);
+	private final Object readLock = new Object();
+	// the reader waiting for bytes, if any; the reader thread unparks it.
+	private volatile Thread waiter = null;
+	private volatile Thread reader = null;
+
+	/**
+	 * Start the thread that moves bytes from the port into the read ring.
+	 */
+	private void startReader() {
+		final InputStream in = input;
+		reader = new Thread("Serial reader (" + name + ")") {
+			public void run() {
+				byte[] buf = new byte[4096];
+				try {
+					while (reader == this) {
+						int n = in.read(buf);
+						if (n < 0) {
+							disconnected = true;
+							break;
+						}
+						int off = 0;
+						while (off < n && reader == this) {
+							int written = readRing.write(buf, off, n - off);
+							off += written;
+							wakeReader();
+							if (written == 0) {
+								// the ring is full; give the reader a moment.
+								LockSupport.parkNanos(1000000L);
+							}
+						}
+					}
+				} catch (IOException e) {
+					// An unplugged connection will just flood the console with
+					// stack traces, and give us zero useful information.  Until
+					// we have a plan for how to respond to the user when the
+					// connection drops, we'll just let this silently fail, and set
+					// a fail bit.
+					if (reader == this) disconnected = true;
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void wakeReader() {
+		Thread w = waiter;
+		if (w != null) LockSupport.unpark(w);
+	}
+
 	/**
-	 * Non-growable FIFO.  In theory we only need enough space for a single
-	 * packet.  Currently set at 1K.
-	 * @author phooky
-	 *
+	 * Wait until there are bytes to read or the deadline passes.  Must be
+	 * called with readLock held.
+	 * @return false if we timed out or were interrupted.
 	 */
-	class ByteFifo {
-		final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
-		private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-		private int head = 0; 
-		private int tail = 0;
-		final private int moduloLength(int value) {
-			value = value % buffer.length;
-			if (value < 0) value += buffer.length;
-			return value;
+	private boolean awaitBytes(long deadline) {
+		while (readRing.available() == 0) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) return false;
+			waiter = Thread.currentThread();
+			// check again, in case the bytes came in before we were listed.
+			if (readRing.available() == 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waiter = null;
+			if (Thread.currentThread().isInterrupted()) return false;
 		}
-		public void enqueue(byte b) {
-			buffer[tail++] = b;
-			tail = moduloLength(tail);
+		return true;
+	}
+
+	/**
+	 * The deadline for a read started now, in System.nanoTime() terms.
+	 */
+	public long deadline() {
+		return System.nanoTime() + timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * Read whatever bytes are available, up to len of them, waiting until
+	 * the deadline for at least one to arrive.
+	 * @param deadline when to give up, in System.nanoTime() terms
+	 * @return the number of bytes read, 0 if the deadline passed, or -1 if
+	 * we were interrupted.
+	 */
+	public int read(byte[] bytes, int off, int len, long deadline) {
+		synchronized (readLock) {
+			if (!awaitBytes(deadline)) {
+				return Thread.currentThread().isInterrupted() ? -1 : 0;
+			}
+			return readRing.read(bytes, off, len);
 		}
-		public void clear() { head = tail = 0; }
-		public int size() { return moduloLength(tail-head); }
-		public byte dequeue() {
-			byte b = buffer[head++];
-			head = moduloLength(head);
-			return b;
+	}
+
+	/**
+	 * Read a length-prefixed packet: a start byte, a length byte, that many
+	 * payload bytes, and a single check byte.  Anything before the start byte
+	 * is skipped.
+	 * @param payload receives the payload, followed by the check byte; it
+	 * must have room for 256 bytes.
+	 * @param startByte the byte that opens a packet
+	 * @param deadline when to give up on the whole packet
+	 * @return the payload length, or -1 if the deadline passed first or we
+	 * were interrupted.
+	 */
+	public int readPacket(byte[] payload, byte startByte, long deadline) {
+		synchronized (readLock) {
+			int start;
+			do {
+				if (!awaitBytes(deadline)) return -1;
+				start = readRing.peek();
+				readRing.skip(1);
+			} while (start != (startByte & 0xff));
+			if (!awaitBytes(deadline)) return -1;
+			int length = readRing.peek();
+			readRing.skip(1);
+			int got = 0;
+			while (got < length + 1) {
+				if (!awaitBytes(deadline)) return -1;
+				got += readRing.read(payload, got, length + 1 - got);
+			}
+			return length;
 		}
 	}
-	
-	private ByteFifo readFifo = new ByteFifo();
-	
+
 	/**
 	 * Attempt to read a single byte.
 	 * @return the byte read, or -1 to indicate a timeout.
 	 */
 	public int read() {
-		synchronized(readFifo) {
-			try {
-				if (readFifo.size() == 0) readFifo.wait(timeoutMillis);
-			} catch (InterruptedException e) {
-				// We are most likely amidst a shutdown.  Propegate the interrupt
-				// status.
-				Thread.currentThread().interrupt();
-				return -1;
-			}
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
-				Base.logger.warning("Read timed out.");
+		synchronized (readLock) {
+			if (!awaitBytes(deadline())) {
+				if (!Thread.currentThread().isInterrupted()) {
+					Base.logger.warning("Read timed out.");
+				}
 				return -1;
 			}
+			int b = readRing.peek();
+			readRing.skip(1);
+			return b;
 		}
 	}
 
@@ -299,26 +405,19 @@ public class Serial implements SerialPortEventListener {
 	 * @return the number of characters read.
 	 */
  	public int read(byte bytes[]) {
-		synchronized(readFifo) {
-			try {
-				if (readFifo.size() == 0) readFifo.wait(timeoutMillis);
-			} catch (InterruptedException e) {
-				// We are most likely amidst a shutdown.  Propegate the interrupt
-				// status.
-				Thread.currentThread().interrupt();
-				return -1;
-			}
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
-		}
+		return read(bytes, 0, bytes.length, deadline());
 	}
 
 	public void write(byte bytes[]) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write len bytes of the given buffer, starting at off.
+	 */
+	public void write(byte bytes[], int off, int len) {
 		try {
-			output.write(bytes);
+			output.write(bytes, off, len);
 			output.flush(); // Reconsider?
 
 		} catch (Exception e) { // null pointer or serial port dead
@@ -362,55 +461,18 @@ public class Serial implements SerialPortEventListener {
 		throw new RuntimeException("Error inside Serial." + where + "()");
 	}
 
+	/**
+	 * Throw away any bytes received but not yet read.
+	 */
 	public void clear() {
-		synchronized (readFifo) {
-			try {
-				while (input.available() > 0) {
-					input.read();
-				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				disconnected = true;
-			}
-			readFifo.clear();
-			readFifo.notifyAll();
+		synchronized (readLock) {
+			readRing.clear();
 		}
 	}
 	
-	private boolean disconnected = false;
+	private volatile boolean disconnected = false;
 	/**
 	 * Indicates if we've received 
 	 */
 	public boolean isDisconnected() { return disconnected; }
-	
-	public void serialEvent(SerialPortEvent event) {
-		synchronized (readFifo) {
-			boolean readAny = false;
-			try {
-				while (input.available() > 0) {
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						readAny = true;
-					}
-				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				disconnected = true;
-			}
-			if (readAny) readFifo.notify();
-		}
-	}
 }
@@ -0,0 +1,183 @@
+/*
+ StatusPoller.java
+
+ Reads temperatures and positions from a machine on a schedule.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.app;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.Driver;
+import replicatorg.machine.model.ToolModel;
+
+/**
+ * Keeps a machine's temperatures and position up to date, one poller per
+ * machine.  Anyone who wants a reading asks for it with request(), giving
+ * how often; each sensor is read as often as its most demanding request
+ * asks.  Readings go out to the machine's listeners through
+ * MachineListener.toolStatusChanged().
+ *
+ * The poller never talks to the machine on a thread of its own.  The
+ * machine thread calls poll() between commands, and while it is idle, so
+ * queries never fight the build for the serial port.  During a build a
+ * due reading waits until the driver says a query is cheap, that is until
+ * the machine has a full buffer to work through; a reading is only forced
+ * through once it is a whole interval late.
+ */
+public class StatusPoller {
+	public enum Sensor {
+		TEMPERATURE,
+		PLATFORM_TEMPERATURE,
+		POSITION
+	}
+
+	/** Someone's wish to have a sensor read every so often. */
+	private static class Request {
+		final Object owner;
+		final Sensor sensor;
+		final long millis;
+
+		Request(Object owner, Sensor sensor, long millis) {
+			this.owner = owner;
+			this.sensor = sensor;
+			this.millis = millis;
+		}
+	}
+
+	private final MachineController machine;
+	private final Vector<Request> requests = new Vector<Request>();
+
+	// for each sensor being read: how often, and when it's next due.
+	private final EnumMap<Sensor,Long> intervals = new EnumMap<Sensor,Long>(Sensor.class);
+	private final EnumMap<Sensor,Long> due = new EnumMap<Sensor,Long>(Sensor.class);
+
+	private final Point3d position = new Point3d();
+
+	StatusPoller(MachineController machine) {
+		this.machine = machine;
+	}
+
+	/**
+	 * Have a sensor read at least every so often, until cancel() is called
+	 * with the same owner.
+	 * @param owner whoever wants the readings
+	 * @param millis the longest time between readings
+	 */
+	public void request(Object owner, Sensor sensor, long millis) {
+		if (millis <= 0) throw new IllegalArgumentException("Poll interval must be positive");
+		synchronized(this) {
+			requests.add(new Request(owner, sensor, millis));
+			update();
+		}
+		// the machine thread may be waiting on a longer interval.
+		machine.wakeMachineThread();
+	}
+
+	/**
+	 * Drop every request made by the owner.
+	 */
+	public synchronized void cancel(Object owner) {
+		Iterator<Request> i = requests.iterator();
+		while (i.hasNext()) {
+			if (i.next().owner == owner) i.remove();
+		}
+		update();
+	}
+
+	/** Work out the interval of each sensor from the requests. */
+	private void update() {
+		EnumMap<Sensor,Long> old = new EnumMap<Sensor,Long>(intervals);
+		intervals.clear();
+		for (Request r : requests) {
+			Long i = intervals.get(r.sensor);
+			if (i == null || r.millis < i) intervals.put(r.sensor, r.millis);
+		}
+		long now = System.currentTimeMillis();
+		for (Sensor s : Sensor.values()) {
+			Long i = intervals.get(s);
+			if (i == null) {
+				due.remove(s);
+			} else if (old.get(s) == null) {
+				due.put(s, now); // newly asked for; read it right away
+			} else if (due.get(s) > now + i) {
+				due.put(s, now + i);
+			}
+		}
+	}
+
+	/**
+	 * How long until the next reading is due.
+	 * @return the time in milliseconds, or -1 if no sensor is being read.
+	 */
+	public synchronized long getWait() {
+		if (due.isEmpty()) return -1;
+		long now = System.currentTimeMillis();
+		long wait = Long.MAX_VALUE;
+		for (Long d : due.values()) {
+			wait = Math.min(wait, Math.max(0, d - now));
+		}
+		return wait;
+	}
+
+	/**
+	 * Take the readings that are due.  Only the machine thread calls this.
+	 * @param cheap whether a query now would hold up the machine; readings
+	 * that are less than a whole interval late are left for later if not.
+	 * @return how long until the next reading is due, as getWait().
+	 */
+	long poll(boolean cheap) {
+		boolean[] read = new boolean[Sensor.values().length];
+		boolean any = false;
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			for (Sensor s : Sensor.values()) {
+				Long d = due.get(s);
+				if (d == null || d > now) continue;
+				long interval = intervals.get(s);
+				if (!cheap && now - d < interval) continue;
+				read[s.ordinal()] = any = true;
+				due.put(s, now + interval);
+			}
+		}
+		if (any) read(read);
+		return getWait();
+	}
+
+	private void read(boolean[] read) {
+		Driver driver = machine.getDriver();
+		if (driver == null || !driver.isInitialized()) return;
+		ToolModel tool = driver.getMachine().currentTool();
+		if (read[Sensor.TEMPERATURE.ordinal()] && tool.hasHeater()) {
+			driver.readTemperature();
+		}
+		if (read[Sensor.PLATFORM_TEMPERATURE.ordinal()] && tool.hasHeatedPlatform()) {
+			driver.readPlatformTemperature();
+		}
+		if (read[Sensor.POSITION.ordinal()]) {
+			// only goes to the machine if the position is unknown.
+			driver.getCurrentPosition(position);
+		}
+		machine.emitToolStatus(tool);
+	}
+}
@@ -6,6 +6,43 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	/** The CRC of every byte value, starting from each possible CRC. */
+	private static final byte[] TABLE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x01) != 0) {
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				} else {
+					crc = (crc >>> 1) & 0xff;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
+	/**
+	 * Update a CRC with a new byte of data, without an IButtonCrc object.
+	 * 
+	 * @return the new crc, in the low 8 bits.
+	 */
+	public static int update(int crc, byte data) {
+		return TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Compute the CRC of a run of bytes.
+	 */
+	public static byte compute(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = TABLE[(crc ^ data[i]) & 0xff] & 0xff;
+		}
+		return (byte) crc;
+	}
+
 	private int crc = 0;
 
 	/**
@@ -18,20 +55,14 @@ public class IButtonCrc {
 	/**
 	 * Update the CRC with a new byte of sequential data. See
 	 * include/util/crc16.h in the avr-libc project for a full explanation of
-	 * the algorithm.
+	 * the algorithm; we look up the result of its eight shift steps in a
+	 * table built the same way.
 	 * 
 	 * @param data
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
-		}
+		crc = update(crc, data);
 	}
 
 	/**
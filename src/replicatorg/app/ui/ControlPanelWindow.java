@@ -55,6 +55,7 @@ import javax.swing.event.ChangeListener;
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.MachineController;
+import replicatorg.app.StatusPoller;
 import replicatorg.app.ui.controlpanel.ExtruderPanel;
 import replicatorg.app.ui.controlpanel.Jog3AxisPanel;
 import replicatorg.drivers.Driver;
@@ -81,10 +82,6 @@ public class ControlPanelWindow extends JFrame implements
 
 	protected Driver driver;
 
-	protected UpdateThread updateThread;
-
-	protected PollThread pollThread;
-
 	private static ControlPanelWindow instance = null;
 
 	public static synchronized ControlPanelWindow getControlPanel(MachineController m) {
@@ -129,11 +126,11 @@ public class ControlPanelWindow extends JFrame implements
 		// addWindowFocusListener(this);
 		// addWindowStateListener(this);
 
-		// start our various threads.
-		updateThread = new UpdateThread(this);
-		updateThread.start();
-		pollThread = new PollThread(driver);
-		pollThread.start();
+		// have the machine keep us up to date.
+		StatusPoller poller = machine.getStatusPoller();
+		poller.request(this, StatusPoller.Sensor.TEMPERATURE, 1000);
+		poller.request(this, StatusPoller.Sensor.PLATFORM_TEMPERATURE, 2000);
+		poller.request(this, StatusPoller.Sensor.POSITION, 1000);
 	}
 
 	private JMenuItem makeHomeItem(String name,final EnumSet<Axis> set,final boolean positive) {
@@ -240,12 +237,12 @@ public class ControlPanelWindow extends JFrame implements
 	}
 	
 	public void windowClosing(WindowEvent e) {
-		updateThread.interrupt();
-		pollThread.interrupt();
+		machine.getStatusPoller().cancel(this);
 	}
 
 	public void windowClosed(WindowEvent e) {
 		synchronized(getClass()) {
+			machine.getStatusPoller().cancel(this);
 			machine.removeMachineStateListener(this);
 			if (instance == this) {
 				instance = null;
@@ -268,55 +265,12 @@ public class ControlPanelWindow extends JFrame implements
 	public void windowDeactivated(WindowEvent e) {
 	}
 
-	class PollThread extends Thread {
-		Driver driver;
-
-		public PollThread(Driver d) {
-			super("Control Panel Poll Thread");
-
-			driver = d;
-		}
-
-		public void run() {
-			// we'll break on interrupts
-			try {
-				while (true) {
-					// driver.readTemperature();
-					Thread.sleep(1000);
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
-	class UpdateThread extends Thread {
-		ControlPanelWindow window;
-
-		public UpdateThread(ControlPanelWindow w) {
-			super("Control Panel Update Thread");
-
-			window = w;
-		}
-
-		public void run() {
-			// we'll break on interrupts
-			try {
-				while (true) {
-					window.updateStatus();
-					Thread.sleep(1000);
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
 	public void machineProgress(MachineProgressEvent event) {
 	}
 
 	public void machineStateChanged(MachineStateChangeEvent evt) {
 		if (evt.getState().isBuilding() || !evt.getState().isConnected()) {
-			if (updateThread != null) { updateThread.interrupt(); }
-			if (pollThread != null) { pollThread.interrupt(); }
+			machine.getStatusPoller().cancel(this);
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					dispose();
@@ -326,6 +280,11 @@ public class ControlPanelWindow extends JFrame implements
 	}
 
 	public void toolStatusChanged(MachineToolStatusEvent event) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				updateStatus();
+			}
+		});
 	}
 
 	public void stateChanged(ChangeEvent e) {
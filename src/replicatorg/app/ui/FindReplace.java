@@ -217,6 +217,7 @@ public class FindReplace extends JFrame implements ActionListener {
 		// hack to to get first field to focus properly on osx
 		addWindowListener(new WindowAdapter() {
 			public void windowActivated(WindowEvent e) {
+				replaceAllButton.setEnabled(FindReplace.this.editor.textarea.isEditable());
 				findField.requestFocusInWindow();
 				findField.selectAll();
 			}
@@ -298,8 +299,8 @@ public class FindReplace extends JFrame implements ActionListener {
 			}
 		}
 		found = true;
-		replaceButton.setEnabled(true);
-		replaceFindButton.setEnabled(true);
+		replaceButton.setEnabled(editor.textarea.isEditable());
+		replaceFindButton.setEnabled(editor.textarea.isEditable());
 		editor.textarea.select(nextIndex, nextIndex + search.length());
 	}
 
@@ -310,6 +311,8 @@ public class FindReplace extends JFrame implements ActionListener {
 	public void replace() {
 		if (!found)
 			return; // don't replace if nothing found
+		if (!editor.textarea.isEditable())
+			return; // e.g. the placeholder for a large file
 
 		// check to see if the document has wrapped around
 		// otherwise this will cause an infinite loop
@@ -336,6 +339,8 @@ public class FindReplace extends JFrame implements ActionListener {
 	 * until nothing more found.
 	 */
 	public void replaceAll() {
+		if (!editor.textarea.isEditable())
+			return;
 		// move to the beginning
 		editor.textarea.select(0, 0);
 
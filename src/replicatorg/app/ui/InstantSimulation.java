@@ -0,0 +1,63 @@
+package replicatorg.app.ui;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.ParsedCommand;
+import replicatorg.drivers.SimulationDriver;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CloseableIterator;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.ParsedGCodeSource;
+
+/**
+ * Simulates a whole job as fast as the parser goes: the job is run
+ * through a SimulationDriver with no window, no machine thread and no
+ * events, and the moves are gathered into a ToolpathStore to be shown
+ * once they're all in.
+ */
+class InstantSimulation {
+	/** How many lines to run between checks for an interrupt. */
+	private static final int CHECK_LINES = 1024;
+
+	/**
+	 * Run the job.
+	 * @param model a model of the machine, for this run alone
+	 * @return every move the job makes, by layer
+	 */
+	static ToolpathStore run(GCodeSource source, MachineModel model) throws InterruptedException {
+		final ToolpathStore toolpaths = new ToolpathStore();
+		SimulationDriver driver = new SimulationDriver() {
+			public void queuePoint(Point3d p) {
+				toolpaths.add(p);
+				super.queuePoint(p);
+			}
+		};
+		driver.setMachine(model);
+		// start us off at 0,0,0, as the live simulation does
+		toolpaths.add(new Point3d());
+
+		int lines = 0;
+		if (source instanceof ParsedGCodeSource) {
+			CloseableIterator<ParsedCommand> i = ((ParsedGCodeSource)source).parsedIterator();
+			try {
+				while (i.hasNext()) {
+					ParsedCommand cmd = i.next();
+					if (cmd == null) continue;
+					driver.parse(cmd);
+					driver.execute();
+					if (++lines % CHECK_LINES == 0 && Thread.interrupted()) throw new InterruptedException();
+				}
+			} finally {
+				i.close();
+			}
+		} else {
+			for (String line : source) {
+				driver.parse(line);
+				driver.execute();
+				if (++lines % CHECK_LINES == 0 && Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+		driver.dispose();
+		return toolpaths;
+	}
+}
@@ -0,0 +1,152 @@
+package replicatorg.app.ui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+/**
+ * A picture of one layer of a simulated build, as seen in one view.  The
+ * picture only ever has moves added to it, in the order they were made,
+ * so keeping it up to date costs the new moves and nothing more; drawing
+ * it is a single drawImage().  A new view needs a new picture.
+ */
+class LayerCanvas {
+	/**
+	 * Where the view is and how far in it's zoomed: the point shown at
+	 * the top left, in mm, and the pixels to a mm.
+	 */
+	static final class View {
+		final double scale;
+		final double x, y;
+		final int width, height;
+
+		View(double scale, double x, double y, int width, int height) {
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		/** Whether there is anything to see. */
+		boolean isValid() {
+			return scale > 0 && !Double.isInfinite(scale) && width > 0 && height > 0;
+		}
+
+		int toPointX(double realX) {
+			return (int)((realX - x) * scale);
+		}
+
+		int toPointY(double realY) {
+			return (int)((realY - y) * scale);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof View)) return false;
+			View v = (View)o;
+			return scale == v.scale && x == v.x && y == v.y && width == v.width && height == v.height;
+		}
+
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(scale) ^ Double.doubleToLongBits(x) * 31
+					^ Double.doubleToLongBits(y) * 961;
+			return (int)(bits ^ (bits >>> 32)) ^ width ^ height << 16;
+		}
+	}
+
+	final ToolpathStore.Layer layer;
+	final View view;
+	private final BufferedImage image;
+
+	// how many of the layer's moves and arrivals are drawn.
+	private int moves = 0;
+	private int arrivals = 0;
+
+	LayerCanvas(ToolpathStore.Layer layer, View view) {
+		this.layer = layer;
+		this.view = view;
+		image = new BufferedImage(view.width, view.height, BufferedImage.TYPE_INT_RGB);
+		Graphics g = image.getGraphics();
+		try {
+			g.setColor(Color.white);
+			g.fillRect(0, 0, view.width, view.height);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	int getMoves() { return moves; }
+
+	int getArrivals() { return arrivals; }
+
+	/**
+	 * Draw the moves not yet drawn, up to but not including the given
+	 * one, and every arrival not yet drawn, from a snapshot of the layer.
+	 * Needn't be called with the store's lock held, but only one thread
+	 * may draw at a time.
+	 */
+	void drawTo(ToolpathStore.Snapshot from, int end) {
+		end = Math.min(end, from.getCount());
+		final Graphics g = image.getGraphics();
+		try {
+			if (end > moves) {
+				g.setColor(Color.black);
+				// the view in mm, with a pixel to spare.
+				float x0 = (float)(view.x - 1 / view.scale);
+				float y0 = (float)(view.y - 1 / view.scale);
+				float x1 = (float)(view.x + (view.width + 1) / view.scale);
+				float y1 = (float)(view.y + (view.height + 1) / view.scale);
+				from.visit(x0, y0, x1, y1, moves, end, new ToolpathStore.Visitor() {
+					public void move(int index, float ax, float ay, float bx, float by) {
+						g.drawLine(view.toPointX(ax), view.toPointY(ay),
+								view.toPointX(bx), view.toPointY(by));
+					}
+				});
+				moves = end;
+			}
+			for (; arrivals < from.getArrivalCount(); arrivals++) {
+				drawArrival(g, view.toPointX(from.getArrivalX(arrivals)),
+						view.toPointY(from.getArrivalY(arrivals)), from.isArrivalFromBelow(arrivals));
+			}
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Mark where the tool came onto a layer: red for up from below, blue
+	 * for down from above.
+	 */
+	static void drawArrival(Graphics g, int x, int y, boolean fromBelow) {
+		// draw up arrow
+		if (fromBelow) {
+			g.setColor(Color.red);
+			g.drawOval(x - 5, y - 5, 10, 10);
+			g.drawLine(x - 5, y, x + 5, y);
+			g.drawLine(x, y - 5, x, y + 5);
+		}
+		// draw down arrow
+		else {
+			g.setColor(Color.blue);
+			g.drawOval(x - 5, y - 5, 10, 10);
+			g.drawOval(x - 1, y - 1, 2, 2);
+		}
+	}
+
+	/**
+	 * Draw the picture onto g, which shows the given view.  If that isn't
+	 * the view the picture was drawn for, it's stretched to fit until a
+	 * new one is drawn.
+	 */
+	void paint(Graphics g, View to) {
+		if (to.equals(view)) {
+			g.drawImage(image, 0, 0, null);
+			return;
+		}
+		double stretch = to.scale / view.scale;
+		int x = (int)Math.round((view.x - to.x) * to.scale);
+		int y = (int)Math.round((view.y - to.y) * to.scale);
+		g.drawImage(image, x, y, (int)Math.round(view.width * stretch),
+				(int)Math.round(view.height * stretch), null);
+	}
+}
@@ -128,7 +128,9 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.CachedGCodeSource;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedFileSource;
 import replicatorg.plugin.toolpath.SkeinforgeGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGeneratorThread;
@@ -227,6 +229,8 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	// undo fellers
 	JMenuItem undoItem, redoItem;
 
+	JMenuItem cutItem, pasteItem;
+
 	protected UndoAction undoAction;
 	protected RedoAction redoAction;
 
@@ -718,6 +722,14 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		});
 		menu.add(item);
 
+		item = new JMenuItem("Simulate Instantly");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleInstantSimulate();
+			}
+		});
+		menu.add(item);
+
 		item = newJMenuItem("Build", 'B');
 		item.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -726,6 +738,14 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		});
 		menu.add(item);
 
+		item = new JMenuItem("Build from file...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleReplay();
+			}
+		});
+		menu.add(item);
+
 		pauseItem = newJMenuItem("Pause", 'E');
 		pauseItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -940,14 +960,15 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		// TODO "cut" and "copy" should really only be enabled
 		// if some text is currently selected
-		item = newJMenuItem("Cut", 'X');
-		item.addActionListener(new ActionListener() {
+		cutItem = newJMenuItem("Cut", 'X');
+		cutItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				if (!isCodeEditable()) return;
 				textarea.cut();
 				build.getCode().setModified(true);
 			}
 		});
-		menu.add(item);
+		menu.add(cutItem);
 
 		item = newJMenuItem("Copy", 'C');
 		item.addActionListener(new ActionListener() {
@@ -957,14 +978,15 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		});
 		menu.add(item);
 
-		item = newJMenuItem("Paste", 'V');
-		item.addActionListener(new ActionListener() {
+		pasteItem = newJMenuItem("Paste", 'V');
+		pasteItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				if (!isCodeEditable()) return;
 				textarea.paste();
 				build.getCode().setModified(true);
 			}
 		});
-		menu.add(item);
+		menu.add(pasteItem);
 
 		item = newJMenuItem("Select All", 'A');
 		item.addActionListener(new ActionListener() {
@@ -1256,6 +1278,13 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		// update the document object that's in use
 		textarea.setDocument(code.document, code.selectionStart,
 				code.selectionStop, code.scrollPosition);
+		if (code.isLarge()) {
+			textarea.setEditable(false);
+		}
+		// the placeholder for a large file mustn't be edited, or it could
+		// be saved over the file.
+		cutItem.setEnabled(!code.isLarge());
+		pasteItem.setEnabled(!code.isLarge());
 
 		textarea.requestFocus(); // get the caret blinking
 	}
@@ -1279,12 +1308,46 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 	// ...................................................................
 
+	/**
+	 * Point the machine at the gcode we're about to run.  If the editor
+	 * holds an unmodified copy of a file on disk, we read the file directly
+	 * so that its parsed form can be cached between runs.
+	 */
+	private void updateCodeSource() {
+		if (machine == null) return;
+		BuildCode code = (build == null) ? null : build.getCode();
+		if (code != null && code.file != null && code.file.exists() &&
+				(code.isLarge() || !code.isModified())) {
+			if (Base.preferences.getBoolean("build.cache_parsed_gcode",true)) {
+				machine.setCodeSource(new CachedGCodeSource(code.file));
+				return;
+			}
+			try {
+				machine.setCodeSource(new MappedFileSource(code.file));
+				return;
+			} catch (IOException ioe) {
+				Base.logger.warning("Could not map "+code.file+"; reading from the editor instead.");
+			}
+		}
+		machine.setCodeSource(new JEditTextAreaSource(textarea));
+	}
+
+	/**
+	 * Large gcode files are shown as a placeholder, and can't be edited.
+	 */
+	private boolean isCodeEditable() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		return code == null || !code.isLarge();
+	}
+
 	public void handleEstimate() {
 		if (building)
 			return;
 		if (simulating)
 			return;
 
+		updateCodeSource();
+
 		// load our simulator machine
 		// loadSimulator();
 
@@ -1301,6 +1364,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		// close stuff.
 		doClose();
+		updateCodeSource();
 
 		// buttons/status.
 		simulating = true;
@@ -1315,6 +1379,30 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		simulationThread.start();
 	}
 
+	/**
+	 * Simulate the whole job at once, without watching it happen, and show
+	 * the result with a slider to go through the layers.
+	 */
+	public void handleInstantSimulate() {
+		if (building)
+			return;
+		if (simulating)
+			return;
+
+		if (machine == null) {
+			Base.logger.severe("Not ready to simulate yet.");
+			return;
+		}
+		updateCodeSource();
+
+		simulating = true;
+		setEditorBusy(true);
+
+		// fire off our thread.
+		simulationThread = new InstantSimulationThread();
+		simulationThread.start();
+	}
+
 	// synchronized public void simulationOver()
 	public void simulationOver() {
 		message("Done simulating.");
@@ -1345,6 +1433,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 			message("Building...");
 			buildStart = new Date();
+			updateCodeSource();
 			machine.execute();
 		}
 	}
@@ -1376,6 +1465,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	
 				message("Uploading...");
 				buildStart = new Date();
+				updateCodeSource();
 				machine.upload(path);
 			}
 		}
@@ -1431,6 +1521,23 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	    }
 	}
 
+	private String selectInputFile() {
+		File directory = null;
+		String loadDir = Base.preferences.get("ui.open_output_dir", null);
+		if (loadDir != null) { directory = new File(loadDir); }
+		JFileChooser fc = new JFileChooser(directory);
+		fc.setFileFilter(new ExtensionFilter(".s3g","Makerbot build file"));
+		fc.setDialogTitle("Build from Makerbot build file...");
+		fc.setFileHidingEnabled(false);
+		int rv = fc.showOpenDialog(this);
+		if (rv == JFileChooser.APPROVE_OPTION) {
+			Base.preferences.put("ui.open_output_dir",fc.getCurrentDirectory().getAbsolutePath());
+			return fc.getSelectedFile().getAbsolutePath();
+		} else {
+			return null;
+		}
+	}
+
 	public void handleBuildToFile() {
 		if (building)
 			return;
@@ -1455,6 +1562,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 				// start our building thread.
 	
 				buildStart = new Date();
+				updateCodeSource();
 				machine.buildToFile(path);
 			}
 		}
@@ -1497,6 +1605,39 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		}
 	}
 	
+	/**
+	 * Send the machine a build file saved earlier with "Build to file",
+	 * skipping the gcode altogether.
+	 */
+	public void handleReplay() {
+		if (building)
+			return;
+		if (simulating)
+			return;
+
+		if (machine == null || machine.driver == null ||
+				!(machine.driver instanceof SDCardCapture)) {
+			Base.logger.severe("Not ready to build yet.");
+		} else {
+			String path = selectInputFile();
+			if (path != null) {
+				// close stuff.
+				doClose();
+
+				// build specific stuff
+				building = true;
+
+				setEditorBusy(true);
+
+				// start our building thread.
+
+				message("Building...");
+				buildStart = new Date();
+				machine.replay(path);
+			}
+		}
+	}
+
 	private Date buildStart = null;
 	
 	public void machineStateChanged(MachineStateChangeEvent evt) {
@@ -1538,7 +1679,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		// prepare editor window.
 		setVisible(true);
 		textarea.setEnabled(!isBusy);
-		textarea.setEditable(!isBusy);
+		textarea.setEditable(!isBusy && isCodeEditable());
 		if (isBusy) {
 			textarea.selectNone();
 			textarea.scrollTo(0, 0);
@@ -1611,6 +1752,38 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		}
 	}
 
+	class InstantSimulationThread extends SimulationThread {
+		public InstantSimulationThread() {
+			super(MainWindow.this);
+			setName("Instant Simulation Thread");
+		}
+
+		public void run() {
+			message("Simulating...");
+			try {
+				final ToolpathStore toolpaths = InstantSimulation.run(
+						machine.getCodeSource(), machine.loadModel());
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						new SimulationWindow2D(toolpaths);
+					}
+				});
+			} catch (InterruptedException ie) {
+				// stopped
+			} catch (RuntimeException re) {
+				Base.logger.severe("Simulation failed: " + re.getMessage());
+			}
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					// a stopped simulation may already have been replaced
+					if (simulationThread == InstantSimulationThread.this) {
+						simulationOver();
+					}
+				}
+			});
+		}
+	}
+
 	public void handleStop() {
 		// if (building || simulating) // can also be called during panel ops
 		// called by menu or buttons
@@ -1647,6 +1820,15 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		if (machine != null) {
 			machine.stop();
 		}
+		// the instant simulation runs on its own, not on the machine.
+		if (simulationThread instanceof InstantSimulationThread) {
+			simulationThread.interrupt();
+			try {
+				simulationThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		building = false;
 		simulating = false;
 	}
@@ -2194,7 +2376,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		// String currentDir = System.getProperty("user.dir");
 		String referenceFile = null;
 
-		JMenuItem cutItem, copyItem;
+		JMenuItem cutItem, copyItem, pasteItem;
 
 		JMenuItem referenceItem;
 
@@ -2204,6 +2386,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 			cutItem = new JMenuItem("Cut");
 			cutItem.addActionListener(new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
+					if (!isCodeEditable()) return;
 					textarea.cut();
 					build.getCode().setModified(true);
 				}
@@ -2218,14 +2401,15 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 			});
 			this.add(copyItem);
 
-			item = new JMenuItem("Paste");
-			item.addActionListener(new ActionListener() {
+			pasteItem = new JMenuItem("Paste");
+			pasteItem.addActionListener(new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
+					if (!isCodeEditable()) return;
 					textarea.paste();
 					build.getCode().setModified(true);
 				}
 			});
-			this.add(item);
+			this.add(pasteItem);
 
 			item = new JMenuItem("Select All");
 			item.addActionListener(new ActionListener() {
@@ -2249,8 +2433,9 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		// if no text is selected, disable copy and cut menu items
 		public void show(Component component, int x, int y) {
+			pasteItem.setEnabled(isCodeEditable());
 			if (textarea.isSelectionActive()) {
-				cutItem.setEnabled(true);
+				cutItem.setEnabled(isCodeEditable());
 				copyItem.setEnabled(true);
 
 				String sel = textarea.getSelectedText().trim();
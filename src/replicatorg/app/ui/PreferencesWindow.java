@@ -117,6 +117,7 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 		addCheckboxForPref(content,"Honor serial port selection in machines.xml","serial.use_machines",true);
 		addCheckboxForPref(content,"Show experimental machine profiles","machine.showExperimental",false);
 		addCheckboxForPref(content,"Show simulator during builds","build.showSimulator",false);
+		addCheckboxForPref(content,"Merge nearly collinear moves before sending them","replicatorg.parser.coalesce_moves",false);
 
 		content.add(new JLabel("Firmware update URL: "),"split");
 		firmwareUpdateUrlField = new JTextField(34);
@@ -128,7 +129,7 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			JFormattedTextField arcResolutionField = new JFormattedTextField(new Double(value));
 			content.add(arcResolutionField,"wrap");
 			String arcResolutionHelp = "<html><small><em>" +
-				"The arc resolution is the default segment length that the gcode parser will break arc codes <br>"+
+				"The arc resolution is the longest segment that the gcode parser will break arc codes <br>"+
 				"like G2 and G3 into.  Drivers that natively handle arcs will ignore this setting." +
 				"</em></small></html>";
 			content.add(new JLabel(arcResolutionHelp),"growx,wrap");
@@ -148,6 +149,32 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			});
 		}
 		
+		{
+			content.add(new JLabel("Arc tolerance (in mm): "),"split");
+			double value = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
+			JFormattedTextField arcToleranceField = new JFormattedTextField(new Double(value));
+			content.add(arcToleranceField,"wrap");
+			String arcToleranceHelp = "<html><small><em>" +
+				"The furthest a segment of an arc may stray from the true arc.  Small arcs are broken into <br>"+
+				"as few segments as this allows; it is never taken to be finer than half a step of the machine." +
+				"</em></small></html>";
+			content.add(new JLabel(arcToleranceHelp),"growx,wrap");
+			arcToleranceField.setColumns(10);
+			arcToleranceField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Double v = (Double)evt.getNewValue();
+							if (v == null) return;
+							Base.preferences.putDouble("replicatorg.parser.arc_tolerance_mm", v.doubleValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+
 		{
 			JButton b = new JButton("Select Python interpreter...");
 			content.add(b,"spanx,wrap");
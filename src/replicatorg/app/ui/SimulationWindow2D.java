@@ -38,34 +38,69 @@ import java.awt.LayoutManager;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.geom.Rectangle2D;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JComponent;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.vecmath.Point3d;
 
+import replicatorg.app.Base;
+
 public class SimulationWindow2D extends SimulationWindow implements
 		LayoutManager {
 	private static final long serialVersionUID = -1940284103536979587L;
 
 	// these guys are our extra components.
-	protected static BuildView buildView;
+	protected BuildView buildView;
+
+	protected HorizontalRuler hRuler;
 
-	protected static HorizontalRuler hRuler;
+	protected VerticalRuler vRuler;
 
-	protected static VerticalRuler vRuler;
+	// only there when showing a finished simulation.
+	protected JSlider layerSlider = null;
 
 	private int rulerWidth = 25;
 
+	private int sliderWidth = 40;
+
+	/** Draws layers in the background when the view changes. */
+	private static final ExecutorService renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Simulation renderer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	public SimulationWindow2D() {
+		this(null);
+	}
+
+	/**
+	 * A window showing a finished simulation, with a slider to go through
+	 * its layers.
+	 */
+	SimulationWindow2D(ToolpathStore toolpaths) {
 		super();
 		setLayout(this);
-		createComponents();
+		createComponents(toolpaths);
 		// some inits to our build simulation
 		setTitle("2D Build Simulation");
 		setBackground(Color.white);
@@ -74,11 +109,13 @@ public class SimulationWindow2D extends SimulationWindow implements
 		this.setVisible(true);
 
 		// start us off at 0,0,0
-		buildView.queuePoint(new Point3d());
+		if (toolpaths == null) buildView.queuePoint(new Point3d());
+		// nobody else will close a finished one.
+		if (toolpaths != null) setDefaultCloseOperation(DISPOSE_ON_CLOSE);
 		getContentPane().setBackground(Color.white);
 	}
 
-	private void createComponents() {
+	private void createComponents(ToolpathStore toolpaths) {
 		// figure out our content pane size.
 		Container pane = getContentPane();
 		// make our components with those sizes.
@@ -86,8 +123,21 @@ public class SimulationWindow2D extends SimulationWindow implements
 		pane.add(hRuler);
 		vRuler = new VerticalRuler(rulerWidth);
 		pane.add(vRuler);
-		buildView = new BuildView();
+		buildView = new BuildView(toolpaths);
 		pane.add(buildView);
+		if (toolpaths != null && toolpaths.getLayerCount() > 0) {
+			// the first layer at the bottom, starting from the last.
+			int last = toolpaths.getLayerCount() - 1;
+			layerSlider = new JSlider(JSlider.VERTICAL, 0, last, last);
+			layerSlider.setToolTipText("Layer");
+			layerSlider.addChangeListener(new ChangeListener() {
+				public void stateChanged(ChangeEvent e) {
+					buildView.selectLayer(layerSlider.getValue());
+				}
+			});
+			buildView.selectLayer(last);
+			pane.add(layerSlider);
+		}
 		invalidate();
 	}
 
@@ -250,7 +300,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 		}
 
 		protected void drawTicks(Graphics2D g) {
-			double range = SimulationWindow2D.buildView.getXRange();
+			double range = buildView.getXRange();
 			if (range < 0.01) {
 				return;
 			}
@@ -268,7 +318,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 			// loop thru all positive increments while we're in bounds
 			do {
 				real = i * increment;
-				point = SimulationWindow2D.buildView.convertRealXToPointX(real) - 1;
+				point = buildView.convertRealXToPointX(real) - 1;
 
 				if (i % 10 == 0) {
 					length = rulerWidth;
@@ -287,7 +337,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 			i = 0;
 			do {
 				real = i * increment;
-				point = SimulationWindow2D.buildView.convertRealXToPointX(real) - 1;
+				point = buildView.convertRealXToPointX(real) - 1;
 
 				if (i % 10 == 0) {
 					length = rulerWidth;
@@ -332,7 +382,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 		}
 
 		protected void drawTicks(Graphics2D g) {
-			double range = SimulationWindow2D.buildView.getYRange();
+			double range = buildView.getYRange();
 			if (range < 0.01)
 				return;
 			int height = getHeight();
@@ -348,7 +398,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 			// loop thru all positive increments while we're in bounds
 			do {
 				real = i * increment;
-				point = SimulationWindow2D.buildView.convertRealYToPointY(real) - 1;
+				point = buildView.convertRealYToPointY(real) - 1;
 
 				if (i % 10 == 0) {
 					length = rulerWidth;
@@ -366,7 +416,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 			i = 0;
 			do {
 				real = i * increment;
-				point = SimulationWindow2D.buildView.convertRealYToPointY(real) - 1;
+				point = buildView.convertRealYToPointY(real) - 1;
 
 				if (i % 10 == 0) {
 					length = rulerWidth;
@@ -399,39 +449,175 @@ public class SimulationWindow2D extends SimulationWindow implements
 
 		private double ratio = 1.0;
 
-		private Vector<Point3d> points;
+		// how far we're zoomed in, and panned from the build's corner in mm.
+		private double zoom = 1.0;
+
+		private double panX = 0.0;
+
+		private double panY = 0.0;
+
+		private final ToolpathStore toolpaths;
+
+		// the layer picked with the slider, if any; otherwise we show the
+		// one the tool is on.
+		private ToolpathStore.Layer selected = null;
+
+		/** Repaints whatever changed, at most once a frame. */
+		private final Timer frameTimer;
+
+		// what the last frame showed: the layer, how much of it, and the view.
+		private ToolpathStore.Layer shownLayer = null;
+		private int shownCount = 0;
+		private int shownArrivals = 0;
+		private LayerCanvas.View shownView = null;
 
-		public BuildView() {
+		// the newest moves fade from green to black over this many moves;
+		// they're drawn straight to the screen, everything older into the
+		// layer's canvas.
+		private static final int FADE = 85;
+		private final Color[] fade = new Color[FADE];
+
+		// pictures of the last few layers shown, kept for when the tool
+		// goes back to one; only touched on the event thread.
+		private static final int CANVASES = 3;
+		private final LinkedHashMap<ToolpathStore.Layer,LayerCanvas> canvases =
+			new LinkedHashMap<ToolpathStore.Layer,LayerCanvas>(CANVASES + 1, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<ToolpathStore.Layer,LayerCanvas> eldest) {
+					return size() > CANVASES;
+				}
+			};
+
+		// the picture being drawn in the background, if any.
+		private ToolpathStore.Layer renderingLayer = null;
+		private LayerCanvas.View renderingView = null;
+		private volatile int renders = 0;
+
+		// the area the helper text is drawn in.
+		private static final int TEXT_HEIGHT = 70;
+
+		private final Font font = new Font("SansSerif", Font.PLAIN, 14);
+
+		/**
+		 * @param finished the moves of a finished simulation to show, or
+		 * null to show them as they're queued.
+		 */
+		public BuildView(ToolpathStore finished) {
 			// setup our listeners.
 			addMouseMotionListener(this);
+			addMouseListener(new MouseAdapter() {
+				public void mouseClicked(MouseEvent e) {
+					// back to the whole build
+					if (e.getClickCount() == 2) {
+						synchronized (toolpaths) {
+							zoom = 1.0;
+							panX = panY = 0.0;
+						}
+						nextFrame();
+					}
+				}
+			});
+			addMouseWheelListener(new MouseWheelListener() {
+				public void mouseWheelMoved(MouseWheelEvent e) {
+					zoom(Math.pow(1.25, -e.getWheelRotation()), e.getX(), e.getY());
+				}
+			});
 
 			// init our bounds.
 			minimum = new Point3d();
 			maximum = new Point3d();
 			currentZ = 0.0;
 
-			// initialize our vector
-			points = new Vector<Point3d>();
+			if (finished != null) {
+				toolpaths = finished;
+				Rectangle2D.Double bounds = finished.getBounds();
+				minimum.x = Math.min(0, bounds.getMinX());
+				minimum.y = Math.min(0, bounds.getMinY());
+				maximum.x = Math.max(0, bounds.getMaxX());
+				maximum.y = Math.max(0, bounds.getMaxY());
+			} else {
+				toolpaths = new ToolpathStore();
+			}
+
+			for (int i = 0; i < FADE; i++) {
+				fade[i] = new Color(0, 255 - 3 * i, 0);
+			}
+
+			int frameMillis = Base.preferences.getInt("ui.simulation_frame_ms", 40);
+			frameTimer = new Timer(frameMillis, new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					nextFrame();
+				}
+			});
+			frameTimer.start();
+		}
+
+		/**
+		 * Stop repainting for good.
+		 */
+		void stopFrames() {
+			frameTimer.stop();
 		}
 
 		public void mouseMoved(MouseEvent e) {
 			mouseX = e.getX();
 			mouseY = e.getY();
 
-			SimulationWindow2D.hRuler.setMousePosition(mouseX);
-			SimulationWindow2D.vRuler.setMousePosition(mouseY);
+			hRuler.setMousePosition(mouseX);
+			vRuler.setMousePosition(mouseY);
 
 			//repaint();
 		}
 
 		public void mouseDragged(MouseEvent e) {
+			// drag the view along with the mouse.
+			synchronized (toolpaths) {
+				double scale = ratio * zoom;
+				if (scale > 0 && !Double.isInfinite(scale)) {
+					panX -= (e.getX() - mouseX) / scale;
+					panY -= (e.getY() - mouseY) / scale;
+				}
+			}
+
 			mouseX = e.getX();
 			mouseY = e.getY();
 
-			SimulationWindow2D.hRuler.setMousePosition(mouseX);
-			SimulationWindow2D.vRuler.setMousePosition(mouseY);
+			hRuler.setMousePosition(mouseX);
+			vRuler.setMousePosition(mouseY);
 
-			//repaint();
+			nextFrame();
+		}
+
+		/**
+		 * Zoom in or out, keeping the point under the mouse where it is.
+		 */
+		private void zoom(double factor, int x, int y) {
+			synchronized (toolpaths) {
+				double scale = ratio * zoom;
+				if (scale <= 0 || Double.isInfinite(scale)) return;
+				double realX = minimum.x + panX + x / scale;
+				double realY = minimum.y + panY + y / scale;
+				zoom = Math.max(1.0 / 16, Math.min(256, zoom * factor));
+				scale = ratio * zoom;
+				panX = realX - x / scale - minimum.x;
+				panY = realY - y / scale - minimum.y;
+			}
+			nextFrame();
+		}
+
+		/**
+		 * Show the given layer, in the order they were visited, rather than
+		 * the one the tool is on.
+		 */
+		void selectLayer(int index) {
+			synchronized (toolpaths) {
+				selected = toolpaths.getLayer(index);
+			}
+			nextFrame();
+		}
+
+		/** The layer to draw.  Must be called with the store's lock held. */
+		private ToolpathStore.Layer getShownLayer() {
+			return selected != null ? selected : toolpaths.getCurrentLayer();
 		}
 
 		public Point3d getMinimum() {
@@ -443,53 +629,164 @@ public class SimulationWindow2D extends SimulationWindow implements
 		}
 
 		public void queuePoint(Point3d point) {
-			current = new Point3d(point);
-
-			// System.out.println("queued: " + point.toString());
-
-			if (point.x < minimum.x)
-				minimum.x = point.x;
-			if (point.y < minimum.y)
-				minimum.y = point.y;
-			if (point.z < minimum.z)
-				minimum.z = point.z;
-
-			if (point.x > maximum.x)
-				maximum.x = point.x;
-			if (point.y > maximum.y)
-				maximum.y = point.y;
-			if (point.z > maximum.z)
-				maximum.z = point.z;
-
-			Point3d myPoint = new Point3d(point);
-			synchronized (points) {
-				points.addElement(myPoint);
+			synchronized (toolpaths) {
+				current = new Point3d(point);
+
+				// System.out.println("queued: " + point.toString());
+
+				if (point.x < minimum.x)
+					minimum.x = point.x;
+				if (point.y < minimum.y)
+					minimum.y = point.y;
+				if (point.z < minimum.z)
+					minimum.z = point.z;
+
+				if (point.x > maximum.x)
+					maximum.x = point.x;
+				if (point.y > maximum.y)
+					maximum.y = point.y;
+				if (point.z > maximum.z)
+					maximum.z = point.z;
+
+				toolpaths.add(point);
+
+				currentZ = point.z;
+
+				// set our machine position
+				hRuler
+						.setMachinePosition(convertRealXToPointX(point.x));
+				vRuler
+						.setMachinePosition(convertRealYToPointY(point.y));
 			}
+			// the frame timer takes it from here.
+		}
 
-			currentZ = point.z;
+		void setSimulationBounds(Rectangle2D.Double bounds) {
+			synchronized (toolpaths) {
+				maximum.x = bounds.getMaxX();
+				minimum.x = bounds.getMinX();
+				maximum.y = bounds.getMaxY();
+				minimum.y = bounds.getMinY();
+			}
+		}
 
-			calculateRatio();
+		/** The view as it stands.  Must be called with the store's lock held. */
+		private LayerCanvas.View getView() {
+			return new LayerCanvas.View(ratio * zoom, minimum.x + panX,
+					minimum.y + panY, getWidth(), getHeight());
+		}
 
-			// set our machine position
-			SimulationWindow2D.hRuler
-					.setMachinePosition(convertRealXToPointX(point.x));
-			SimulationWindow2D.vRuler
-					.setMachinePosition(convertRealYToPointY(point.y));
+		/**
+		 * Bring the current layer's canvas up to date, and repaint what has
+		 * changed since the last frame: everything if the layer or the view
+		 * has, otherwise the new moves, the moves they fade, and the helper
+		 * text.
+		 */
+		private void nextFrame() {
+			Rectangle2D.Float changed = null;
+			LayerCanvas.View view;
+			synchronized (toolpaths) {
+				calculateRatio(); // we may have been resized, or grown
+				view = getView();
+				ToolpathStore.Layer layer = getShownLayer();
+				if (layer == null || !view.isValid()) return;
+
+				LayerCanvas canvas = canvases.get(layer);
+				if (canvas != null && canvas.view.equals(view)) {
+					canvas.drawTo(layer.snapshot(), layer.getCount() - FADE);
+				} else if (layer != renderingLayer || !view.equals(renderingView)) {
+					render(layer, view);
+				}
 
-			buildView.repaint();
+				if (layer == shownLayer && view.equals(shownView)) {
+					if (layer.getCount() == shownCount && layer.getArrivalCount() == shownArrivals) {
+						return;
+					}
+					changed = layer.getBounds(shownCount - FADE, shownArrivals);
+				}
+				boolean moved = !view.equals(shownView);
+				shownLayer = layer;
+				shownCount = layer.getCount();
+				shownArrivals = layer.getArrivalCount();
+				shownView = view;
+				if (changed == null) {
+					repaint();
+					if (moved) {
+						hRuler.repaint();
+						vRuler.repaint();
+					}
+					return;
+				}
+			}
+			Rectangle dirty = new Rectangle(0, 0, getWidth(), TEXT_HEIGHT);
+			// leave room for the arrival markers.
+			int x0 = view.toPointX(changed.x) - 6;
+			int y0 = view.toPointY(changed.y) - 6;
+			int x1 = view.toPointX(changed.x + changed.width) + 7;
+			int y1 = view.toPointY(changed.y + changed.height) + 7;
+			dirty.add(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+			repaint(dirty);
+		}
+
+		/**
+		 * Draw a layer's canvas for a view in the background.  Only the
+		 * latest one asked for is kept.  The moves the layer has when
+		 * drawing starts are drawn without the store's lock, so the machine
+		 * thread can keep adding to it; nextFrame() draws the rest.
+		 */
+		private void render(final ToolpathStore.Layer layer, final LayerCanvas.View view) {
+			renderingLayer = layer;
+			renderingView = view;
+			final int render = ++renders;
+			renderer.execute(new Runnable() {
+				public void run() {
+					if (render != renders) return; // there's a newer one
+					final LayerCanvas canvas = new LayerCanvas(layer, view);
+					ToolpathStore.Snapshot snapshot;
+					synchronized (toolpaths) {
+						snapshot = layer.snapshot();
+					}
+					canvas.drawTo(snapshot, snapshot.getCount() - FADE);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (render != renders) return;
+							renderingLayer = null;
+							renderingView = null;
+							canvases.put(layer, canvas);
+							repaint();
+						}
+					});
+				}
+			});
 		}
 
 		public void paint(Graphics g) {
+			Rectangle clip = g.getClipBounds();
+			if (clip == null) {
+				clip = new Rectangle(0, 0, getWidth(), getHeight());
+			}
 			// clear it
 			g.setColor(Color.white);
-			g.fillRect(0, 0, getWidth(), getHeight());
-			// g.clearRect(0, 0, width, height);
-
-			// draw our text
-			drawHelperText(g);
+			g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+			synchronized (toolpaths) {
+				LayerCanvas.View view = getView();
+				ToolpathStore.Layer layer = getShownLayer();
+				if (layer != null && view.isValid()) {
+					// what we have a picture of, and then the rest.
+					LayerCanvas canvas = canvases.get(layer);
+					int moves = 0, arrivals = 0;
+					if (canvas != null) {
+						canvas.paint(g, view);
+						moves = canvas.getMoves();
+						arrivals = canvas.getArrivals();
+					}
+					drawToolpaths(g, clip, view, layer, moves, arrivals);
+				}
 
-			// draw our main stuff
-			drawLastPoints(g);
+				// draw our text
+				drawHelperText(g);
+			}
 		}
 
 		private void drawHelperText(Graphics g) {
@@ -499,9 +796,15 @@ public class SimulationWindow2D extends SimulationWindow implements
 					RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
 			g2.setPaint(Color.black);
 			// draw some helper text.
-			g.setFont(new Font("SansSerif", Font.PLAIN, 14));
+			g.setFont(font);
 			g.setColor(Color.black);
-			g.drawString("Layer at z: " + currentZ + "mm", 10, 20);
+			if (selected != null) {
+				g.drawString("Layer at z: " + selected.getZ() + "mm ("
+						+ (toolpaths.indexOf(selected) + 1) + " of "
+						+ toolpaths.getLayerCount() + ")", 10, 20);
+			} else {
+				g.drawString("Layer at z: " + currentZ + "mm", 10, 20);
+			}
 
 			// draw our mouse position
 			double mouseRealX = convertPointXToRealX(mouseX);
@@ -514,262 +817,70 @@ public class SimulationWindow2D extends SimulationWindow implements
 			}
 		}
 
-		private void drawLastPoints(Graphics g) {
-			Color aboveColor = new Color(255, 0, 0);
-			Color currentColor = new Color(0, 255, 0);
-			Color belowColor = new Color(0, 0, 255);
-
-			synchronized (points) {
-				List<Point3d> lastPoints = getLastPoints(1000);
-				Point3d start;
-				Point3d end;
-
-				double belowZ = currentZ;
-				double aboveZ = currentZ;
-
-				// color coding.
-				int aboveTotal = 0;
-				int belowTotal = 0;
-				int currentTotal = 0;
-				int aboveCount = 0;
-				int belowCount = 0;
-				int currentCount = 0;
-
-				// draw our toolpaths.
-				if (lastPoints.size() > 0) {
-					start = (Point3d) lastPoints.get(0);
-
-					// start from the most recent line backwards to find the
-					// above/below layers.
-					for (int i = lastPoints.size() - 1; i >= 0; i--) {
-						end = (Point3d) lastPoints.get(i);
-
-						if (!start.equals(end)) {
-							// line below current plane
-							if (end.z < currentZ) {
-								// we only want one layer up/down
-								if (end.z < belowZ && belowZ != currentZ)
-									continue;
-
-								belowZ = end.z;
-								belowTotal++;
-							}
-							// line above current plane
-							else if (end.z > currentZ) {
-								// we only want one layer up/down
-								if (end.z > aboveZ && aboveZ != currentZ)
-									continue;
-
-								aboveZ = end.z;
-								aboveTotal++;
-							}
-							// current line.
-							else if (end.z == currentZ) {
-								currentTotal++;
-							} else
-								continue;
-
-							start = new Point3d(end);
-						}
-					}
-
-					// draw all our lines now!
-					for (ListIterator<Point3d> li = lastPoints.listIterator(); li
-							.hasNext();) {
-						end = li.next();
-
-						// we have to move somewhere!
-						if (!start.equals(end)) {
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
-							int colorValue;
-
-							// line below current plane
-							if (end.z < currentZ && end.z >= belowZ) {
-								belowCount++;
-
-								colorValue = 255 - 3 * (belowTotal - belowCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								belowColor = new Color(0, 0, colorValue);
-								g.setColor(belowColor);
-							}
-							// line above current plane
-							if (end.z > currentZ && end.z <= aboveZ) {
-								aboveCount++;
-
-								colorValue = 255 - 3 * (aboveTotal - aboveCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								aboveColor = new Color(colorValue, 0, 0);
-								g.setColor(aboveColor);
-							}
-							// line in current plane
-							else if (end.z == currentZ) {
-								currentCount++;
-
-								colorValue = 255 - 3 * (currentTotal - currentCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								currentColor = new Color(0, colorValue, 0);
-								g.setColor(currentColor);
-							}
-							// bail, your'e not on our plane.
-							else
-								continue;
-
-							// draw up arrow
-							if (end.z > start.z) {
-								g.setColor(Color.red);
-								g.drawOval(startX - 5, startY - 5, 10, 10);
-								g.drawLine(startX - 5, startY, startX + 5,
-										startY);
-								g.drawLine(startX, startY - 5, startX,
-										startY + 5);
-							}
-							// draw down arrow
-							else if (end.z < start.z) {
-								g.setColor(Color.blue);
-								g.drawOval(startX - 5, startY - 5, 10, 10);
-								g.drawOval(startX - 1, startY - 1, 2, 2);
-							}
-							// normal XY line - only draw lines on current layer
-							// or above.
-							else if (end.z >= currentZ) {
-								g.drawLine(startX, startY, endX, endY);
-							}
-
-							start = new Point3d(end);
-						}
-					}
-
-					/*
-					 * System.out.println("counts:");
-					 * System.out.println(belowCount + " / " + belowTotal);
-					 * System.out.println(aboveCount + " / " + aboveTotal);
-					 * System.out.println(currentCount + " / " + currentTotal);
-					 */
-				}
-			}
-		}
-
-		private List<Point3d> getLastPoints(int count) {
-			synchronized (points) {
-				int index = Math.max(0, points.size() - count);
-
-				List<Point3d> mypoints = points.subList(index, points.size());
-
-				return mypoints;
-			}
-		}
-
-		@SuppressWarnings("unused")
-		private void drawToolpaths(Graphics g) {
-			Vector<Vector<Point3d>> toolpaths = getLayerPaths(currentZ);
-			Point3d start = new Point3d();
-			Point3d end = new Point3d();
-
-			// System.out.println("toolpaths:" + toolpaths.size());
-
-			// draw our toolpaths.
-			if (toolpaths.size() > 0) {
-				for (Enumeration<Vector<Point3d>> e = toolpaths.elements(); e.hasMoreElements();) {
-					Vector<Point3d> path = e.nextElement();
-					// System.out.println("path points:" + path.size());
-
-					if (path.size() > 1) {
-						g.setColor(Color.black);
-						start = (Point3d) path.firstElement();
-
-						for (Enumeration<Point3d> e2 = path.elements(); e2
-								.hasMoreElements();) {
-							end = (Point3d) e2.nextElement();
-
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
-
-							// System.out.println("line from: " + startX + ", "
-							// + startY + " to " + endX + ", " + endY);
-							g.drawLine(startX, startY, endX, endY);
-
-							start = new Point3d(end);
-						}
-					}
-				}
-			}
-		}
-
-		private Vector<Vector<Point3d>> getLayerPaths(double layerZ) {
-			Vector<Vector<Point3d>> paths = new Vector<Vector<Point3d>>();
-			Vector<Point3d> path = new Vector<Point3d>();
-			Point3d p;
-
-			synchronized (points) {
-				for (Enumeration<Point3d> e = points.elements(); e
-						.hasMoreElements();) {
-					p = e.nextElement();
-
-					// is this on our current layer?
-					if (p.z == layerZ) {
-						path.addElement(p);
-						// System.out.println("added: " + p.toString());
-					}
-					// okay, not on layer... did we find a path?
-					else if (path.size() > 0) {
-						// System.out.println("added path of size " +
-						// path.size());
-						paths.addElement(path);
-						path = new Vector<Point3d>();
-					}
+		/**
+		 * Draw the moves and arrivals of a layer from the given ones on,
+		 * where they may show in the clip; the newest moves in green.
+		 */
+		private void drawToolpaths(final Graphics g, Rectangle clip, final LayerCanvas.View view,
+				ToolpathStore.Layer layer, int moves, int arrivals) {
+			// the clip in mm, with a marker's width to spare.
+			float x0 = (float)(view.x + (clip.x - 6) / view.scale);
+			float y0 = (float)(view.y + (clip.y - 6) / view.scale);
+			float x1 = (float)(view.x + (clip.x + clip.width + 6) / view.scale);
+			float y1 = (float)(view.y + (clip.y + clip.height + 6) / view.scale);
+
+			final int newest = layer.getCount() - 1;
+			layer.visit(x0, y0, x1, y1, moves, newest + 1, new ToolpathStore.Visitor() {
+				public void move(int index, float ax, float ay, float bx, float by) {
+					int age = newest - index;
+					g.setColor(age < FADE ? fade[age] : Color.black);
+					g.drawLine(view.toPointX(ax), view.toPointY(ay),
+							view.toPointX(bx), view.toPointY(by));
 				}
+			});
+
+			for (int i = arrivals; i < layer.getArrivalCount(); i++) {
+				float x = layer.getArrivalX(i);
+				float y = layer.getArrivalY(i);
+				if (x < x0 || x > x1 || y < y0 || y > y1) continue;
+				LayerCanvas.drawArrival(g, view.toPointX(x), view.toPointY(y),
+						layer.isArrivalFromBelow(i));
 			}
-
-			// did we end on our current path?
-			if (path.size() > 0)
-				paths.addElement(path);
-
-			return paths;
 		}
 
 		private void calculateRatio() {
 			// calculate the ratios that will keep us inside our box
-			double yRatio = (getWidth()) / (maximum.y - minimum.y);
-			double xRatio = (getHeight()) / (maximum.x - minimum.x);
+			double xRatio = (getWidth()) / (maximum.x - minimum.x);
+			double yRatio = (getHeight()) / (maximum.y - minimum.y);
 
 			// which one is smallest?
 			ratio = Math.min(yRatio, xRatio);
 		}
 
+		/** The width of the area in view, in mm. */
 		public double getXRange() {
-			return maximum.x - minimum.x;
+			return (maximum.x - minimum.x) / zoom;
 		}
 
+		/** The height of the area in view, in mm. */
 		public double getYRange() {
-			return maximum.y - minimum.y;
+			return (maximum.y - minimum.y) / zoom;
 		}
 
 		public int convertRealXToPointX(double x) {
-			return (int) ((x - minimum.x) * ratio);
+			return (int) ((x - minimum.x - panX) * ratio * zoom);
 		}
 
 		public double convertPointXToRealX(int x) {
-			return (Math.round(((x / ratio) - minimum.x) * 100) / 100);
+			return Math.round((minimum.x + panX + x / (ratio * zoom)) * 100) / 100.0;
 		}
 
 		public int convertRealYToPointY(double y) {
-			// subtract from getheight to get a normal origin.
-			return ((int) ((y - minimum.y) * ratio));
+			return (int) ((y - minimum.y - panY) * ratio * zoom);
 		}
 
 		public double convertPointYToRealY(int y) {
-			return (Math.round((maximum.y - (y / ratio)) * 100) / 100);
+			return Math.round((minimum.y + panY + y / (ratio * zoom)) * 100) / 100.0;
 		}
 	}
 
@@ -791,8 +902,14 @@ public class SimulationWindow2D extends SimulationWindow implements
 		Rectangle vRuleBounds = new Rectangle(0, rulerWidth, rulerWidth + 1,
 				height - rulerWidth);
 		vRuler.setBounds(vRuleBounds);
+		int viewWidth = (width - rulerWidth) - 1;
+		if (layerSlider != null) {
+			viewWidth -= sliderWidth;
+			layerSlider.setBounds(width - sliderWidth, rulerWidth + 1,
+					sliderWidth, (height - rulerWidth) - 1);
+		}
 		Rectangle viewBounds = new Rectangle(rulerWidth + 1, rulerWidth + 1,
-				(width - rulerWidth) - 1, (height - rulerWidth) - 1);
+				viewWidth, (height - rulerWidth) - 1);
 		buildView.setBounds(viewBounds);
 	}
 
@@ -809,13 +926,12 @@ public class SimulationWindow2D extends SimulationWindow implements
 
 	public void setSimulationBounds(Rectangle2D.Double bounds) {
 		this.simulationBounds = bounds;
-		buildView.maximum.x = bounds.getMaxX();
-		buildView.minimum.x = bounds.getMinX();
-		buildView.maximum.y = bounds.getMaxY();
-		buildView.minimum.y = bounds.getMinY();
-		buildView.calculateRatio();
-		hRuler.repaint();
-		vRuler.repaint();
+		buildView.setSimulationBounds(bounds);
+	}
+
+	public void dispose() {
+		buildView.stopFrames();
+		super.dispose();
 	}
 
 }
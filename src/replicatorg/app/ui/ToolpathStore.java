@@ -0,0 +1,335 @@
+package replicatorg.app.ui;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+/**
+ * The moves of a simulated build, kept by layer for drawing.  A layer is
+ * every move made at one height, as four floats a move in one growing
+ * array, so a long build takes a fraction of the memory a Point3d a move
+ * did.  Each layer also sorts its moves into a grid of square cells, so
+ * that drawing part of the view only looks at the moves that might show
+ * in it.
+ *
+ * Moves are added on the machine thread, holding the store's lock, and a
+ * Layer must only be read with it held.  The event thread holds it just
+ * long enough to draw the newest moves of the layer shown; a whole layer
+ * takes too long to hold up the machine thread for, so it's drawn in the
+ * background from a Snapshot, which needs no lock.
+ */
+class ToolpathStore {
+	/** The side of a grid cell, in mm. */
+	private static final float CELL = 10f;
+
+	/** Hears about the moves of a layer that fall in an area. */
+	interface Visitor {
+		/**
+		 * @param index the move's place in its layer, oldest first
+		 */
+		void move(int index, float x0, float y0, float x1, float y1);
+	}
+
+	/** A growable list of ints. */
+	private static class IntList {
+		int[] values = new int[8];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				int[] bigger = new int[size * 2];
+				System.arraycopy(values, 0, bigger, 0, size);
+				values = bigger;
+			}
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * The moves and arrivals a layer had when the snapshot was taken,
+	 * which can be read without the store's lock.  A layer only ever
+	 * appends to its arrays, and replaces them when they grow, so the part
+	 * a snapshot covers never changes.
+	 */
+	static final class Snapshot {
+		private final float[] moves;
+		private final int count;
+		private final float[] arrivals;
+		private final int arrivalCount;
+
+		private Snapshot(float[] moves, int count, float[] arrivals, int arrivalCount) {
+			this.moves = moves;
+			this.count = count;
+			this.arrivals = arrivals;
+			this.arrivalCount = arrivalCount;
+		}
+
+		public int getCount() { return count; }
+
+		public int getArrivalCount() { return arrivalCount; }
+
+		public float getArrivalX(int i) { return arrivals[i * 3]; }
+
+		public float getArrivalY(int i) { return arrivals[i * 3 + 1]; }
+
+		public boolean isArrivalFromBelow(int i) { return arrivals[i * 3 + 2] > 0; }
+
+		/**
+		 * Visit the moves from index first up to end that may cross the
+		 * given area, oldest first.  There's no grid to go by, so every
+		 * move in the range is looked at.
+		 */
+		public void visit(float x0, float y0, float x1, float y1, int first, int end, Visitor v) {
+			end = Math.min(end, count);
+			for (int i = Math.max(0, first); i < end; i++) {
+				int m = i * 4;
+				if (Math.max(moves[m], moves[m + 2]) < x0 || Math.min(moves[m], moves[m + 2]) > x1) continue;
+				if (Math.max(moves[m + 1], moves[m + 3]) < y0 || Math.min(moves[m + 1], moves[m + 3]) > y1) continue;
+				v.move(i, moves[m], moves[m + 1], moves[m + 2], moves[m + 3]);
+			}
+		}
+	}
+
+	/** The moves made at one height. */
+	static class Layer {
+		private final double z;
+		// x0, y0, x1, y1 of each move, in the order made.
+		private float[] moves = new float[256];
+		private int count = 0;
+		// x, y of each move onto this layer from another, and +1 if it came
+		// up from below, -1 if down from above.
+		private float[] arrivals = new float[24];
+		private int arrivalCount = 0;
+
+		private float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		private float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+		// the moves inside each cell, and those that cross cells.
+		private final HashMap<Long,IntList> cells = new HashMap<Long,IntList>();
+		private final IntList wide = new IntList();
+		// the last cell added to; moves mostly stay in one for a while.
+		private long lastKey = Long.MIN_VALUE;
+		private IntList lastCell = null;
+
+		Layer(double z) {
+			this.z = z;
+		}
+
+		public double getZ() { return z; }
+
+		/** The area the layer's moves cover; empty if there are none. */
+		public Rectangle2D.Float getBounds() {
+			if (count == 0) return new Rectangle2D.Float();
+			return new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+		}
+
+		/** The number of moves in the layer. */
+		public int getCount() { return count; }
+
+		/**
+		 * The layer as it is now, to read without the lock.  Must be called
+		 * with the store's lock held.
+		 */
+		public Snapshot snapshot() {
+			return new Snapshot(moves, count, arrivals, arrivalCount);
+		}
+
+		public int getArrivalCount() { return arrivalCount; }
+
+		public float getArrivalX(int i) { return arrivals[i * 3]; }
+
+		public float getArrivalY(int i) { return arrivals[i * 3 + 1]; }
+
+		/** Whether the i'th arrival came up from the layer below. */
+		public boolean isArrivalFromBelow(int i) { return arrivals[i * 3 + 2] > 0; }
+
+		private void add(float x0, float y0, float x1, float y1) {
+			if (count * 4 == moves.length) {
+				float[] bigger = new float[moves.length * 2];
+				System.arraycopy(moves, 0, bigger, 0, moves.length);
+				moves = bigger;
+			}
+			int i = count * 4;
+			moves[i] = x0;
+			moves[i + 1] = y0;
+			moves[i + 2] = x1;
+			moves[i + 3] = y1;
+
+			minX = Math.min(minX, Math.min(x0, x1));
+			minY = Math.min(minY, Math.min(y0, y1));
+			maxX = Math.max(maxX, Math.max(x0, x1));
+			maxY = Math.max(maxY, Math.max(y0, y1));
+
+			int cx = cell(x0), cy = cell(y0);
+			if (cx == cell(x1) && cy == cell(y1)) {
+				long key = key(cx, cy);
+				if (key != lastKey) {
+					lastCell = cells.get(key);
+					if (lastCell == null) {
+						lastCell = new IntList();
+						cells.put(key, lastCell);
+					}
+					lastKey = key;
+				}
+				lastCell.add(count);
+			} else {
+				wide.add(count);
+			}
+			count++;
+		}
+
+		private void arrive(float x, float y, boolean fromBelow) {
+			if (arrivalCount * 3 == arrivals.length) {
+				float[] bigger = new float[arrivals.length * 2];
+				System.arraycopy(arrivals, 0, bigger, 0, arrivals.length);
+				arrivals = bigger;
+			}
+			int i = arrivalCount * 3;
+			arrivals[i] = x;
+			arrivals[i + 1] = y;
+			arrivals[i + 2] = fromBelow ? 1 : -1;
+			arrivalCount++;
+		}
+
+		/**
+		 * The area covered by the moves from index first on, and the
+		 * arrivals from index firstArrival on; null if there are none.
+		 */
+		public Rectangle2D.Float getBounds(int first, int firstArrival) {
+			float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE;
+			float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+			for (int m = Math.max(0, first) * 4; m < count * 4; m += 2) {
+				x0 = Math.min(x0, moves[m]);
+				x1 = Math.max(x1, moves[m]);
+				y0 = Math.min(y0, moves[m + 1]);
+				y1 = Math.max(y1, moves[m + 1]);
+			}
+			for (int a = Math.max(0, firstArrival) * 3; a < arrivalCount * 3; a += 3) {
+				x0 = Math.min(x0, arrivals[a]);
+				x1 = Math.max(x1, arrivals[a]);
+				y0 = Math.min(y0, arrivals[a + 1]);
+				y1 = Math.max(y1, arrivals[a + 1]);
+			}
+			if (x0 > x1) return null;
+			return new Rectangle2D.Float(x0, y0, x1 - x0, y1 - y0);
+		}
+
+		/**
+		 * Visit the moves from index first up to end that may cross the
+		 * given area; moves in one cell are visited oldest first, but moves
+		 * that cross cells may come out of order.
+		 */
+		public void visit(float x0, float y0, float x1, float y1, int first, int end, Visitor v) {
+			end = Math.min(end, count);
+			if (first >= end) return;
+			if (count == 0 || x1 < minX || x0 > maxX || y1 < minY || y0 > maxY) return;
+			if (x0 <= minX && y0 <= minY && x1 >= maxX && y1 >= maxY) {
+				// the whole layer is in view; no need for the grid.
+				for (int i = first; i < end; i++) visit(i, v);
+				return;
+			}
+			int cx0 = cell(Math.max(x0, minX)), cx1 = cell(Math.min(x1, maxX));
+			int cy0 = cell(Math.max(y0, minY)), cy1 = cell(Math.min(y1, maxY));
+			for (int cx = cx0; cx <= cx1; cx++) {
+				for (int cy = cy0; cy <= cy1; cy++) {
+					IntList list = cells.get(key(cx, cy));
+					if (list != null) visit(list, first, end, v);
+				}
+			}
+			for (int j = 0; j < wide.size; j++) {
+				int i = wide.values[j];
+				if (i < first || i >= end) continue;
+				int m = i * 4;
+				if (Math.max(moves[m], moves[m + 2]) < x0 || Math.min(moves[m], moves[m + 2]) > x1) continue;
+				if (Math.max(moves[m + 1], moves[m + 3]) < y0 || Math.min(moves[m + 1], moves[m + 3]) > y1) continue;
+				visit(i, v);
+			}
+		}
+
+		private void visit(IntList list, int first, int end, Visitor v) {
+			for (int j = 0; j < list.size; j++) {
+				int i = list.values[j];
+				if (i >= end) break;
+				if (i >= first) visit(i, v);
+			}
+		}
+
+		private void visit(int i, Visitor v) {
+			int m = i * 4;
+			v.move(i, moves[m], moves[m + 1], moves[m + 2], moves[m + 3]);
+		}
+
+		private static int cell(float f) {
+			return (int)Math.floor(f / CELL);
+		}
+
+		private static long key(int cx, int cy) {
+			return ((long)cx << 32) | (cy & 0xffffffffL);
+		}
+	}
+
+	// every layer, in the order they were first visited, and by height.
+	private final List<Layer> layers = new ArrayList<Layer>();
+	private final HashMap<Double,Layer> byHeight = new HashMap<Double,Layer>();
+
+	private Point3d last = null;
+	private Layer current = null;
+
+	/**
+	 * Add a move from the last point to this one.  The first point only
+	 * sets where the first move starts.
+	 */
+	public synchronized void add(Point3d p) {
+		Layer layer = byHeight.get(p.z);
+		if (layer == null) {
+			layer = new Layer(p.z);
+			layers.add(layer);
+			byHeight.put(p.z, layer);
+		}
+		if (last != null) {
+			// a move between layers is only marked where it starts.
+			if (last.z != p.z) {
+				layer.arrive((float)last.x, (float)last.y, last.z < p.z);
+			} else if (last.x != p.x || last.y != p.y) {
+				layer.add((float)last.x, (float)last.y, (float)p.x, (float)p.y);
+			}
+		} else {
+			last = new Point3d();
+		}
+		last.set(p);
+		current = layer;
+	}
+
+	/** The layer of the last point added, or null if there isn't one. */
+	public synchronized Layer getCurrentLayer() {
+		return current;
+	}
+
+	public synchronized int getLayerCount() {
+		return layers.size();
+	}
+
+	/** The i'th layer to be visited. */
+	public synchronized Layer getLayer(int i) {
+		return layers.get(i);
+	}
+
+	/** Where the layer comes in the order they were visited, or -1. */
+	public synchronized int indexOf(Layer layer) {
+		return layers.indexOf(layer);
+	}
+
+	/**
+	 * The area covered by every move so far, and the start.
+	 */
+	public synchronized Rectangle2D.Double getBounds() {
+		Rectangle2D.Double bounds = new Rectangle2D.Double();
+		for (Layer layer : layers) {
+			if (layer.getCount() > 0) bounds.add(layer.getBounds());
+		}
+		return bounds;
+	}
+}
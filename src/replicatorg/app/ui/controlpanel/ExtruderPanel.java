@@ -402,13 +402,13 @@ public class ExtruderPanel extends JPanel implements FocusListener, ActionListen
 	synchronized public void updateStatus() {
 		Second second = new Second(new Date(System.currentTimeMillis() - startMillis));
 		if (machine.getModel().currentTool() == toolModel && toolModel.hasHeater()) {
-			double temperature = machine.getDriver().getTemperature();
+			double temperature = toolModel.getCurrentTemperature();
 			currentTempField.setText(Double.toString(temperature));
 			measuredDataset.add(second, temperature,"a");
 			targetDataset.add(second, targetTemperature,"a");
 		}
 		if (machine.getModel().currentTool() == toolModel && toolModel.hasHeatedPlatform()) {
-			double temperature = machine.getDriver().getPlatformTemperature();
+			double temperature = toolModel.getPlatformCurrentTemperature();
 			platformCurrentTempField.setText(Double.toString(temperature));
 			measuredPlatformDataset.add(second, temperature,"a");
 			targetPlatformDataset.add(second, targetPlatformTemperature,"a");
@@ -23,6 +23,7 @@ import javax.vecmath.Vector3d;
 
 import replicatorg.app.ui.MainWindow;
 import replicatorg.model.BuildModel;
+import replicatorg.model.j3d.GeometryAccess;
 
 /**
  * A wrapper for displaying and editing an underlying model object.
@@ -95,10 +96,12 @@ public class EditingModel {
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_COUNT_READ);
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_COORDINATE_READ);
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_NORMAL_READ);
+		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_FORMAT_READ);
 		edgeClone.setCapability(Shape3D.ALLOW_GEOMETRY_READ);
 		edgeClone.getGeometry().setCapability(GeometryArray.ALLOW_COUNT_READ);
 		edgeClone.getGeometry().setCapability(GeometryArray.ALLOW_COORDINATE_READ);
 		edgeClone.getGeometry().setCapability(GeometryArray.ALLOW_NORMAL_READ);
+		edgeClone.getGeometry().setCapability(GeometryArray.ALLOW_FORMAT_READ);
 		Color3f color = new Color3f(1.0f,1.0f,1.0f); 
 		Material m = new Material();
 		m.setAmbientColor(color);
@@ -261,7 +264,7 @@ public class EditingModel {
 				GeometryArray ga = (GeometryArray)g;
 				Point3d p = new Point3d();
 				for (int i = 0; i < ga.getVertexCount(); i++) {
-					ga.getCoordinate(i,p);
+					GeometryAccess.getCoordinate(ga,i,p);
 					transformation.transform(p);
 					if (bb == null) { bb = new BoundingBox(p,p); }
 					bb.combine(p);
@@ -431,9 +434,9 @@ public class EditingModel {
 				Point3d p2 = new Point3d();
 				Point3d p3 = new Point3d();
 				for (int i = 0; i < ga.getVertexCount();) {
-					ga.getCoordinate(i++,p1);
-					ga.getCoordinate(i++,p2);
-					ga.getCoordinate(i++,p3);
+					GeometryAccess.getCoordinate(ga,i++,p1);
+					GeometryAccess.getCoordinate(ga,i++,p2);
+					GeometryAccess.getCoordinate(ga,i++,p3);
 					t.transform(p1);
 					t.transform(p2);
 					t.transform(p3);
@@ -0,0 +1,522 @@
+/*
+ ChunkedEstimator.java
+
+ Estimates build time by running chunks of a job through EstimationDrivers
+ in parallel.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.drivers;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.vecmath.Point3d;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.app.ParsedCommand;
+import replicatorg.drivers.motion.LayerTimes;
+import replicatorg.drivers.motion.MotionModel;
+import replicatorg.drivers.motion.MoveLog;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CloseableIterator;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileSource;
+import replicatorg.model.ParsedGCodeSource;
+
+/**
+ * Estimates a job by splitting it into chunks and running each chunk
+ * through its own EstimationDriver on a thread pool.
+ *
+ * A chunk can only be estimated once we know the modal state (position,
+ * feedrate, units, G90/G91, ...) it starts in, which depends on everything
+ * before it.  Rather than wait, we make a cheap guess at each chunk's
+ * starting state by scanning the parsed commands for the codes that change
+ * it, and estimate all chunks at once from their guesses.  Chunks are then
+ * checked in order: if a chunk didn't end in the state its successor
+ * assumed, the successor is re-run from the real state.  The guess only
+ * decides how much work gets done twice.
+ *
+ * Chunks don't time their moves.  With acceleration, how long a move takes
+ * depends on the moves after it, which may be in the next chunk, so each
+ * chunk records its moves in a MoveLog and they're timed in order through
+ * one motion model as the chunks are checked.  The result is the same as
+ * running the whole job through one EstimationDriver, whatever the chunk
+ * size.
+ *
+ * Parsing happens in parallel as well, unless the source hands out
+ * pre-parsed commands.
+ */
+public class ChunkedEstimator {
+	private final Node machineNode;
+	private final int chunkSize;
+
+	private double buildTime = 0.0;
+	private LayerTimes layers = new LayerTimes();
+	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+	private int rerunChunks = 0;
+
+	/**
+	 * @param machineNode the XML description of the machine to estimate for
+	 */
+	public ChunkedEstimator(Node machineNode) {
+		this.machineNode = machineNode;
+		this.chunkSize = Math.max(256, Base.preferences.getInt("estimator.chunk_lines", 16384));
+	}
+
+	public double getBuildTime() { return buildTime; }
+
+	public Rectangle2D.Double getBounds() { return bounds; }
+
+	/**
+	 * The build time of the last estimate, broken down by layer.
+	 */
+	public LayerTimes getLayerTimes() { return layers; }
+
+	/**
+	 * @return the number of chunks whose guessed starting state was wrong
+	 * during the last estimate.
+	 */
+	public int getRerunChunks() { return rerunChunks; }
+
+	/**
+	 * The state an estimation carries from one line to the next.
+	 */
+	static class State {
+		final GCodeParser.ModalState modal;
+		final Point3d position;
+		double driverFeedrate;
+		// the height of the current layer; NaN before the first layer
+		double layerZ;
+
+		State() {
+			modal = new GCodeParser().getModalState();
+			position = new Point3d();
+			driverFeedrate = 0.0;
+			layerZ = Double.NaN;
+		}
+
+		State(State s) {
+			modal = s.modal.copy();
+			position = new Point3d(s.position);
+			driverFeedrate = s.driverFeedrate;
+			layerZ = s.layerZ;
+		}
+
+		State(EstimationDriver driver) {
+			modal = driver.getParser().getModalState();
+			position = driver.getCurrentPosition();
+			driverFeedrate = driver.getCurrentFeedrate();
+			layerZ = driver.getLayerTimes().getCurrentZ();
+		}
+
+		void apply(EstimationDriver driver) {
+			driver.getParser().setModalState(modal);
+			driver.setCurrentPosition(new Point3d(position));
+			driver.setFeedrate(driverFeedrate);
+			if (!Double.isNaN(layerZ)) driver.startLayer(layerZ);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof State)) return false;
+			State s = (State)o;
+			return sameMotion(s) && Double.compare(layerZ, s.layerZ) == 0;
+		}
+
+		/**
+		 * Whether the two states agree on everything but the layer.
+		 */
+		boolean sameMotion(State s) {
+			return modal.equals(s.modal) &&
+				position.equals(s.position) &&
+				driverFeedrate == s.driverFeedrate;
+		}
+
+		public int hashCode() {
+			return modal.hashCode() ^ position.hashCode();
+		}
+	}
+
+	/**
+	 * The outcome of estimating one chunk.
+	 */
+	static class ChunkResult {
+		// time charged straight to layers (dwells), but not the moves
+		LayerTimes layers;
+		MoveLog moves;
+		Rectangle2D.Double bounds;
+		State end;
+	}
+
+	/**
+	 * A chunk of the job on its way through the estimator.
+	 */
+	private static class Chunk {
+		final Future<ParsedCommand[]> commands;
+		final State start;
+		final Future<ChunkResult> result;
+		Chunk(Future<ParsedCommand[]> commands, State start, Future<ChunkResult> result) {
+			this.commands = commands;
+			this.start = start;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Estimate the given job.  Blocks until the estimate is done.
+	 */
+	public void estimate(GCodeSource source) throws InterruptedException {
+		buildTime = 0.0;
+		layers = new LayerTimes();
+		bounds = new Rectangle2D.Double();
+		rerunChunks = 0;
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		MotionModel motion = MotionModel.forMachine(model, layers);
+		// the machine's rapid (G0) feedrate, for guessing chunk states.
+		double maxFeedrate = model.getMaximumFeedrates().x;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		// How many chunks we let run ahead of the one being checked.
+		int window = threads * 4;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ChunkReader reader = new ChunkReader(source, pool, chunkSize);
+		try {
+			LinkedList<Future<ParsedCommand[]>> parsing = new LinkedList<Future<ParsedCommand[]>>();
+			LinkedList<Chunk> pending = new LinkedList<Chunk>();
+
+			State guess = new State();
+			State actual = new State();
+			while (true) {
+				while (parsing.size() < window && reader.hasNext()) {
+					parsing.add(reader.next());
+				}
+				if (parsing.isEmpty()) break;
+				Future<ParsedCommand[]> commands = parsing.removeFirst();
+				ParsedCommand[] cmds = get(commands);
+				State start = guess;
+				guess = advance(new State(guess), cmds, maxFeedrate);
+				pending.add(new Chunk(commands, start, pool.submit(estimateTask(cmds, start))));
+				if (pending.size() > window) {
+					actual = reconcile(pending.removeFirst(), actual, motion);
+				}
+			}
+			while (!pending.isEmpty()) {
+				actual = reconcile(pending.removeFirst(), actual, motion);
+			}
+			// the end of the job: the machine comes to a stop.
+			motion.stop();
+			buildTime = layers.getTotal();
+		} finally {
+			reader.close();
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fold a finished chunk into the totals.  If the chunk was estimated from
+	 * the wrong starting state, run it again from the right one.
+	 * @param motion times the chunk's moves, following on from the last
+	 * chunk's
+	 * @return the state at the end of the chunk
+	 */
+	private State reconcile(Chunk chunk, State actual, MotionModel motion) throws InterruptedException {
+		ChunkResult result = get(chunk.result);
+		if (!chunk.start.equals(actual)) {
+			rerunChunks++;
+			try {
+				result = estimateTask(get(chunk.commands), actual).call();
+			} catch (InterruptedException ie) {
+				throw ie;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		add(result, layers, motion);
+		bounds.add(result.bounds);
+		return result.end;
+	}
+
+	/**
+	 * Add a chunk's layers to those of the chunks before it, and time its
+	 * moves.
+	 */
+	static void add(ChunkResult result, LayerTimes layers, MotionModel motion) {
+		result.moves.replay(motion, layers.append(result.layers));
+	}
+
+	private Callable<ChunkResult> estimateTask(final ParsedCommand[] cmds, final State start) {
+		final MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		return new Callable<ChunkResult>() {
+			public ChunkResult call() throws InterruptedException {
+				return estimateChunk(model, Arrays.asList(cmds).iterator(), start);
+			}
+		};
+	}
+
+	/**
+	 * Run a run of commands through a fresh EstimationDriver, starting from
+	 * the given state.  The moves are recorded, not timed; see add().
+	 */
+	static ChunkResult estimateChunk(MachineModel model, Iterator<ParsedCommand> cmds, State start)
+			throws InterruptedException {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(model);
+		MoveLog moves = new MoveLog(estimator.getLayerTimes());
+		estimator.setMotionModel(moves);
+		start.apply(estimator);
+		while (cmds.hasNext()) {
+			ParsedCommand cmd = cmds.next();
+			if (cmd == null || isExtensionCode(cmd)) continue;
+			estimator.parse(cmd);
+			estimator.execute();
+		}
+		ChunkResult result = new ChunkResult();
+		result.layers = estimator.getLayerTimes();
+		result.moves = moves;
+		result.bounds = estimator.getBounds();
+		result.end = new State(estimator);
+		return result;
+	}
+
+	/**
+	 * The Twitterbot extension codes are skipped by the estimator.
+	 */
+	static boolean isExtensionCode(ParsedCommand cmd) {
+		if (!cmd.hasCode('M')) return false;
+		int mCode = (int)cmd.getCodeValue('M');
+		return mCode == GCodeParser.TB_INIT ||
+			mCode == GCodeParser.TB_MESSAGE ||
+			mCode == GCodeParser.TB_CLEANUP;
+	}
+
+	/**
+	 * Hands out the source in chunks of parsed commands, in order.  Parsing
+	 * is done on the pool where the source allows it.
+	 */
+	static class ChunkReader implements Iterator<Future<ParsedCommand[]>> {
+		private final ExecutorService pool;
+		private final int chunkSize;
+		private CloseableIterator<ParsedCommand> parsed = null;
+		private Iterator<String> text = null;
+		private MappedFileSource mapped = null;
+		private int mappedLine = 0;
+		private int mappedCount = 0;
+
+		ChunkReader(GCodeSource source, ExecutorService pool, int chunkSize) {
+			this.pool = pool;
+			this.chunkSize = chunkSize;
+			if (source instanceof ParsedGCodeSource) {
+				parsed = ((ParsedGCodeSource)source).parsedIterator();
+			} else if (source instanceof MappedFileSource) {
+				mapped = (MappedFileSource)source;
+				mappedCount = mapped.getLineCount();
+			} else {
+				text = source.iterator();
+			}
+		}
+
+		public boolean hasNext() {
+			if (parsed != null) return parsed.hasNext();
+			if (mapped != null) return mappedLine < mappedCount;
+			return text.hasNext();
+		}
+
+		public Future<ParsedCommand[]> next() {
+			if (parsed != null) {
+				ParsedCommand[] cmds = new ParsedCommand[chunkSize];
+				int count = 0;
+				while (count < chunkSize && parsed.hasNext()) {
+					cmds[count++] = parsed.next();
+				}
+				return pool.submit(copyTask(cmds, count));
+			}
+			if (mapped != null) {
+				final MappedFileSource source = mapped;
+				final int from = mappedLine;
+				final int to = Math.min(mappedCount, from + chunkSize);
+				mappedLine = to;
+				return pool.submit(new Callable<ParsedCommand[]>() {
+					public ParsedCommand[] call() {
+						return parse(source.iterator(from, to), to - from);
+					}
+				});
+			}
+			final String[] lines = new String[chunkSize];
+			int count = 0;
+			while (count < chunkSize && text.hasNext()) {
+				lines[count++] = text.next();
+			}
+			final int lineCount = count;
+			return pool.submit(new Callable<ParsedCommand[]>() {
+				public ParsedCommand[] call() {
+					return parse(Arrays.asList(lines).subList(0, lineCount).iterator(), lineCount);
+				}
+			});
+		}
+
+		public void remove() { throw new UnsupportedOperationException(); }
+
+		/** Let go of the source, if estimating stopped short of the end. */
+		void close() {
+			if (parsed != null) parsed.close();
+		}
+	}
+
+	private static Callable<ParsedCommand[]> copyTask(final ParsedCommand[] cmds, final int count) {
+		return new Callable<ParsedCommand[]>() {
+			public ParsedCommand[] call() {
+				if (count == cmds.length) return cmds;
+				ParsedCommand[] trimmed = new ParsedCommand[count];
+				System.arraycopy(cmds, 0, trimmed, 0, count);
+				return trimmed;
+			}
+		};
+	}
+
+	static ParsedCommand[] parse(Iterator<String> lines, int count) {
+		GCodeParser parser = new GCodeParser();
+		ParsedCommand[] cmds = new ParsedCommand[count];
+		int idx = 0;
+		while (lines.hasNext() && idx < count) {
+			parser.parse(lines.next());
+			cmds[idx++] = parser.getParsedCommand();
+		}
+		return cmds;
+	}
+
+	static <T> T get(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Follow EstimationDriver's rule for starting layers.
+	 */
+	private static void advanceLayer(State s, Point3d target) {
+		if (target.x != s.position.x || target.y != s.position.y) {
+			if (LayerTimes.startsLayer(s.layerZ, target.z)) s.layerZ = target.z;
+		} else if (Double.isNaN(s.layerZ) && target.z != s.position.z) {
+			s.layerZ = s.position.z;
+		}
+	}
+
+	/**
+	 * Guess the state at the end of a run of commands.  This follows the
+	 * common codes the same way GCodeParser does and ignores the rest
+	 * (drilling cycles, unknown M codes); a wrong guess only costs a re-run
+	 * of the following chunk.
+	 * @param maxFeedrate the machine's rapid (G0) feedrate
+	 */
+	static State advance(State s, ParsedCommand[] cmds, double maxFeedrate) {
+		GCodeParser.ModalState m = s.modal;
+		for (ParsedCommand cmd : cmds) {
+			if (cmd == null || isExtensionCode(cmd)) continue;
+			double scale = m.isInches() ? 25.4 : 1.0;
+			boolean hasX = cmd.hasCode('X');
+			boolean hasY = cmd.hasCode('Y');
+			boolean hasZ = cmd.hasCode('Z');
+			double x = cmd.getCodeValue('X') * scale + m.getOffset().x;
+			double y = cmd.getCodeValue('Y') * scale + m.getOffset().y;
+			double z = cmd.getCodeValue('Z') * scale + m.getOffset().z;
+			Point3d target = new Point3d(s.position);
+			if (m.isAbsolute()) {
+				if (hasX) target.x = x;
+				if (hasY) target.y = y;
+				if (hasZ) target.z = z;
+			} else {
+				if (hasX) target.x += x;
+				if (hasY) target.y += y;
+				if (hasZ) target.z += z;
+			}
+			if (cmd.hasCode('F')) {
+				m.setFeedrate(cmd.getCodeValue('F'));
+				s.driverFeedrate = m.getFeedrate();
+			}
+			int gCode = -1;
+			if (cmd.hasCode('G')) {
+				gCode = (int)cmd.getCodeValue('G');
+			} else if (hasX || hasY || hasZ) {
+				gCode = m.getLastGCode();
+			}
+			switch (gCode) {
+			case 0:
+				s.driverFeedrate = maxFeedrate;
+				advanceLayer(s, target);
+				s.position.set(target);
+				break;
+			case 1:
+				s.driverFeedrate = m.getFeedrate();
+				advanceLayer(s, target);
+				s.position.set(target);
+				break;
+			case 2:
+			case 3:
+				// GCodeParser ends every arc exactly on its endpoint.
+				if (cmd.hasCode('I') || cmd.hasCode('J') || cmd.hasCode('R')) {
+					advanceLayer(s, target);
+					s.position.set(target);
+				}
+				break;
+			case 31:
+				s.position.set(target);
+				break;
+			case 4:
+				if (Double.isNaN(s.layerZ)) s.layerZ = s.position.z;
+				break;
+			case 17: m.setPlane(0); break;
+			case 18: m.setPlane(1); break;
+			case 19: m.setPlane(2); break;
+			case 20:
+			case 70: m.setInches(true); break;
+			case 21:
+			case 71: m.setInches(false); break;
+			case 80:
+				m.setDrillCycle(new Point3d(), 0.0, 0.0, 0, 0.0);
+				break;
+			case 90: m.setAbsolute(true); break;
+			case 91: m.setAbsolute(false); break;
+			case 92:
+				if (hasX) s.position.x = x;
+				if (hasY) s.position.y = y;
+				if (hasZ) s.position.z = z;
+				break;
+			}
+			if (gCode != -1) m.setLastGCode(gCode);
+			if (cmd.hasCode('T')) m.setTool((int)cmd.getCodeValue('T'));
+		}
+		return s;
+	}
+}
@@ -30,6 +30,7 @@ import javax.vecmath.Point3d;
 import org.w3c.dom.Node;
 
 import replicatorg.app.GCodeParser;
+import replicatorg.app.ParsedCommand;
 import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
@@ -54,6 +55,11 @@ public interface Driver {
 	 */
 	public void parse(String cmd);
 
+	/**
+	 * load a command that has already been parsed.
+	 */
+	public void parse(ParsedCommand cmd);
+
 	/**
 	 * get our parser object
 	 */
@@ -69,6 +75,14 @@ public interface Driver {
 	 */
 	public boolean isBufferEmpty();
 
+	/**
+	 * Would a status query sent now leave the machine's motion alone?  True
+	 * when the machine has as much queued as it can take, so the time spent
+	 * on the query would have been spent waiting anyway.  Drivers that can't
+	 * tell say true.
+	 */
+	public boolean isQueryCheap();
+
 	/**
 	 * Wait until we've finished all commands.
 	 */
@@ -138,12 +152,21 @@ public interface Driver {
 
 	public Point3d getCurrentPosition();
 
+	/**
+	 * Copy the current position into p, rather than allocating a new point.
+	 */
+	public void getCurrentPosition(Point3d p);
+
 	/**
 	 * Indicate that the currently maintained position may no longer be the machine's position,
 	 * and that the machine should be queried for its actual location.
 	 */
 	void invalidatePosition();
 
+	/**
+	 * Move to p.  The driver doesn't keep p, so callers may reuse it for the
+	 * next move.
+	 */
 	public void queuePoint(Point3d p);
 
 	public Point3d getOffset(int i);
@@ -31,6 +31,7 @@ import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
 import replicatorg.app.GCodeParser;
+import replicatorg.app.ParsedCommand;
 import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
@@ -139,6 +140,13 @@ public class DriverBaseImplementation implements Driver {
 		parser.parse(cmd);
 	}
 
+	public void parse(ParsedCommand cmd) {
+		// reset our values.
+		moveLength = 0.0;
+
+		parser.parse(cmd);
+	}
+
 	public GCodeParser getParser() {
 		return parser;
 	}
@@ -163,6 +171,10 @@ public class DriverBaseImplementation implements Driver {
 		return true;
 	}
 
+	public boolean isQueryCheap() {
+		return true;
+	}
+
 	/**
 	 * Wait until we've finished all commands.
 	 */
@@ -204,10 +216,12 @@ public class DriverBaseImplementation implements Driver {
 		return offsets[i];
 	}
 
+	// Where the machine is.  This object is only ever copied into and out
+	// of, so moves don't allocate; null when the position is unknown.
 	private Point3d currentPosition = null;
 	
 	public void setCurrentPosition(Point3d p) {
-		currentPosition = p;
+		setInternalPosition(p);
 	}
 
 	/**
@@ -228,10 +242,22 @@ public class DriverBaseImplementation implements Driver {
 	}
 	
 	public Point3d getCurrentPosition() {
+		return new Point3d(currentPosition());
+	}
+
+	public void getCurrentPosition(Point3d p) {
+		p.set(currentPosition());
+	}
+
+	/**
+	 * The current position itself rather than a copy, for reading only.  It
+	 * changes in place as the machine moves.
+	 */
+	protected Point3d currentPosition() {
 		if (currentPosition == null) {
 			currentPosition = reconcilePosition();
 		}
-		return new Point3d(currentPosition);
+		return currentPosition;
 	}
 
 	public Point3d getPosition() {
@@ -239,29 +265,38 @@ public class DriverBaseImplementation implements Driver {
 	}
 
 	public void queuePoint(Point3d p) {
-		Point3d delta = getDelta(p);
-
-		// calculate the length of each axis move
-		double xFactor = Math.pow(delta.x, 2);
-		double yFactor = Math.pow(delta.y, 2);
-		double zFactor = Math.pow(delta.z, 2);
+		Point3d current = currentPosition();
+		double dx = p.x - current.x;
+		double dy = p.y - current.y;
+		double dz = p.z - current.z;
 
 		// add to the total length
-		moveLength += Math.sqrt(xFactor + yFactor + zFactor);
+		moveLength += Math.sqrt(dx * dx + dy * dy + dz * dz);
 
 		// what is our feedrate?
-		double feedrate = getSafeFeedrate(delta);
+		double feedrate = getSafeFeedrate(dx, dy, dz);
 
 		// mostly for estimation driver.
 		queuePoint(p, feedrate);
 		setInternalPosition(p);
 	}
 
+	/**
+	 * Record where the machine is without telling it.  The point is copied.
+	 */
 	protected void setInternalPosition(Point3d position) {
-		currentPosition = position;
+		if (currentPosition == null) {
+			currentPosition = new Point3d(position);
+		} else {
+			currentPosition.set(position);
+		}
 	}
 	
-	protected void queuePoint(Point3d p, Double feedrate) {
+	/**
+	 * Called by queuePoint(Point3d) with the feedrate the move will actually
+	 * run at, before the current position is moved to p.
+	 */
+	protected void queuePoint(Point3d p, double feedrate) {
 		// do nothing here.
 	}
 
@@ -284,6 +319,14 @@ public class DriverBaseImplementation implements Driver {
 	}
 
 	public double getSafeFeedrate(Point3d delta) {
+		return getSafeFeedrate(delta.x, delta.y, delta.z);
+	}
+
+	/**
+	 * The current feedrate, limited by the maximum feedrate of every axis
+	 * that moves.  Only whether each delta is zero matters.
+	 */
+	public double getSafeFeedrate(double dx, double dy, double dz) {
 		double feedrate = getCurrentFeedrate();
 
 		Point3d maxFeedrates = machine.getMaximumFeedrates();
@@ -298,11 +341,11 @@ public class DriverBaseImplementation implements Driver {
 			// System.out.println("Zero feedrate!! " + feedrate);
 		}
 
-		if (delta.x != 0)
+		if (dx != 0)
 			feedrate = Math.min(feedrate, maxFeedrates.x);
-		if (delta.y != 0)
+		if (dy != 0)
 			feedrate = Math.min(feedrate, maxFeedrates.y);
-		if (delta.z != 0)
+		if (dz != 0)
 			feedrate = Math.min(feedrate, maxFeedrates.z);
 
 		return feedrate;
@@ -310,7 +353,7 @@ public class DriverBaseImplementation implements Driver {
 
 	public Point3d getDelta(Point3d p) {
 		Point3d delta = new Point3d();
-		Point3d current = getCurrentPosition();
+		Point3d current = currentPosition();
 
 		delta.x = Math.abs(p.x - current.x);
 		delta.y = Math.abs(p.y - current.y);
@@ -26,24 +26,66 @@ package replicatorg.drivers;
 import java.awt.geom.Rectangle2D;
 
 import replicatorg.app.exceptions.GCodeException;
+import replicatorg.drivers.motion.ConstantFeedrateModel;
+import replicatorg.drivers.motion.LayerTimes;
+import replicatorg.drivers.motion.MotionModel;
+import replicatorg.machine.model.MachineModel;
 import javax.vecmath.Point3d;
 
 public class EstimationDriver extends DriverBaseImplementation {
-	// build time in milliseconds
-	private double buildTime = 0.0;
+	// build time in milliseconds, by layer
+	private LayerTimes layers = new LayerTimes();
+
+	private MotionModel motion = new ConstantFeedrateModel(layers);
 
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
 	
 	public EstimationDriver() {
 		super();
-
-		buildTime = 0.0;
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
+	public void setMachine(MachineModel m) {
+		super.setMachine(m);
+		motion = MotionModel.forMachine(m, layers);
+	}
+
+	/**
+	 * Use the given motion model in place of the one picked for the machine.
+	 * The model should charge any time it works out to this driver's
+	 * layers.
+	 */
+	public void setMotionModel(MotionModel motion) {
+		this.motion = motion;
+	}
+
+	/**
+	 * The build time so far, broken down by layer.  Moves the motion model
+	 * is still holding on to aren't counted until finish() is called.
+	 */
+	public LayerTimes getLayerTimes() {
+		return layers;
+	}
+
+	/**
+	 * The job is over: the machine comes to a stop, and every move is
+	 * charged.  Call this once, after the last line.
+	 */
+	public void finish() {
+		motion.stop();
+	}
+
+	/**
+	 * Carry on the given layer, as when estimating part of a job.
+	 */
+	void startLayer(double z) {
+		layers.open(z);
+	}
+
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		motion.stop();
+		layers.add(layers.current(currentPosition().z), (double) millis);
 	}
 
 	protected Point3d reconcilePosition() {
@@ -60,24 +102,30 @@ public class EstimationDriver extends DriverBaseImplementation {
 		}
 	}
 
-	protected void queuePoint(Point3d p, Double feedrate) {
-		// our speed is feedrate * distance * 60000 (milliseconds in 1 minute)
-		// feedrate is mm per minute
-		double millis = getMoveLength() / feedrate * 60000.0;
+	protected void queuePoint(Point3d p, double feedrate) {
+		// we haven't moved yet, so this is where the move starts.
+		Point3d current = currentPosition();
+		double dx = p.x - current.x;
+		double dy = p.y - current.y;
+		double dz = p.z - current.z;
+		if (dx == 0 && dy == 0 && dz == 0) return;
+
+		int layer;
+		if (dx != 0 || dy != 0) {
+			layer = layers.layerFor(p.z);
+		} else {
+			layer = layers.current(current.z);
+		}
+		motion.move(dx, dy, dz, feedrate, layer);
 
 		bounds.add(p.x,p.y);
-		
-		// add it in!
-		if (millis > 0) {
-			buildTime = buildTime + millis;
-			// System.out.println(getMoveLength() + "mm at " + feedrate + "
-			// takes " + Math.round(millis) + " millis (" + buildTime + "
-			// total).");
-		}
 	}
 
+	/**
+	 * @return the build time in milliseconds; see getLayerTimes()
+	 */
 	public double getBuildTime() {
-		return buildTime;
+		return layers.getTotal();
 	}
 
 	static public String getBuildTimeString(double tempTime) {
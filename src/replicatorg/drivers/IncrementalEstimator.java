@@ -0,0 +1,249 @@
+/*
+ IncrementalEstimator.java
+
+ Estimates build time for a job being edited, re-estimating only the
+ parts that change.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.drivers;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.ParsedCommand;
+import replicatorg.drivers.ChunkedEstimator.ChunkResult;
+import replicatorg.drivers.ChunkedEstimator.State;
+import replicatorg.drivers.motion.LayerTimes;
+import replicatorg.drivers.motion.MotionModel;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedFileSource;
+
+/**
+ * Estimates a job that's open in the editor.  The job is estimated in
+ * chunks of "estimator.checkpoint_lines" lines, and the state and time at
+ * the end of each chunk are kept as a checkpoint.  Edits to the document
+ * throw away the checkpoints they affect, so the next estimate only
+ * re-walks the job from the checkpoint before the first edit.
+ *
+ * An edit within a single line only spoils the chunk holding that line:
+ * if that chunk still ends in the same state, the chunks after it are
+ * reused as well.  Edits that add or remove lines spoil everything after
+ * them.
+ *
+ * Chunks are estimated exactly as ChunkedEstimator does it, so the two
+ * give the same results for the same chunk size.
+ */
+public class IncrementalEstimator implements DocumentListener {
+	private final Node machineNode;
+	private final int chunkSize;
+
+	private Document document = null;
+	// the number of lines in the document, as of the last edit
+	private int documentLines = 0;
+
+	/**
+	 * The saved estimate of one chunk, and the state it started from.
+	 */
+	private static class Checkpoint {
+		final State start;
+		final ChunkResult result;
+		boolean dirty = false;
+		Checkpoint(State start, ChunkResult result) {
+			this.start = start;
+			this.result = result;
+		}
+	}
+
+	// checkpoints.get(i) covers lines [i*chunkSize, (i+1)*chunkSize)
+	private final ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	// bumped on every edit, so that an estimate running during an edit
+	// doesn't save checkpoints made from stale text.
+	private int edits = 0;
+
+	private double buildTime = 0.0;
+	private LayerTimes layers = new LayerTimes();
+	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+	private int estimatedLines = 0;
+
+	/**
+	 * @param machineNode the XML description of the machine to estimate for
+	 */
+	public IncrementalEstimator(Node machineNode) {
+		this.machineNode = machineNode;
+		this.chunkSize = Math.max(64, Base.preferences.getInt("estimator.checkpoint_lines", 2048));
+	}
+
+	public double getBuildTime() { return buildTime; }
+
+	public Rectangle2D.Double getBounds() { return bounds; }
+
+	public LayerTimes getLayerTimes() { return layers; }
+
+	/**
+	 * @return how many lines the last estimate had to walk; the rest came
+	 * from checkpoints.
+	 */
+	public int getEstimatedLines() { return estimatedLines; }
+
+	/**
+	 * Follow the edits made to the given document.  Switching to another
+	 * document throws away all checkpoints.
+	 */
+	public synchronized void setDocument(Document document) {
+		if (this.document == document) return;
+		if (this.document != null) {
+			this.document.removeDocumentListener(this);
+		}
+		this.document = document;
+		checkpoints.clear();
+		edits++;
+		if (document != null) {
+			documentLines = document.getDefaultRootElement().getElementCount();
+			document.addDocumentListener(this);
+		}
+	}
+
+	/**
+	 * Estimate the given job, reusing whatever checkpoints are still good.
+	 * Blocks until the estimate is done.
+	 */
+	public void estimate(GCodeSource source) throws InterruptedException {
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+
+		buildTime = 0.0;
+		layers = new LayerTimes();
+		bounds = new Rectangle2D.Double();
+		estimatedLines = 0;
+		MotionModel motion = MotionModel.forMachine(model, layers);
+
+		int lineCount = source.getLineCount();
+		int chunkCount = (lineCount + chunkSize - 1) / chunkSize;
+		State state = new State();
+		for (int i = 0; i < chunkCount; i++) {
+			ChunkResult result = reuse(i, state);
+			if (result == null) {
+				int editsBefore = getEdits();
+				int from = i * chunkSize;
+				int to = Math.min(lineCount, from + chunkSize);
+				State start = new State(state);
+				ParsedCommand[] cmds = ChunkedEstimator.parse(lines(source, from, to), to - from);
+				result = ChunkedEstimator.estimateChunk(model, Arrays.asList(cmds).iterator(), state);
+				save(i, start, result, editsBefore);
+				estimatedLines += to - from;
+			}
+			ChunkedEstimator.add(result, layers, motion);
+			bounds.add(result.bounds);
+			state = result.end;
+		}
+		// the end of the job: the machine comes to a stop.
+		motion.stop();
+		buildTime = layers.getTotal();
+		synchronized (this) {
+			while (checkpoints.size() > chunkCount) {
+				checkpoints.remove(checkpoints.size() - 1);
+			}
+		}
+	}
+
+	private synchronized int getEdits() { return edits; }
+
+	private synchronized ChunkResult reuse(int chunk, State start) {
+		if (chunk >= checkpoints.size()) return null;
+		Checkpoint checkpoint = checkpoints.get(chunk);
+		if (checkpoint.dirty || !checkpoint.start.equals(start)) return null;
+		return checkpoint.result;
+	}
+
+	private synchronized void save(int chunk, State start, ChunkResult result, int editsBefore) {
+		if (edits != editsBefore || chunk > checkpoints.size()) return;
+		Checkpoint checkpoint = new Checkpoint(start, result);
+		if (chunk == checkpoints.size()) {
+			checkpoints.add(checkpoint);
+		} else {
+			checkpoints.set(chunk, checkpoint);
+		}
+	}
+
+	private Iterator<String> lines(GCodeSource source, int from, int to) {
+		if (source instanceof JEditTextAreaSource) {
+			return ((JEditTextAreaSource)source).iterator(from, to);
+		}
+		if (source instanceof MappedFileSource) {
+			return ((MappedFileSource)source).iterator(from, to);
+		}
+		Iterator<String> i = source.iterator();
+		for (int skip = 0; skip < from && i.hasNext(); skip++) {
+			i.next();
+		}
+		return i;
+	}
+
+	/**
+	 * Throw away the checkpoints spoiled by an edit.
+	 * @param line the first line changed
+	 * @param linesMoved whether the edit added or removed lines, moving
+	 * the lines after it
+	 */
+	public synchronized void linesChanged(int line, boolean linesMoved) {
+		edits++;
+		int chunk = line / chunkSize;
+		if (!linesMoved) {
+			if (chunk < checkpoints.size()) {
+				checkpoints.get(chunk).dirty = true;
+			}
+			return;
+		}
+		while (checkpoints.size() > chunk) {
+			checkpoints.remove(checkpoints.size() - 1);
+		}
+	}
+
+	private synchronized void linesChanged(DocumentEvent e) {
+		Element root = e.getDocument().getDefaultRootElement();
+		int line = root.getElementIndex(e.getOffset());
+		int lines = root.getElementCount();
+		linesChanged(line, lines != documentLines);
+		documentLines = lines;
+	}
+
+	public void insertUpdate(DocumentEvent e) {
+		linesChanged(e);
+	}
+
+	public void removeUpdate(DocumentEvent e) {
+		linesChanged(e);
+	}
+
+	public void changedUpdate(DocumentEvent e) {
+		// attribute changes don't affect the estimate.
+	}
+}
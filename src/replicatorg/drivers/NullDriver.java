@@ -23,6 +23,8 @@
 
 package replicatorg.drivers;
 
+import javax.vecmath.Point3d;
+
 import org.w3c.dom.Node;
 
 import replicatorg.app.exceptions.GCodeException;
@@ -37,6 +39,13 @@ public class NullDriver extends DriverBaseImplementation {
 		speedup = 10;
 	}
 
+	/**
+	 * How many times faster than real time to run; 0 doesn't wait at all.
+	 */
+	public void setSpeedup(double speedup) {
+		this.speedup = speedup;
+	}
+
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
 
@@ -44,6 +53,14 @@ public class NullDriver extends DriverBaseImplementation {
 			speedup = Double.parseDouble(XML.getChildNodeValue(xml, "speedup"));
 	}
 
+	/**
+	 * There's no machine to ask, so a lost position starts over at the
+	 * origin.
+	 */
+	protected Point3d reconcilePosition() {
+		return new Point3d();
+	}
+
 	public void execute() throws InterruptedException {
 		// suppress errors.
 		try {
@@ -0,0 +1,441 @@
+/*
+ S3GCompiler.java
+
+ Compiles gcode into a Makerbot (.s3g) build file without a machine
+ attached.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.drivers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.vecmath.Point3d;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import replicatorg.app.Base;
+import replicatorg.app.MachineFactory;
+import replicatorg.app.MoveCoalescer;
+import replicatorg.app.ParsedCommand;
+import replicatorg.app.exceptions.GCodeException;
+import replicatorg.drivers.ChunkedEstimator.ChunkReader;
+import replicatorg.drivers.ChunkedEstimator.State;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileSource;
+
+/**
+ * Turns gcode into the command stream a Sanguino3G machine would be sent,
+ * the same bytes Build-to-file captures, without a machine attached and
+ * without going through the machine thread.
+ *
+ * The job is split into chunks that are parsed and compiled on a thread
+ * pool, each through its own capturing driver.  As in ChunkedEstimator,
+ * each chunk starts from a guess at the state the chunk before it leaves
+ * behind, and is compiled again if the guess was wrong.  Besides the
+ * modal state and position, a compiled chunk depends on the selected tool
+ * and on each tool's spindle direction, which the driver reads back when
+ * turning the extruder motor off.
+ *
+ * When the driver plans moves ahead, the job is still parsed in chunks
+ * but compiled through one driver, so the planner's window runs across
+ * chunk boundaries as it does in a live build.  Compiled a chunk at a
+ * time, every boundary would bring the machine to a stop.
+ */
+public class S3GCompiler {
+	private final Node machineNode;
+	private final Node driverNode;
+	private final Class<? extends Driver> driverClass;
+	private final int chunkSize;
+	private final boolean coalesce;
+	private final boolean planning;
+
+	private long byteCount = 0;
+	private int rerunChunks = 0;
+	private long movesSaved = 0;
+
+	/**
+	 * @param machineNode the XML description of the machine to compile for
+	 * @throws IllegalArgumentException if the machine doesn't take S3G
+	 * commands
+	 */
+	public S3GCompiler(Node machineNode) {
+		this.machineNode = machineNode;
+		this.driverNode = findDriverNode(machineNode);
+		Driver driver = DriverFactory.factory(driverNode);
+		if (!supports(driver)) {
+			throw new IllegalArgumentException("The " + driver.getDriverName() +
+					" driver doesn't use S3G build files.");
+		}
+		this.driverClass = driver.getClass();
+		this.planning = ((Sanguino3GDriver)driver).isPlanningMoves();
+		this.chunkSize = Math.max(256, Base.preferences.getInt("estimator.chunk_lines", 16384));
+		this.coalesce = MoveCoalescer.isEnabled();
+	}
+
+	/**
+	 * Whether jobs for the given driver can be compiled ahead of time.
+	 */
+	public static boolean supports(Driver driver) {
+		return driver instanceof Sanguino3GDriver;
+	}
+
+	/** The number of bytes written by the last compile. */
+	public long getByteCount() { return byteCount; }
+
+	/**
+	 * @return the number of chunks whose guessed starting state was wrong
+	 * during the last compile.
+	 */
+	public int getRerunChunks() { return rerunChunks; }
+
+	/**
+	 * @return the number of moves saved by merging during the last
+	 * compile; see MoveCoalescer.  Moves aren't merged across chunks
+	 * unless the driver plans moves ahead.
+	 */
+	public long getMovesSaved() { return movesSaved; }
+
+	private static Node findDriverNode(Node machineNode) {
+		Node driverXml = null;
+		NodeList kids = machineNode.getChildNodes();
+		for (int j = 0; j < kids.getLength(); j++) {
+			Node kid = kids.item(j);
+			if (kid.getNodeName().equals("driver")) {
+				driverXml = kid;
+			}
+		}
+		return driverXml;
+	}
+
+	/**
+	 * The state a compile carries from one line to the next.
+	 */
+	private static class Start {
+		final State motion;
+		int tool;
+		final int[] spindleDirection;
+
+		Start(int tools) {
+			motion = new State();
+			tool = 0;
+			spindleDirection = new int[tools];
+			for (int i = 0; i < tools; i++) {
+				spindleDirection[i] = ToolModel.MOTOR_CLOCKWISE;
+			}
+		}
+
+		Start(Start s) {
+			motion = new State(s.motion);
+			tool = s.tool;
+			spindleDirection = s.spindleDirection.clone();
+		}
+
+		Start(Sanguino3GDriver driver) {
+			motion = new State();
+			motion.modal.set(driver.getParser().getModalState());
+			motion.position.set(driver.getCurrentPosition());
+			motion.driverFeedrate = driver.getCurrentFeedrate();
+			Vector<ToolModel> tools = driver.getMachine().getTools();
+			tool = tools.indexOf(driver.getMachine().currentTool());
+			spindleDirection = new int[tools.size()];
+			for (int i = 0; i < spindleDirection.length; i++) {
+				spindleDirection[i] = tools.get(i).getSpindleDirection();
+			}
+		}
+
+		void apply(Sanguino3GDriver driver) {
+			driver.getParser().setModalState(motion.modal);
+			// set the position without telling the machine about it.
+			driver.setInternalPosition(new Point3d(motion.position));
+			driver.setFeedrate(motion.driverFeedrate);
+			Vector<ToolModel> tools = driver.getMachine().getTools();
+			for (int i = 0; i < spindleDirection.length && i < tools.size(); i++) {
+				tools.get(i).setSpindleDirection(spindleDirection[i]);
+			}
+			if (tool >= 0) driver.getMachine().selectTool(tool);
+		}
+
+		boolean matches(Start s) {
+			return motion.sameMotion(s.motion) && tool == s.tool &&
+				Arrays.equals(spindleDirection, s.spindleDirection);
+		}
+	}
+
+	/**
+	 * A chunk of the job on its way through the compiler.
+	 */
+	private static class Chunk {
+		final ParsedCommand[] commands;
+		final Start start;
+		final Future<Compiled> result;
+		Chunk(ParsedCommand[] commands, Start start, Future<Compiled> result) {
+			this.commands = commands;
+			this.start = start;
+			this.result = result;
+		}
+	}
+
+	private static class Compiled {
+		byte[] data;
+		Start end;
+		long movesSaved;
+	}
+
+	/**
+	 * Compile the given sources, one after the other, to the stream.
+	 * Blocks until the whole job is written.
+	 */
+	public void compile(OutputStream out, GCodeSource... sources)
+			throws IOException, InterruptedException {
+		byteCount = 0;
+		rerunChunks = 0;
+		movesSaved = 0;
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		double maxFeedrate = model.getMaximumFeedrates().x;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		// How many chunks we let run ahead of the one being written.
+		int window = threads * 4;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			if (planning) {
+				compileInOnePass(out, sources, new Start(model.getTools().size()), pool, window);
+				return;
+			}
+			LinkedList<Future<ParsedCommand[]>> parsing = new LinkedList<Future<ParsedCommand[]>>();
+			LinkedList<Chunk> pending = new LinkedList<Chunk>();
+			Start guess = new Start(model.getTools().size());
+			Start actual = guess;
+			for (GCodeSource source : sources) {
+				ChunkReader reader = new ChunkReader(source, pool, chunkSize);
+				while (true) {
+					while (parsing.size() < window && reader.hasNext()) {
+						parsing.add(reader.next());
+					}
+					if (parsing.isEmpty()) break;
+					ParsedCommand[] cmds = ChunkedEstimator.get(parsing.removeFirst());
+					Start start = guess;
+					guess = advance(new Start(guess), cmds, maxFeedrate);
+					pending.add(new Chunk(cmds, start, pool.submit(compileTask(cmds, start))));
+					if (pending.size() > window) {
+						actual = write(pending.removeFirst(), actual, out);
+					}
+				}
+			}
+			while (!pending.isEmpty()) {
+				actual = write(pending.removeFirst(), actual, out);
+			}
+			out.flush();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write out a compiled chunk, compiling it again first if it was
+	 * compiled from the wrong starting state.
+	 * @return the state at the end of the chunk
+	 */
+	private Start write(Chunk chunk, Start actual, OutputStream out)
+			throws IOException, InterruptedException {
+		Compiled result = ChunkedEstimator.get(chunk.result);
+		if (!chunk.start.matches(actual)) {
+			rerunChunks++;
+			result = compileChunk(chunk.commands, actual);
+		}
+		out.write(result.data);
+		byteCount += result.data.length;
+		movesSaved += result.movesSaved;
+		return result.end;
+	}
+
+	/**
+	 * Parse the sources in chunks on the pool, but run every command
+	 * through one driver, writing out what it has captured after each
+	 * chunk.
+	 */
+	private void compileInOnePass(OutputStream out, GCodeSource[] sources, Start start,
+			ExecutorService pool, int window) throws IOException, InterruptedException {
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		Sanguino3GDriver driver = newDriver(captured, start);
+		for (GCodeSource source : sources) {
+			ChunkReader reader = new ChunkReader(source, pool, chunkSize);
+			try {
+				LinkedList<Future<ParsedCommand[]>> parsing = new LinkedList<Future<ParsedCommand[]>>();
+				while (true) {
+					while (parsing.size() < window && reader.hasNext()) {
+						parsing.add(reader.next());
+					}
+					if (parsing.isEmpty()) break;
+					run(driver, ChunkedEstimator.get(parsing.removeFirst()));
+					captured.writeTo(out);
+					byteCount += captured.size();
+					captured.reset();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		driver.getParser().flush();
+		driver.flushMoves();
+		captured.writeTo(out);
+		byteCount += captured.size();
+		if (coalesce) movesSaved = driver.getParser().getCoalescer().getMovesSaved();
+		out.flush();
+	}
+
+	private Callable<Compiled> compileTask(final ParsedCommand[] cmds, final Start start) {
+		return new Callable<Compiled>() {
+			public Compiled call() throws InterruptedException {
+				return compileChunk(cmds, start);
+			}
+		};
+	}
+
+	/**
+	 * Run a run of commands through a fresh capturing driver, starting from
+	 * the given state.
+	 */
+	private Compiled compileChunk(ParsedCommand[] cmds, Start start) throws InterruptedException {
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		Sanguino3GDriver driver = newDriver(captured, start);
+		run(driver, cmds);
+		driver.getParser().flush();
+		driver.flushMoves();
+		Compiled result = new Compiled();
+		if (coalesce) result.movesSaved = driver.getParser().getCoalescer().getMovesSaved();
+		result.end = new Start(driver);
+		result.data = captured.toByteArray();
+		return result;
+	}
+
+	/**
+	 * A fresh driver capturing to the given stream, set to the given state.
+	 */
+	private Sanguino3GDriver newDriver(OutputStream captured, Start start) {
+		Sanguino3GDriver driver;
+		try {
+			driver = (Sanguino3GDriver)driverClass.newInstance();
+		} catch (Exception e) {
+			// we made one of these in the constructor.
+			throw new RuntimeException(e);
+		}
+		driver.loadXML(driverNode);
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		driver.setMachine(model);
+		driver.beginFileCapture(captured);
+		start.apply(driver);
+		driver.getParser().setCoalescing(coalesce);
+		return driver;
+	}
+
+	private static void run(Sanguino3GDriver driver, ParsedCommand[] cmds) throws InterruptedException {
+		for (ParsedCommand cmd : cmds) {
+			if (cmd == null || ChunkedEstimator.isExtensionCode(cmd)) continue;
+			driver.parse(cmd);
+			try {
+				driver.execute();
+			} catch (GCodeException e) {
+				Base.logger.severe("Error: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Guess the state at the end of a run of commands; see
+	 * ChunkedEstimator.advance().  Tool changes and spindle directions are
+	 * followed the way GCodeParser applies them.
+	 */
+	private static Start advance(Start s, ParsedCommand[] cmds, double maxFeedrate) {
+		ChunkedEstimator.advance(s.motion, cmds, maxFeedrate);
+		for (ParsedCommand cmd : cmds) {
+			if (cmd == null || ChunkedEstimator.isExtensionCode(cmd)) continue;
+			if (cmd.hasCode('M')) {
+				int direction = -1;
+				switch ((int)cmd.getCodeValue('M')) {
+				case 3:
+				case 13:
+					direction = ToolModel.MOTOR_CLOCKWISE;
+					break;
+				case 4:
+				case 14:
+					direction = ToolModel.MOTOR_COUNTER_CLOCKWISE;
+					break;
+				case 6:
+					if (cmd.hasCode('T')) s.tool = (int)cmd.getCodeValue('T');
+					break;
+				}
+				if (direction != -1 && s.tool >= 0 && s.tool < s.spindleDirection.length) {
+					s.spindleDirection[s.tool] = direction;
+				}
+			}
+			if (cmd.hasCode('T')) s.tool = (int)cmd.getCodeValue('T');
+		}
+		return s;
+	}
+
+	/**
+	 * Compile a gcode file from the command line:
+	 * S3GCompiler "machine name" input.gcode output.s3g
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println("Usage: S3GCompiler <machine name> <input.gcode> <output.s3g>");
+			System.exit(1);
+		}
+		S3GCompiler compiler = null;
+		try {
+			compiler = new S3GCompiler(MachineFactory.getMachineNode(args[0]));
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]));
+		try {
+			compiler.compile(out, new MappedFileSource(new File(args[1])));
+		} finally {
+			out.close();
+		}
+		System.out.println("Wrote " + compiler.getByteCount() + " bytes to " + args[2] +
+				" in " + (System.currentTimeMillis() - start) + " ms.");
+		if (compiler.coalesce) {
+			System.out.println("Merging saved " + compiler.getMovesSaved() + " moves.");
+		}
+		System.exit(0);
+	}
+}
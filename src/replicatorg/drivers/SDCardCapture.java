@@ -2,6 +2,7 @@ package replicatorg.drivers;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 public interface SDCardCapture {
@@ -27,6 +28,13 @@ public interface SDCardCapture {
 	public void beginFileCapture(String path) throws FileNotFoundException;
 	public void endFileCapture() throws IOException;
 
+	/**
+	 * Send the machine the next command from a file written by
+	 * beginFileCapture().
+	 * @return false at the end of the file
+	 */
+	public boolean replayFileCommand(InputStream in) throws IOException;
+
 	public ResponseCode playback(String filename);
 
 	/**
@@ -23,52 +23,55 @@
 
 package replicatorg.drivers;
 
-import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.Date;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.vecmath.Point3d;
 
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.Serial;
+import replicatorg.app.tools.XML;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.ToolModel;
 
+/**
+ * Drives firmware that parses G code itself, passing each line along as
+ * text.  Besides the usual serial settings, the driver element may give:
+ * <ul>
+ * <li>buffersize: the size of the firmware's receive buffer (128)</li>
+ * <li>checksums: "true" to send each line numbered and checksummed, and
+ * answer the firmware's resend requests (false)</li>
+ * </ul>
+ */
 public class SerialPassthroughDriver extends SerialDriver {
 	/**
-	 * To keep track of outstanding commands
+	 * the size of the buffer on the GCode host
 	 */
-	private Queue<Integer> commands;
+	private int maxBufferSize = 128;
 
 	/**
-	 * the size of the buffer on the GCode host
+	 * whether lines go out numbered and checksummed
 	 */
-	private int maxBufferSize = 128;
+	private boolean checksums = false;
 
 	/**
-	 * the amount of data we've sent and is in the buffer.
+	 * Sends our lines and reads the replies; made once we have a port.
 	 */
-	private int bufferSize = 0;
+	private volatile TextProtocol link = null;
 
 	/**
-	 * What did we get back from serial?
+	 * Notified when the firmware says it has started.
 	 */
-	private String result = "";
+	private final Object startLock = new Object();
 
 	private DecimalFormat df;
 
-	private byte[] responsebuffer = new byte[512];
-
 	public SerialPassthroughDriver() {
 		super();
 
 		// init our variables.
-		commands = new LinkedList<Integer>();
-		bufferSize = 0;
 		setInitialized(false);
 
 		df = new DecimalFormat("#.######");
@@ -76,6 +79,18 @@ public class SerialPassthroughDriver extends SerialDriver {
 
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
+		if (XML.hasChildNode(xml, "buffersize"))
+			maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "buffersize"));
+		if (XML.hasChildNode(xml, "checksums"))
+			checksums = Boolean.parseBoolean(XML.getChildNodeValue(xml, "checksums"));
+	}
+
+	public void setSerial(Serial serial) {
+		if (link != null && link.getSerial() != serial) {
+			link.close();
+			link = null;
+		}
+		super.setSerial(serial);
 	}
 
 	public void initialize() {
@@ -84,30 +99,35 @@ public class SerialPassthroughDriver extends SerialDriver {
 			Base.logger.severe("No Serial Port found.\n");
 			return;
 		}
+		if (link == null) {
+			link = new TextProtocol(serial, maxBufferSize, checksums, new TextProtocol.Listener() {
+				public void lineReceived(String line) {
+					handleResponse(line);
+				}
+			});
+		}
 		// wait till we're initialized
 		if (!isInitialized()) {
-			try {
-				// record our start time.
-				Date date = new Date();
-				long end = date.getTime() + 10000;
-
-				Base.logger.info("Initializing Serial.");
+			Base.logger.info("Initializing Serial.");
+			// only give them 10 seconds
+			long end = System.currentTimeMillis() + 10000;
+			synchronized (startLock) {
 				while (!isInitialized()) {
-					readResponse();
-
-					// record our current time
-					date = new Date();
-					long now = date.getTime();
-
-					// only give them 10 seconds
-					if (now > end) {
+					long wait = end - System.currentTimeMillis();
+					if (wait <= 0) {
 						Base.logger.warning("Serial link non-responsive.");
 						return;
 					}
+					try {
+						startLock.wait(wait);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
 				}
-			} catch (Exception e) {
-				// todo: handle init exceptions here
 			}
+			// the firmware has just started; so do we.
+			link.reset();
 			Base.logger.info("Ready.");
 		}
 
@@ -128,106 +148,57 @@ public class SerialPassthroughDriver extends SerialDriver {
 	}
 
 	/**
-	 * Actually sends command over serial. If the Arduino buffer is full, this
-	 * method will block until the command has been sent.
+	 * Actually sends command over serial. If the firmware's buffer is full,
+	 * this method will block until the command has been sent.
 	 */
 	protected void sendCommand(String next) {
 		assert (isInitialized());
-		assert (serial != null);
-		// System.out.println("sending: " + next);
-
-		next = clean(next);
-
-		// skip empty commands.
-		if (next.length() == 0)
-			return;
+		TextProtocol link = this.link;
+		if (link == null) return;
+		link.send(next);
+	}
 
-		// Block until we can fit the command on the Arduino
-		while (bufferSize + next.length() + 1 > maxBufferSize) {
-			readResponse();
+	/**
+	 * Deal with whatever the firmware says besides a plain "ok".  Called on
+	 * the link's reader thread.
+	 */
+	private void handleResponse(String line) {
+		if (line.startsWith("ok")) {
+			// an "ok" with something to say, usually a temperature.
+			if (line.indexOf("T:") >= 0) readTemperature(line);
+			Base.logger.fine(line);
+		} else if (line.startsWith("T:")) {
+			readTemperature(line);
+			Base.logger.fine(line);
 		}
-
-		synchronized (serial) {
-			// do the actual send.
-			serial.write(next + "\n");
+		// old arduino firmware sends "start"
+		else if (line.startsWith("start")) {
+			// todo: set version
+			synchronized (startLock) {
+				setInitialized(true);
+				startLock.notifyAll();
+			}
+			Base.logger.info(line);
+		} else if (line.startsWith("Extruder Fail")) {
+			setError("Extruder failed:  cannot extrude as this rate.");
+			Base.logger.severe(line);
+		} else {
+			Base.logger.severe("Unknown: " + line);
 		}
+	}
 
-		// record it in our buffer tracker.
-		int cmdlen = next.length() + 1;
-		commands.add(cmdlen);
-		bufferSize += cmdlen;
-
-		// debug... let us know whts up!
-		// System.out.println("Sent: " + next);
-		// System.out.println("Buffer: " + bufferSize + " (" + bufferLength + "
-		// commands)");
-	}
-
-	public String clean(String str) {
-		String clean = str;
-
-		// trim whitespace
-		clean = clean.trim();
-
-		// remove spaces
-		clean = clean.replaceAll(" ", "");
-
-		return clean;
-	}
-
-	public void readResponse() {
-		assert (serial != null);
-		synchronized (serial) {
-			try {
-				int numread = serial.read(responsebuffer);
-				// 0 is now an acceptable value; it merely means that we timed out
-				// waiting for input
-				if (numread < 0) {
-					// This signifies EOF. FIXME: How do we handle this?
-					Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
-					return;
-				} else {
-					result += new String(responsebuffer, 0, numread, "US-ASCII");
-
-					// System.out.println("got: " + c);
-					// System.out.println("current: " + result);
-					int index;
-					while ((index = result.indexOf('\n')) >= 0) {
-						String line = result.substring(0, index).trim(); // trim
-																			// to
-																			// remove
-																			// any
-																			// trailing
-																			// \r
-						result = result.substring(index + 1);
-						if (line.length() == 0)
-							continue;
-						if (line.startsWith("ok")) {
-							bufferSize -= commands.remove();
-							Base.logger.info(line);
-						} else if (line.startsWith("T:")) {
-							String temp = line.substring(2);
-							machine.currentTool().setCurrentTemperature(
-									Double.parseDouble(temp));
-							Base.logger.info(line);
-						}
-						// old arduino firmware sends "start"
-						else if (line.startsWith("start")) {
-							// todo: set version
-							setInitialized(true);
-							Base.logger.info(line);
-						} else if (line.startsWith("Extruder Fail")) {
-							setError("Extruder failed:  cannot extrude as this rate.");
-							Base.logger.severe(line);
-						} else {
-							Base.logger.severe("Unknown: " + line);
-						}
-					}
-				}
-			} catch (IOException e) {
-				Base.logger.severe("inputstream.read() failed: " + e.toString());
-				// FIXME: Shut down communication somehow.
-			}
+	/**
+	 * Take the current tool's temperature from a line like "T:201.5 B:60".
+	 */
+	private void readTemperature(String line) {
+		int start = line.indexOf("T:") + 2;
+		int end = start;
+		while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '/') end++;
+		try {
+			machine.currentTool().setCurrentTemperature(
+					Double.parseDouble(line.substring(start, end)));
+		} catch (NumberFormatException nfe) {
+			Base.logger.warning("Couldn't read temperature from: " + line);
 		}
 	}
 
@@ -239,20 +210,27 @@ public class SerialPassthroughDriver extends SerialDriver {
 	 * Is our buffer empty? If don't have a buffer, its always true.
 	 */
 	public boolean isBufferEmpty() {
+		TextProtocol link = this.link;
+		return link == null || link.isEmpty();
+	}
+
+	public void waitUntilBufferEmpty() {
+		TextProtocol link = this.link;
+		if (link == null) return;
 		try {
-			readResponse();
-		} catch (Exception e) {
+			while (!link.awaitEmpty(1000)) {
+				if (this.link != link) return; // disposed
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
-		return (bufferSize == 0);
 	}
 
 	public void dispose() {
-		super.dispose();
+		if (link != null) link.close();
+		link = null;
 
-		if (serial != null)
-			serial.dispose();
-		serial = null;
-		commands = null;
+		super.dispose();
 	}
 
 	/***************************************************************************
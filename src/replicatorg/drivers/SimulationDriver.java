@@ -75,7 +75,8 @@ public class SimulationDriver extends DriverBaseImplementation {
 	}
 
 	public void queuePoint(Point3d p) {
-		simulation.queuePoint(p);
+		if (simulation != null)
+			simulation.queuePoint(p);
 
 		super.queuePoint(p);
 	}
@@ -0,0 +1,460 @@
+/*
+ TextProtocol.java
+
+ Feeds lines of G code to firmware that reads them as text.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.drivers;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.Serial;
+
+/**
+ * The link to firmware that takes G code as lines of text, and answers
+ * "ok" once it has taken a line out of its receive buffer.
+ *
+ * Lines are sent as long as they fit in the firmware's receive buffer:
+ * we count the bytes of every line sent and not yet answered, and a
+ * sender waits on a condition until enough "ok"s have come back to make
+ * room.  The answers are read by a thread of our own, which splits them
+ * into lines in place in a byte buffer; an "ok" is counted without ever
+ * becoming a String.  Anything else is handed to the Listener.
+ *
+ * Optionally each line goes out numbered and checksummed, the way RepRap
+ * firmware checks them: "N12 G1X10*97".  When the firmware asks for a
+ * line again ("rs 12" or "Resend: 12") it has thrown away that line and
+ * everything after it, so we forget what we thought was in its buffer and
+ * send the lines again from there, one at a time, before going on.
+ */
+class TextProtocol {
+	/** Hears what the firmware says besides "ok". */
+	interface Listener {
+		/**
+		 * A line from the firmware, trimmed.  Called on the reader thread;
+		 * for an "ok" carrying more (say a temperature) this is the whole line.
+		 */
+		void lineReceived(String line);
+	}
+
+	/** Lines kept for resending; a power of two. */
+	private static final int HISTORY = 256;
+
+	private final Serial serial;
+	private final int window;
+	private final boolean numbered;
+	private final Listener listener;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled whenever the firmware makes room, and on close. */
+	private final Condition room = lock.newCondition();
+
+	// the lengths of the lines in the firmware's buffer, oldest first.
+	private final int[] pending = new int[HISTORY];
+	private int pendingHead = 0;
+	private int pendingCount = 0;
+	// the bytes in the firmware's buffer.
+	private int outstanding = 0;
+
+	// the last lines sent, as they went out, by line number.
+	private final byte[][] sent = new byte[HISTORY][];
+	private final int[] sentLength = new int[HISTORY];
+	// the number of the next new line, and of the next line to send again.
+	private long lineNumber = 0;
+	private long resendFrom = 0;
+	// the last line the firmware asked for again.
+	private long lastResend = -1;
+	// the "ok" after a resend request answers the line turned away.
+	private boolean okOwed = false;
+	// how many more requests for that line to expect from lines already
+	// on their way, and whether we're still sending lines again.
+	private int staleResends = 0;
+	private boolean recovering = false;
+
+	private volatile boolean closed = false;
+	private final Thread reader;
+
+	/**
+	 * Start reading from the port.
+	 * @param window the size of the firmware's receive buffer, in bytes
+	 * @param numbered whether to number and checksum each line
+	 */
+	TextProtocol(Serial serial, int window, boolean numbered, Listener listener) {
+		this.serial = serial;
+		this.window = window;
+		this.numbered = numbered;
+		this.listener = listener;
+		reader = new Thread("Firmware responses (" + serial.getName() + ")") {
+			public void run() {
+				readLines();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	Serial getSerial() { return serial; }
+
+	/**
+	 * Forget everything sent so far, as after the firmware restarts.  If
+	 * lines are numbered, tell the firmware to start counting again.
+	 */
+	void reset() {
+		lock.lock();
+		try {
+			clearPending();
+			lineNumber = resendFrom = 0;
+			lastResend = -1;
+			okOwed = false;
+			staleResends = 0;
+			recovering = false;
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (numbered) send("M110");
+	}
+
+	/**
+	 * Send a line, first waiting until the firmware has room for it.  The
+	 * ends are trimmed and spaces dropped.  A line too big for the buffer
+	 * is sent once the buffer is empty.
+	 * @return false if the line was empty, or we were closed or interrupted
+	 * before it could be sent; the thread's interrupt status is kept.
+	 */
+	boolean send(String command) {
+		lock.lock();
+		try {
+			int slot = slot(lineNumber);
+			int length = encode(command, lineNumber, slot);
+			if (length == 0) return false;
+			while (resendFrom < lineNumber || !fits(length)) {
+				if (closed) return false;
+				room.await();
+			}
+			lineNumber++;
+			resendFrom = lineNumber;
+			write(slot);
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Whether every line sent has been answered.
+	 */
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return pendingCount == 0 && resendFrom == lineNumber;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until every line sent has been answered.
+	 * @return false if we timed out, were closed, or were interrupted.
+	 */
+	boolean awaitEmpty(long millis) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		lock.lock();
+		try {
+			while (pendingCount > 0 || resendFrom < lineNumber) {
+				if (closed || nanos <= 0) return false;
+				nanos = room.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the reader thread and let any waiting sender go.
+	 */
+	void close() {
+		closed = true;
+		reader.interrupt();
+		lock.lock();
+		try {
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static int slot(long line) {
+		return (int)(line & (HISTORY - 1));
+	}
+
+	private boolean fits(int length) {
+		if (pendingCount == pending.length) return false;
+		return outstanding == 0 || outstanding + length <= window;
+	}
+
+	/**
+	 * Put a line into its slot the way it goes over the wire: trimmed, no
+	 * spaces, and numbered if need be.  Must be called with the lock held.
+	 * @return the length in bytes, newline included; 0 if the line is empty.
+	 */
+	private int encode(String command, long line, int slot) {
+		int start = 0, end = command.length();
+		while (start < end && command.charAt(start) <= ' ') start++;
+		while (end > start && command.charAt(end - 1) <= ' ') end--;
+		if (start == end) return 0;
+
+		// room for "N<line> ", the command, "*<checksum>" and the newline.
+		int need = (end - start) + 26;
+		byte[] b = sent[slot];
+		if (b == null || b.length < need) {
+			b = sent[slot] = new byte[Math.max(need, 64)];
+		}
+		int n = 0;
+		if (numbered) {
+			b[n++] = 'N';
+			n = appendNumber(b, n, line);
+			b[n++] = ' ';
+		}
+		for (int i = start; i < end; i++) {
+			char c = command.charAt(i);
+			if (c != ' ') b[n++] = (byte)c;
+		}
+		if (numbered) {
+			int check = 0;
+			for (int i = 0; i < n; i++) check ^= b[i];
+			b[n++] = '*';
+			n = appendNumber(b, n, check & 0xff);
+		}
+		b[n++] = '\n';
+		sentLength[slot] = n;
+		return n;
+	}
+
+	private static int appendNumber(byte[] b, int n, long value) {
+		if (value < 0) {
+			b[n++] = '-';
+			value = -value;
+		}
+		int first = n;
+		do {
+			b[n++] = (byte)('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		// the digits went in backwards.
+		for (int i = first, j = n - 1; i < j; i++, j--) {
+			byte t = b[i]; b[i] = b[j]; b[j] = t;
+		}
+		return n;
+	}
+
+	/** Send the line in a slot and count it.  Must be called with the lock held. */
+	private void write(int slot) {
+		int length = sentLength[slot];
+		pending[(pendingHead + pendingCount) % pending.length] = length;
+		pendingCount++;
+		outstanding += length;
+		serial.write(sent[slot], 0, length);
+	}
+
+	private void clearPending() {
+		pendingHead = pendingCount = 0;
+		outstanding = 0;
+	}
+
+	/** The firmware has taken the oldest line. */
+	private void acknowledge() {
+		lock.lock();
+		try {
+			if (okOwed) {
+				okOwed = false;
+				return;
+			}
+			if (pendingCount > 0) {
+				outstanding -= pending[pendingHead];
+				pendingHead = (pendingHead + 1) % pending.length;
+				pendingCount--;
+			}
+			if (resendFrom < lineNumber) {
+				resendNext();
+			} else {
+				recovering = false;
+			}
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** The firmware threw away the given line and everything after it. */
+	private void resend(long line) {
+		lock.lock();
+		try {
+			if (!numbered) {
+				Base.logger.warning("Firmware asked for line " + line + " again, but lines aren't numbered.");
+				return;
+			}
+			okOwed = true;
+			// the firmware only moves forward, so a request for an earlier
+			// line is old news.  So is a request for the same line from each
+			// of the lines that were on their way when it was first asked
+			// for; those are all turned away before the line sent again is.
+			if (line < lastResend) return;
+			if (line == lastResend && staleResends > 0) {
+				staleResends--;
+				return;
+			}
+			if (line > lineNumber || line <= lineNumber - HISTORY) {
+				Base.logger.warning("Firmware asked for line " + line + " again, which we can't send.");
+				return;
+			}
+			if (line < lineNumber) Base.logger.info("Resending from line " + line + ".");
+			staleResends = Math.max(0, pendingCount - 1);
+			lastResend = line;
+			// whatever was in the firmware's buffer is gone, or will be
+			// turned away; the "ok"s still to come for it are ignored.
+			clearPending();
+			resendFrom = line;
+			recovering = resendFrom < lineNumber;
+			resendNext();
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * While catching up after a resend, send the next line once the
+	 * firmware has answered the last.  Must be called with the lock held.
+	 */
+	private void resendNext() {
+		if (resendFrom < lineNumber && pendingCount == 0) {
+			write(slot(resendFrom++));
+		}
+	}
+
+	/**
+	 * Nothing has come in for a while.  If that's while catching up, the
+	 * line sent again may have been lost too; send it once more.  Should it
+	 * get there twice, the firmware turns the second one away by its number.
+	 */
+	private void quiet() {
+		lock.lock();
+		try {
+			if (recovering && pendingCount > 0) {
+				Base.logger.info("No answer to line " + (resendFrom - 1) + "; sending it again.");
+				clearPending();
+				resendFrom--;
+				resendNext();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The reader thread: split what comes in into lines, in place.
+	 */
+	private void readLines() {
+		byte[] buf = new byte[1024];
+		int fill = 0;
+		while (!closed) {
+			int n = serial.read(buf, fill, buf.length - fill, serial.deadline());
+			if (n < 0) break; // interrupted; we're closing
+			if (n == 0) {
+				if (serial.isDisconnected()) {
+					Base.logger.severe("Lost the connection to " + serial.getName() + ".");
+					break;
+				}
+				quiet();
+				continue;
+			}
+			int start = 0;
+			int end = fill + n;
+			for (int i = fill; i < end; i++) {
+				if (buf[i] == '\n') {
+					received(buf, start, i);
+					start = i + 1;
+				}
+			}
+			if (start == 0 && end == buf.length) {
+				// a line longer than the buffer; take what we have.
+				received(buf, 0, end);
+				start = end;
+			}
+			fill = end - start;
+			System.arraycopy(buf, start, buf, 0, fill);
+		}
+	}
+
+	private void received(byte[] buf, int start, int end) {
+		while (start < end && buf[start] <= ' ') start++;
+		while (end > start && buf[end - 1] <= ' ') end--;
+		int length = end - start;
+		if (length == 0) return;
+
+		if (length >= 2 && buf[start] == 'o' && buf[start + 1] == 'k') {
+			acknowledge();
+			if (length == 2) {
+				if (Base.logger.isLoggable(Level.FINE)) Base.logger.fine("ok");
+				return;
+			}
+		} else if (startsWith(buf, start, end, "rs") || startsWith(buf, start, end, "Resend:")) {
+			long line = parseNumber(buf, start, end);
+			if (line >= 0) {
+				resend(line);
+				return;
+			}
+		}
+		try {
+			listener.lineReceived(new String(buf, start, length, "US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			// every JVM has US-ASCII.
+		}
+	}
+
+	private static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+		if (end - start < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[start + i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/** The first run of digits in the line, or -1 if there are none. */
+	private static long parseNumber(byte[] buf, int start, int end) {
+		int i = start;
+		while (i < end && (buf[i] < '0' || buf[i] > '9')) i++;
+		if (i == end) return -1;
+		long value = 0;
+		while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+			value = value * 10 + (buf[i++] - '0');
+		}
+		return value;
+	}
+}
@@ -0,0 +1,64 @@
+package replicatorg.drivers.gen3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back the commands in a build file written by file capture.  A
+ * build file is just the payloads of the command packets, one after the
+ * other, so the length of each comes from its command code: the same table
+ * the firmware uses to play a file from the SD card.
+ */
+class CaptureReader {
+	/**
+	 * The payload length, not counting the command byte, of a command with a
+	 * fixed length; -1 for any other code.
+	 */
+	static int payloadLength(int code) {
+		switch (code) {
+		case 129: return 16; // QUEUE_POINT_ABS
+		case 130: return 12; // SET_POSITION
+		case 131: // FIND_AXES_MINIMUM
+		case 132: return 7;  // FIND_AXES_MAXIMUM
+		case 133: return 4;  // DELAY
+		case 134: return 1;  // CHANGE_TOOL
+		case 135: return 5;  // WAIT_FOR_TOOL
+		case 137: return 1;  // ENABLE_AXES
+		}
+		return -1;
+	}
+
+	/**
+	 * Read the next command into the given builder.
+	 * @return false at the end of the file
+	 * @throws IOException if the file can't be read or isn't a build file
+	 */
+	static boolean read(InputStream in, PacketBuilder pb) throws IOException {
+		int code = in.read();
+		if (code == -1) return false;
+		pb.reset(code);
+		int length = payloadLength(code);
+		if (code == MotherboardCommandCode.TOOL_COMMAND.getCode()) {
+			// tool index, tool command and the length of what follows
+			pb.add8(next(in));
+			pb.add8(next(in));
+			length = next(in);
+			pb.add8(length);
+		} else if (length < 0) {
+			throw new IOException("Unknown command " + code + " in build file.");
+		}
+		for (int i = 0; i < length; i++) {
+			pb.add8(next(in));
+		}
+		return true;
+	}
+
+	private static int next(InputStream in) throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			throw new EOFException("The build file ends partway through a command.");
+		}
+		return b;
+	}
+}
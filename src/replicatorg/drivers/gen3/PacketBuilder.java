@@ -5,6 +5,16 @@ import replicatorg.app.tools.IButtonCrc;
 public class PacketBuilder implements PacketConstants {
 	final static int MAX_PACKET_LENGTH = 256;
 
+	/**
+	 * One builder per thread for the commands sent most often; see
+	 * obtain().
+	 */
+	private static final ThreadLocal<PacketBuilder> pool = new ThreadLocal<PacketBuilder>() {
+		protected PacketBuilder initialValue() {
+			return new PacketBuilder(0);
+		}
+	};
+
 	/**
 	 * A class for building a new packet to send down the wire to the
 	 * Sanguino3G.
@@ -15,18 +25,37 @@ public class PacketBuilder implements PacketConstants {
 	// and packet payload length.
 	int idx = 2;
 
-	IButtonCrc crc = new IButtonCrc();
+	int crc = 0;
 
 	/**
 	 * Start building a new command packet.
-	 * 
+	 *
 	 * @param target
 	 *            the target identifier for this packet.
 	 * @param command
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		reset(command);
+	}
+
+	/**
+	 * Get this thread's reusable builder, started on a new command packet.
+	 * The builder is only good until the next call to obtain() on the same
+	 * thread, so it must be sent before any other packet is built.
+	 */
+	static PacketBuilder obtain(int command) {
+		PacketBuilder pb = pool.get();
+		pb.reset(command);
+		return pb;
+	}
+
+	/**
+	 * Throw away the packet built so far and start a new one.
+	 */
+	void reset(int command) {
 		idx = 2;
+		crc = 0;
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
 		add8((byte) command);
@@ -34,18 +63,18 @@ public class PacketBuilder implements PacketConstants {
 
 	/**
 	 * Add an 8-bit value to the end of the packet payload.
-	 * 
+	 *
 	 * @param v
 	 *            the value to append.
 	 */
 	void add8(int v) {
 		data[idx++] = (byte) v;
-		crc.update((byte) v);
+		crc = IButtonCrc.update(crc, (byte) v);
 	}
 
 	/**
 	 * Add a 16-bit value to the end of the packet payload.
-	 * 
+	 *
 	 * @param v
 	 *            the value to append.
 	 */
@@ -56,7 +85,7 @@ public class PacketBuilder implements PacketConstants {
 
 	/**
 	 * Add a 32-bit value to the end of the packet payload.
-	 * 
+	 *
 	 * @param v
 	 *            the value to append. Must be long to support unsigned ints.
 	 */
@@ -65,16 +94,26 @@ public class PacketBuilder implements PacketConstants {
 		add16((int) ((v >> 16) & 0xffff));
 	}
 
+	/**
+	 * Complete the packet in place.
+	 *
+	 * @return the length of the completed packet, which starts at data[0].
+	 */
+	int finish() {
+		data[idx] = (byte) crc;
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		return idx + 1;
+	}
+
 	/**
 	 * Complete the packet.
-	 * 
+	 *
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
+		int length = finish();
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
 		return rv;
 	}
 
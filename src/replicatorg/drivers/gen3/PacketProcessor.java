@@ -25,7 +25,7 @@ public class PacketProcessor implements PacketConstants {
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	int crc = 0;
 
 	/**
 	 * Reset the packet's state. (The crc is (re-)generated on the length byte
@@ -45,6 +45,44 @@ public class PacketProcessor implements PacketConstants {
 		return pr;
 	}
 
+	/**
+	 * Check a whole packet, as read by Serial.readPacket(), without keeping
+	 * it.
+	 * 
+	 * @return true if the CRC matches.
+	 */
+	static boolean isValid(byte[] buf, int length) {
+		return IButtonCrc.compute(buf, 0, length) == buf[length];
+	}
+
+	/**
+	 * Process a whole packet, as read by Serial.readPacket().
+	 * 
+	 * @param buf the payload, followed by the CRC byte
+	 * @param length the payload length
+	 * @return true (a complete packet is always valid; a bad CRC throws)
+	 */
+	public boolean processPacket(byte[] buf, int length) {
+		payloadLength = length;
+		payload = new byte[length];
+		System.arraycopy(buf, 0, payload, 0, length);
+		crc = IButtonCrc.compute(buf, 0, length) & 0xff;
+		targetCrc = buf[length];
+		if (Base.logger.isLoggable(Level.FINER)) {
+			StringBuffer sb = new StringBuffer("IN: ");
+			for (int i = 0; i <= length; i++) {
+				sb.append(Integer.toHexString((int) buf[i] & 0xff));
+				sb.append(" ");
+			}
+			Base.logger.log(Level.FINER,sb.toString());
+		}
+		if ((byte) crc != targetCrc) {
+			throw new java.lang.RuntimeException("CRC mismatch on reply");
+		}
+		packetState = PacketState.START;
+		return true;
+	}
+
 	/**
 	 * Process the next byte in an incoming packet.
 	 * 
@@ -78,7 +116,7 @@ public class PacketProcessor implements PacketConstants {
 
 			payloadLength = ((int) b) & 0xFF;
 			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			crc = 0;
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -86,7 +124,7 @@ public class PacketProcessor implements PacketConstants {
 			// sanity check
 			if (payloadIdx < payloadLength) {
 				payload[payloadIdx++] = b;
-				crc.update(b);
+				crc = IButtonCrc.update(crc, b);
 			}
 			if (payloadIdx >= payloadLength) {
 				packetState = PacketState.CRC;
@@ -100,9 +138,9 @@ public class PacketProcessor implements PacketConstants {
 				Base.logger.log(Level.FINER,"Target CRC: "
 						+ Integer.toHexString((int) targetCrc & 0xff)
 						+ " - expected CRC: "
-						+ Integer.toHexString((int) crc.getCrc() & 0xff));
+						+ Integer.toHexString(crc));
 			}
-			if (crc.getCrc() != targetCrc) {
+			if ((byte) crc != targetCrc) {
 				throw new java.lang.RuntimeException("CRC mismatch on reply");
 			}
 			return true;
@@ -27,6 +27,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -39,6 +41,7 @@ import javax.vecmath.Point3d;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
 import replicatorg.drivers.BadFirmwareVersionException;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.SDCardCapture;
@@ -52,6 +55,24 @@ public class Sanguino3GDriver extends SerialDriver
 	implements OnboardParameters, SDCardCapture
 {
 	Version toolVersion = new Version(0,0);
+
+	// responses are read into this, whole packets at a time.
+	private final byte[] responseBuffer = new byte[256];
+
+	/** The longest we'll wait on a full buffer before trying again. */
+	private static final long MAX_BACKOFF_MILLIS = 25;
+	// a running average of how long recent moves take, in microseconds
+	private double moveMicros = -1;
+
+	// planning moves ahead on the host; see SegmentPlanner.  Off unless the
+	// "lookahead" element asks for a window of two or more moves.
+	private int lookahead = 0;
+	private double junctionDeviation = 0.05;
+	private int rampSegments = 2;
+	private SegmentPlanner planner = null;
+
+	/** Planned segments shorter than this are folded into the next. */
+	private static final int MIN_SEGMENT_STEPS = 4;
 	
 	public Sanguino3GDriver() {
 		super();
@@ -65,7 +86,93 @@ public class Sanguino3GDriver extends SerialDriver
 
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
+		try {
+			if (XML.hasChildNode(xml, "lookahead")) {
+				lookahead = Integer.parseInt(XML.getChildNodeValue(xml, "lookahead"));
+			}
+			if (XML.hasChildNode(xml, "junctiondeviation")) {
+				junctionDeviation = Double.parseDouble(XML.getChildNodeValue(xml, "junctiondeviation"));
+			}
+			if (XML.hasChildNode(xml, "rampsegments")) {
+				rampSegments = Integer.parseInt(XML.getChildNodeValue(xml, "rampsegments"));
+			}
+		} catch (NumberFormatException nfe) {
+			Base.logger.warning("Bad look-ahead setting; not planning moves ahead.");
+			lookahead = 0;
+		}
+	}
+
+	/**
+	 * Whether moves are planned ahead on the host, so that the moves held
+	 * at any moment depend on the ones before them.
+	 */
+	public boolean isPlanningMoves() {
+		return lookahead >= 2;
+	}
+
+	/**
+	 * The host planner, or null if moves are sent as they come.
+	 */
+	private SegmentPlanner getPlanner() {
+		if (lookahead < 2) return null;
+		if (planner == null) {
+			Point3d a = machine.getMaximumAccelerations();
+			if (a.x <= 0 && a.y <= 0 && a.z <= 0) {
+				Base.logger.warning("No axis accelerations are given for this machine; not planning moves ahead.");
+				lookahead = 0;
+				return null;
+			}
+			planner = new SegmentPlanner(new SegmentPlanner.Output() {
+				public boolean segment(double x0, double y0, double z0,
+						double x1, double y1, double z1, double seconds, boolean last) {
+					long x = machine.xMMtoSteps(x1);
+					long y = machine.yMMtoSteps(y1);
+					long z = machine.zMMtoSteps(z1);
+					long masterSteps = Math.max(Math.abs(x - machine.xMMtoSteps(x0)),
+							Math.max(Math.abs(y - machine.yMMtoSteps(y0)),
+									Math.abs(z - machine.zMMtoSteps(z0))));
+					if (masterSteps == 0 || (masterSteps < MIN_SEGMENT_STEPS && !last)) {
+						return false;
+					}
+					queueAbsolutePoint(x, y, z, Math.round(seconds * 1000000.0 / masterSteps), masterSteps);
+					return true;
+				}
+			}, lookahead, new double[] { a.x, a.y, a.z }, junctionDeviation, rampSegments);
+		}
+		return planner;
+	}
+
+	/**
+	 * Send every move the host planner is still holding, bringing the
+	 * machine to a stop at the end of them.  Anything else the machine
+	 * queues does this first, and so does isFinished().
+	 */
+	public void flushMoves() {
+		if (planner != null) planner.flush();
+	}
 
+	private static boolean isQueuePoint(byte[] packet) {
+		return (packet[2] & 0xff) == MotherboardCommandCode.QUEUE_POINT_ABS.getCode();
+	}
+
+	/**
+	 * Note a move queued for the machine, to learn how quickly its buffer
+	 * drains.  A queued point carries the time between steps of its
+	 * master axis, so the move takes that times the master axis's steps.
+	 */
+	private void noteMove(long micros, long masterSteps) {
+		double duration = (double)micros * masterSteps;
+		moveMicros = (moveMicros < 0) ? duration : 0.9 * moveMicros + 0.1 * duration;
+	}
+
+	/**
+	 * How long to wait before trying a full buffer again: about one move's
+	 * worth of time, which is when the machine next frees up room.
+	 */
+	private long backoffMillis() {
+		if (moveMicros < 0) return MAX_BACKOFF_MILLIS;
+		long millis = Math.round(moveMicros / 1000.0);
+		return Math.max(1, Math.min(MAX_BACKOFF_MILLIS, millis));
 	}
 
 	public void initialize() {
@@ -162,29 +269,59 @@ public class Sanguino3GDriver extends SerialDriver
 	 * Sends the command over the serial connection and retrieves a result.
 	 */
 	protected PacketResponse runCommand(byte[] packet) {
+		if (packet == null)
+			return null;
+		return runCommand(packet, packet.length);
+	}
+
+	/**
+	 * Completes the packet and sends it straight from the builder's buffer.
+	 */
+	protected PacketResponse runCommand(PacketBuilder pb) {
+		return runCommand(pb.data, pb.finish());
+	}
+
+	/**
+	 * The answer to every queued point that went through.  Nothing reads
+	 * the answer to a point, so one object does for all of them, and a
+	 * build doesn't allocate a response per move.
+	 */
+	private static final PacketResponse POINT_OK = PacketResponse.okResponse();
+
+	/**
+	 * Sends the first length bytes of the given buffer as a command.
+	 */
+	private PacketResponse runCommand(byte[] packet, int length) {
 		assert (serial != null);
 		
-		if (packet == null || packet.length < 4)
+		if (packet == null || length < 4)
 			return null; // skip empty commands or broken commands
 
 		boolean isCommand = (packet[2] & 0x80) != 0;
+		boolean isPoint = isQueuePoint(packet);
+
+		if (planner != null && isCommand && !isPoint) {
+			// the machine has to finish the planned moves first.
+			planner.flush();
+		}
 		
 		if (fileCaptureOstream != null) {
 			// capture to file.
 			try {
 				if (isCommand) { // ignore query commands
-					fileCaptureOstream.write(packet,2,packet.length-3);
+					fileCaptureOstream.write(packet,2,length-3);
 				} 
 			} catch (IOException ioe) {
 				// IOE should be very rare and shouldn't have to contaminate
 				// our whole call stack; we'll wrap it in a runtime error.
 				throw new RuntimeException(ioe);
 			}
+			if (isPoint) return POINT_OK;
 			return PacketResponse.okResponse();  // Always pretend that it's all good.
 		}
 		
 		boolean packetSent = false;
-		PacketProcessor pp = new PacketProcessor();
+		PacketProcessor pp;
 		PacketResponse pr = new PacketResponse();
 
 		while (!packetSent) {
@@ -196,11 +333,11 @@ public class Sanguino3GDriver extends SerialDriver
 			pp = new PacketProcessor();
 
 			synchronized (serial) {
-				serial.write(packet);
+				serial.write(packet, 0, length);
 
 				if (Base.logger.isLoggable(Level.FINER)) {
 					StringBuffer buf = new StringBuffer("OUT: ");
-					for (int i = 0; i < packet.length; i++) {
+					for (int i = 0; i < length; i++) {
 						buf.append(Integer
 								.toHexString((int) packet[i] & 0xff));
 						buf.append(" ");
@@ -214,8 +351,8 @@ public class Sanguino3GDriver extends SerialDriver
 						if (Thread.currentThread().isInterrupted()) { 
 							return pr;
 						}
-						int b = serial.read();
-						if (b == -1) {
+						int responseLength = serial.readPacket(responseBuffer, PacketConstants.START_BYTE, serial.deadline());
+						if (responseLength == -1) {
 							// Read timed out.
 							try {
 								Thread.sleep(60);
@@ -235,7 +372,11 @@ public class Sanguino3GDriver extends SerialDriver
 								return pr;
 							}
 						}
-						c = pp.processByte((byte) b);
+						if (isPoint && PacketProcessor.isValid(responseBuffer, responseLength) &&
+								PacketResponse.ResponseCode.fromInt(responseBuffer[0]) == PacketResponse.ResponseCode.OK) {
+							return POINT_OK;
+						}
+						c = pp.processPacket(responseBuffer, responseLength);
 					}
 
 					pr = pp.getResponse();
@@ -244,7 +385,7 @@ public class Sanguino3GDriver extends SerialDriver
 						packetSent = true;
 					else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
 						try {
-							Thread.sleep(25);
+							Thread.sleep(backoffMillis());
 						} catch (InterruptedException e) {
 							Thread.currentThread().interrupt();
 							// We've been interrupted; dump out early!
@@ -254,7 +395,7 @@ public class Sanguino3GDriver extends SerialDriver
 					// TODO: implement other error things.
 					else {
 						StringBuffer sb = new StringBuffer("Sending ");
-						for (int i = 0; i < packet.length; i++) {
+						for (int i = 0; i < length; i++) {
 							sb.append(Integer.toHexString(packet[i]));
 							sb.append(" ");
 						}
@@ -271,8 +412,9 @@ public class Sanguino3GDriver extends SerialDriver
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
+		flushMoves();
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.IS_FINISHED.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		int v = pr.get8();
 		if (pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED) {
 			if (!isNotifiedFinishedFeature) {
@@ -297,7 +439,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.VERSION.getCode());
 		pb.add16(Base.VERSION);
 
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		if (pr.isEmpty()) return null;
 		int versionNum = pr.get16();
 
@@ -317,7 +459,7 @@ public class Sanguino3GDriver extends SerialDriver
 		slavepb.add8((byte) machine.currentTool().getIndex());
 		slavepb.add8(ToolCommandCode.VERSION.getCode());
 		int slaveVersionNum = 0;
-		PacketResponse slavepr = runCommand(slavepb.getPacket());
+		PacketResponse slavepr = runCommand(slavepb);
 		if (!slavepr.isEmpty()) {
 			slaveVersionNum = slavepr.get16();
 		}
@@ -345,7 +487,7 @@ public class Sanguino3GDriver extends SerialDriver
 
 	public void sendInit() {
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.INIT.getCode());
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	/***************************************************************************
@@ -353,25 +495,37 @@ public class Sanguino3GDriver extends SerialDriver
 	 **************************************************************************/
 
 	public void queuePoint(Point3d p) {
-		Base.logger.log(Level.FINE,"Queued point " + p);
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.log(Level.FINE,"Queued point " + p);
+		}
 
-		// is this point even step-worthy?
-		Point3d deltaSteps = getAbsDeltaSteps(getCurrentPosition(), p);
-		double masterSteps = getLongestLength(deltaSteps);
+		// is this point even step-worthy?  Everything here is done on
+		// doubles, since this runs for every move of a build.
+		Point3d current = currentPosition();
+		double dx = p.x - current.x;
+		double dy = p.y - current.y;
+		double dz = p.z - current.z;
+		long xSteps = machine.xMMtoSteps(Math.abs(dx));
+		long ySteps = machine.yMMtoSteps(Math.abs(dy));
+		long zSteps = machine.zMMtoSteps(Math.abs(dz));
+		double masterSteps = Math.max(xSteps, Math.max(ySteps, zSteps));
 
 		// okay, we need at least one step.
 		if (masterSteps > 0.0) {
-			// where we going?
-			Point3d steps = machine.mmToSteps(p);
-
 			// how fast are we doing it?
-			long micros = convertFeedrateToMicros(getCurrentPosition(),
-					p, getSafeFeedrate(deltaSteps));
-
-			//System.err.println("Steps :"+steps.toString()+" micros "+Long.toString(micros));
-
-			// okay, send it off!
-			queueAbsolutePoint(steps, micros);
+			double feedrate = getSafeFeedrate(xSteps, ySteps, zSteps);
+			SegmentPlanner sp = (feedrate > 0) ? getPlanner() : null;
+			if (sp != null) {
+				// the planner works in mm/s
+				sp.queue(current.x, current.y, current.z, p.x, p.y, p.z, feedrate / 60.0);
+			} else {
+				flushMoves();
+				long micros = convertFeedrateToMicros(dx, dy, dz, masterSteps, feedrate);
+
+				// okay, send it off!
+				queueAbsolutePoint(machine.xMMtoSteps(p.x), machine.yMMtoSteps(p.y),
+						machine.zMMtoSteps(p.z), micros, (long)masterSteps);
+			}
 
 			super.queuePoint(p);
 		}
@@ -408,21 +562,26 @@ public class Sanguino3GDriver extends SerialDriver
 	 * //send this segment queueIncrementalPoint(pb, segmentSteps, ticks); } }
 	 */
 
-	private void queueAbsolutePoint(Point3d steps, long micros) {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
+	/**
+	 * @param micros the time between steps of the master axis
+	 * @param masterSteps how many steps the master axis takes
+	 */
+	private void queueAbsolutePoint(long x, long y, long z, long micros, long masterSteps) {
+		PacketBuilder pb = PacketBuilder.obtain(MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
-			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
-					+ Long.toString(micros) + " usec.");
+			Base.logger.log(Level.FINE,"Queued absolute point (" + x + ", " + y +
+					", " + z + ") at " + Long.toString(micros) + " usec.");
 		}
 
 		// just add them in now.
-		pb.add32((int) steps.x);
-		pb.add32((int) steps.y);
-		pb.add32((int) steps.z);
+		pb.add32((int) x);
+		pb.add32((int) y);
+		pb.add32((int) z);
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		noteMove(micros, masterSteps);
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point3d p) {
@@ -439,7 +598,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Set current position to " + p + " (" + steps
 					+ ")");
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setCurrentPosition(p);
 	}
@@ -486,7 +645,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(flags);
 		pb.add32((int) micros);
 		pb.add16(20); // default to 20 seconds
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 		
 
@@ -498,7 +657,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// send it!
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.DELAY.getCode());
 		pb.add32(millis);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void openClamp(int clampIndex) {
@@ -517,7 +676,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// not be explicitly enabled.
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(0x87); // enable x,y,z
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.enableDrives();
 	}
 
@@ -525,7 +684,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// Command RMB to disable its steppers.
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(0x07); // disable x,y,z
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.disableDrives();
 	}
 
@@ -544,7 +703,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8((byte) toolIndex);
 		pb.add16(100); // delay between master -> slave pings (millis)
 		pb.add16(120); // timeout before continuing (seconds)
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void selectTool(int toolIndex) {
@@ -553,7 +712,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// send it!
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.CHANGE_TOOL.getCode());
 		pb.add8((byte) toolIndex);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.selectTool(toolIndex);
 	}
@@ -577,7 +736,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_MOTOR_1_RPM.getCode());
 		pb.add8((byte) 4); // length of payload.
 		pb.add32(microseconds);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setMotorRPM(rpm);
 	}
@@ -591,7 +750,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_MOTOR_1_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) pwm);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setMotorSpeedPWM(pwm);
 	}
@@ -613,7 +772,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.enableMotor();
 	}
@@ -631,7 +790,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableMotor();
 	}
@@ -640,7 +799,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_MOTOR_1_PWM.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		// get it
 		int pwm = pr.get8();
@@ -657,7 +816,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_MOTOR_1_RPM.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		// convert back to RPM
 		long micros = pr.get32();
@@ -690,7 +849,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_MOTOR_2_RPM.getCode());
 		pb.add8((byte) 4); // payload length
 		pb.add32(microseconds);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setSpindleRPM(rpm);
 	}
@@ -704,7 +863,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_MOTOR_2_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) pwm);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setMotorSpeedPWM(pwm);
 	}
@@ -726,7 +885,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_2.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.enableSpindle();
 	}
@@ -744,7 +903,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableSpindle();
 	}
@@ -753,7 +912,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_MOTOR_2_RPM.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		// convert back to RPM
 		long micros = pr.get32();
@@ -772,7 +931,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_MOTOR_2_PWM.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		// get it
 		int pwm = pr.get8();
@@ -800,7 +959,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_TEMP.getCode());
 		pb.add8((byte) 2); // payload length
 		pb.add16(temp);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setTemperature(temperature);
 	}
@@ -809,7 +968,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_TEMP.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		if (pr.isEmpty()) return;
 		int temp = pr.get16();
 		machine.currentTool().setCurrentTemperature(temp);
@@ -835,7 +994,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.SET_PLATFORM_TEMP.getCode());
 		pb.add8((byte) 2); // payload length
 		pb.add16(temp);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		
 		super.setPlatformTemperature(temperature);
 	}
@@ -844,7 +1003,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_PLATFORM_TEMP.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		if (pr.isEmpty()) return;
 		int temp = pr.get16();
 		machine.currentTool().setPlatformCurrentTemperature(temp);
@@ -896,7 +1055,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 1); // enable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.enableFan();
 	}
@@ -909,7 +1068,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 0); // disable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableFan();
 	}
@@ -925,7 +1084,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 1); // enable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.openValve();
 	}
@@ -938,7 +1097,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 0); // disable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.closeValve();
 	}
@@ -963,8 +1122,9 @@ public class Sanguino3GDriver extends SerialDriver
 	 **************************************************************************/
 	public void pause() {
 		Base.logger.log(Level.FINE,"Sending asynch pause command");
+		flushMoves();
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE.getCode());
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void unpause() {
@@ -973,51 +1133,34 @@ public class Sanguino3GDriver extends SerialDriver
 		// use
 		// the pause command to toggle the pause state.
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE.getCode());
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	/***************************************************************************
 	 * Various timer and math functions.
 	 **************************************************************************/
 
-	private Point3d getDeltaDistance(Point3d current, Point3d target) {
-		// calculate our deltas.
-		Point3d delta = new Point3d();
-		delta.x = target.x - current.x;
-		delta.y = target.y - current.y;
-		delta.z = target.z - current.z;
-
-		return delta;
-	}
-
-	@SuppressWarnings("unused")
-	private Point3d getDeltaSteps(Point3d current, Point3d target) {
-		return machine.mmToSteps(getDeltaDistance(current, target));
-	}
-
-	private Point3d getAbsDeltaDistance(Point3d current, Point3d target) {
-		// calculate our deltas.
-		Point3d delta = new Point3d();
-		delta.x = Math.abs(target.x - current.x);
-		delta.y = Math.abs(target.y - current.y);
-		delta.z = Math.abs(target.z - current.z);
-
-		return delta;
-	}
-
-	private Point3d getAbsDeltaSteps(Point3d current, Point3d target) {
-		return machine.mmToSteps(getAbsDeltaDistance(current, target));
-	}
-
 	private long convertFeedrateToMicros(Point3d current, Point3d target,
 			double feedrate) {
-		Point3d deltaDistance = getAbsDeltaDistance(current, target);
-		Point3d deltaSteps = getAbsDeltaSteps(current, target);
+		double dx = target.x - current.x;
+		double dy = target.y - current.y;
+		double dz = target.z - current.z;
+		double masterSteps = Math.max(machine.xMMtoSteps(Math.abs(dx)),
+				Math.max(machine.yMMtoSteps(Math.abs(dy)), machine.zMMtoSteps(Math.abs(dz))));
+		return convertFeedrateToMicros(dx, dy, dz, masterSteps, feedrate);
+	}
+
+	/**
+	 * @param dx the signed x distance of the move in mm
+	 * @param masterSteps the number of steps taken by the axis that moves
+	 * furthest
+	 * @param feedrate in mm/minute
+	 * @return the time between steps of the master axis in microseconds
+	 */
+	private long convertFeedrateToMicros(double dx, double dy, double dz,
+			double masterSteps, double feedrate) {
 		// how long is our line length?
-		double distance = Math.sqrt(deltaDistance.x * deltaDistance.x
-				+ deltaDistance.y * deltaDistance.y + deltaDistance.z
-				* deltaDistance.z);
-		double masterSteps = getLongestLength(deltaSteps);
+		double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
 		// distance is in steps
 		// feedrate is in steps/
 		// distance / feedrate * 60,000,000 = move duration in microseconds
@@ -1027,21 +1170,6 @@ public class Sanguino3GDriver extends SerialDriver
 		return (long) Math.round(step_delay);
 	}
 
-	private double getLongestLength(Point3d p) {
-		// find the dominant axis.
-		if (p.x > p.y) {
-			if (p.z > p.x)
-				return p.z;
-			else
-				return p.x;
-		} else {
-			if (p.z > p.y)
-				return p.z;
-			else
-				return p.y;
-		}
-	}
-
 	public String getDriverName() {
 		return "Sanguino3G";
 	}
@@ -1053,14 +1181,19 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.warning("Stop.");
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.ABORT.getCode());
 		Thread.interrupted(); // Clear interrupted status
-		runCommand(pb.getPacket());
+		if (planner != null) planner.clear();
+		runCommand(pb);
 		// invalidate position, force reconciliation.
 		invalidatePosition();
 	}
 
 	protected Point3d reconcilePosition() {
+		if (fileCaptureOstream != null) {
+			// There's no machine to ask; start from the origin.
+			return new Point3d();
+		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_POSITION.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		Point3d steps = new Point3d(pr.get32(), pr.get32(), pr.get32());
 		// Useful quickie debugs
 //		System.err.println("Reconciling : "+machine.stepsToMM(steps).toString());
@@ -1069,10 +1202,11 @@ public class Sanguino3GDriver extends SerialDriver
 
 	public void reset() {
 		Base.logger.info("Reset.");
+		if (planner != null) planner.clear();
 		if (isInitialized() && version.compareTo(new Version(1,4)) >= 0) {
 			// WDT reset introduced in version 1.4 firmware
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.RESET.getCode());
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}
 		setInitialized(false);
 		initialize();
@@ -1114,7 +1248,7 @@ public class Sanguino3GDriver extends SerialDriver
 		for (byte b : data) {
 			pb.add8(b);
 		}
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		assert pr.get8() == data.length; 
 	}
 
@@ -1124,7 +1258,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add8(ToolCommandCode.READ_FROM_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		if (pr.isOK()) {
 			int rvlen = Math.min(pr.getPayload().length - 1,len);
 			byte[] rv = new byte[rvlen];
@@ -1154,7 +1288,7 @@ public class Sanguino3GDriver extends SerialDriver
 		for (byte b : data) {
 			slavepb.add8(b);
 		}
-		PacketResponse slavepr = runCommand(slavepb.getPacket());
+		PacketResponse slavepr = runCommand(slavepb);
 		assert slavepr.get8() == data.length; 
 	}
 
@@ -1162,7 +1296,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		if (pr.isOK()) {
 			int rvlen = Math.min(pr.getPayload().length - 1,len);
 			byte[] rv = new byte[rvlen];
@@ -1345,16 +1479,33 @@ public class Sanguino3GDriver extends SerialDriver
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	OutputStream fileCaptureOstream = null;
 	
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		beginFileCapture(new FileOutputStream(new File(path)));
+	}
+
+	/**
+	 * Write commands to the given stream instead of sending them to the
+	 * machine, as with beginFileCapture(String).
+	 */
+	public void beginFileCapture(OutputStream out) {
+		fileCaptureOstream = out;
 	}
 	
 	public void endFileCapture() throws IOException {
 		fileCaptureOstream.close();
 		fileCaptureOstream = null;
 	}
+
+	public boolean replayFileCommand(InputStream in) throws IOException {
+		// Not the pooled builder: sending a replayed command can flush the
+		// planner, which builds its own points with that one.
+		PacketBuilder pb = new PacketBuilder(0);
+		if (!CaptureReader.read(in, pb)) return false;
+		runCommand(pb);
+		return true;
+	}
 	
 	public ResponseCode beginCapture(String filename) {
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.CAPTURE_TO_FILE.getCode());
@@ -1362,13 +1513,13 @@ public class Sanguino3GDriver extends SerialDriver
 			pb.add8(b);
 		}
 		pb.add8(0); // null-terminate string
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		return convertSDCode(pr.get8());
 	}
 
 	public int endCapture() {
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.END_CAPTURE.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		return pr.get32();
 	}
 
@@ -1378,7 +1529,7 @@ public class Sanguino3GDriver extends SerialDriver
 			pb.add8(b);
 		}
 		pb.add8(0); // null-terminate string
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		return convertSDCode(pr.get8());
 	}
 
@@ -1394,7 +1545,7 @@ public class Sanguino3GDriver extends SerialDriver
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.NEXT_FILENAME.getCode());
 			pb.add8(reset?1:0);
 			reset = false;
-			PacketResponse pr = runCommand(pb.getPacket());
+			PacketResponse pr = runCommand(pb);
 			ResponseCode rc = convertSDCode(pr.get8());
 			if (rc != ResponseCode.SUCCESS) {
 				return fileList;
@@ -1530,7 +1681,7 @@ public class Sanguino3GDriver extends SerialDriver
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 			pb.add8((byte) machine.currentTool().getIndex());
 			pb.add8(ToolCommandCode.GET_PLATFORM_SP.getCode());
-			PacketResponse pr = runCommand(pb.getPacket());
+			PacketResponse pr = runCommand(pb);
 			int sp = pr.get16();
 			machine.currentTool().setPlatformTargetTemperature(sp);
 		}		
@@ -1543,7 +1694,7 @@ public class Sanguino3GDriver extends SerialDriver
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 			pb.add8((byte) machine.currentTool().getIndex());
 			pb.add8(ToolCommandCode.GET_SP.getCode());
-			PacketResponse pr = runCommand(pb.getPacket());
+			PacketResponse pr = runCommand(pb);
 			int sp = pr.get16();
 			machine.currentTool().setTargetTemperature(sp);
 		}
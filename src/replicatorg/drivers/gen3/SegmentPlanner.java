@@ -0,0 +1,179 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.drivers.motion.LookaheadPlanner;
+
+/**
+ * Plans speeds over a window of moves on the host, for firmware that runs
+ * each queued point at one fixed step rate.  Moves go through a
+ * LookaheadPlanner, which settles how fast each corner can be taken and
+ * gives every move a trapezoidal speed profile.  Each move then goes out
+ * as a few constant-rate segments: the speed-up, the cruise and the
+ * slow-down, with each ramp cut into a configurable number of pieces.  The
+ * machine no longer has to start every move from the speed the last one
+ * ended on, and a gentle curve is taken without slowing down at every
+ * vertex.
+ *
+ * A segment that would be only a few steps long is folded into the next
+ * one rather than sent on its own; the last segment of a move always goes
+ * out.
+ */
+class SegmentPlanner implements LookaheadPlanner.Sink {
+	/**
+	 * Receives the segments to send, in order.
+	 */
+	interface Output {
+		/**
+		 * Send a segment from (x0,y0,z0) to (x1,y1,z1), in mm.
+		 * @param seconds how long the segment should take
+		 * @param last whether this is the end of a move
+		 * @return false if the segment was too short to send; it is then
+		 * folded into the next one.
+		 */
+		boolean segment(double x0, double y0, double z0,
+				double x1, double y1, double z1, double seconds, boolean last);
+	}
+
+	private final Output output;
+	private final LookaheadPlanner planner;
+	private final int rampPieces;
+
+	// the moves still in the planner, indexed by the tag they were queued
+	// with: start and end points, x y z in turn.
+	private final double[] moves;
+	private int nextTag = 0;
+
+	// where the last segment sent ended, and time owed by segments that
+	// were too short to send.
+	private boolean started = false;
+	private double fromX, fromY, fromZ;
+	private double owedSeconds = 0;
+
+	/**
+	 * @param window the number of moves to look ahead over
+	 * @param accelerations the maximum acceleration of the x, y and z axes,
+	 * in mm/s^2
+	 * @param junctionDeviation see LookaheadPlanner
+	 * @param rampPieces the number of segments to cut each speed ramp into
+	 */
+	SegmentPlanner(Output output, int window, double[] accelerations,
+			double junctionDeviation, int rampPieces) {
+		this.output = output;
+		this.planner = new LookaheadPlanner(this, window, accelerations, junctionDeviation);
+		this.rampPieces = Math.max(1, rampPieces);
+		// a move is stored before the planner retires the oldest one.
+		moves = new double[(planner.getWindowSize() + 1) * 6];
+	}
+
+	/**
+	 * Queue a straight move.
+	 * @param speed the speed to move at, in mm/s
+	 */
+	void queue(double x0, double y0, double z0, double x1, double y1, double z1,
+			double speed) {
+		int tag = nextTag;
+		nextTag = (nextTag + 1) % (moves.length / 6);
+		int i = tag * 6;
+		moves[i] = x0;
+		moves[i + 1] = y0;
+		moves[i + 2] = z0;
+		moves[i + 3] = x1;
+		moves[i + 4] = y1;
+		moves[i + 5] = z1;
+		planner.queue(x1 - x0, y1 - y0, z1 - z0, speed, tag);
+	}
+
+	/**
+	 * Bring the machine to a stop at the end of the moves queued so far,
+	 * sending all of them.  The next move starts from wherever it says it
+	 * does, since the machine is flushed before anything that moves it
+	 * other than a point, such as homing or setting its position.
+	 */
+	void flush() {
+		planner.flush();
+		started = false;
+		owedSeconds = 0;
+	}
+
+	/**
+	 * Drop every move not yet sent.
+	 */
+	void clear() {
+		planner.clear();
+		started = false;
+		owedSeconds = 0;
+	}
+
+	public void planned(int tag, double length, double entry, double cruise,
+			double exit, double acceleration, double seconds) {
+		int i = tag * 6;
+		double x0 = moves[i], y0 = moves[i + 1], z0 = moves[i + 2];
+		double dx = moves[i + 3] - x0;
+		double dy = moves[i + 4] - y0;
+		double dz = moves[i + 5] - z0;
+		if (!started) {
+			fromX = x0;
+			fromY = y0;
+			fromZ = z0;
+			started = true;
+		}
+		if (Double.isInfinite(acceleration)) {
+			send(x0 + dx, y0 + dy, z0 + dz, seconds, true);
+			return;
+		}
+		double accelDist = Math.max(0, (cruise * cruise - entry * entry) / (2.0 * acceleration));
+		double decelDist = Math.max(0, (cruise * cruise - exit * exit) / (2.0 * acceleration));
+		double cruiseDist = Math.max(0, length - accelDist - decelDist);
+		int pieces = (accelDist > 0 ? rampPieces : 0) + (cruiseDist > 0 ? 1 : 0) +
+			(decelDist > 0 ? rampPieces : 0);
+		if (pieces == 0) {
+			send(x0 + dx, y0 + dy, z0 + dz, seconds, true);
+			return;
+		}
+
+		// walk the profile, sending a segment at the end of each piece.
+		int piece = 0;
+		double covered = 0;
+		double v = entry;
+		for (int k = 1; k <= rampPieces && accelDist > 0; k++) {
+			double d = accelDist / rampPieces;
+			double next = Math.sqrt(entry * entry + 2.0 * acceleration * d * k);
+			covered += d;
+			sendPiece(x0, y0, z0, dx, dy, dz, covered / length, d / ((v + next) / 2.0),
+					++piece == pieces);
+			v = next;
+		}
+		if (cruiseDist > 0) {
+			covered += cruiseDist;
+			sendPiece(x0, y0, z0, dx, dy, dz, covered / length, cruiseDist / cruise,
+					++piece == pieces);
+		}
+		v = cruise;
+		for (int k = 1; k <= rampPieces && decelDist > 0; k++) {
+			double d = decelDist / rampPieces;
+			double next = Math.sqrt(Math.max(0, cruise * cruise - 2.0 * acceleration * d * k));
+			covered += d;
+			sendPiece(x0, y0, z0, dx, dy, dz, covered / length, d / ((v + next) / 2.0),
+					++piece == pieces);
+			v = next;
+		}
+	}
+
+	private void sendPiece(double x0, double y0, double z0, double dx, double dy, double dz,
+			double fraction, double seconds, boolean last) {
+		if (last || fraction > 1) fraction = 1;
+		send(x0 + dx * fraction, y0 + dy * fraction, z0 + dz * fraction, seconds, last);
+	}
+
+	private void send(double x, double y, double z, double seconds, boolean last) {
+		owedSeconds += seconds;
+		if (output.segment(fromX, fromY, fromZ, x, y, z, owedSeconds, last)) {
+			fromX = x;
+			fromY = y;
+			fromZ = z;
+			owedSeconds = 0;
+		} else if (last) {
+			// a move too short to take a single step.
+			owedSeconds = 0;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package replicatorg.drivers.motion;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+
+/**
+ * Times moves with trapezoidal speed profiles, limited by the acceleration
+ * of each axis and the speed each corner can be taken at.  Moves go
+ * through a LookaheadPlanner much like the one in the firmware.
+ *
+ * The look-ahead window and junction deviation are taken from the
+ * "estimator.lookahead" and "estimator.junction_deviation" preferences.
+ */
+public class AcceleratedMotionModel extends MotionModel {
+	private final LookaheadPlanner planner;
+
+	/**
+	 * @param accelerations maximum acceleration of each axis in mm/s^2;
+	 * axes without one are assumed to accelerate instantly
+	 */
+	public AcceleratedMotionModel(final LayerTimes layers, Point3d accelerations) {
+		super(layers);
+		int window = Base.preferences.getInt("estimator.lookahead", 32);
+		double deviation = Base.preferences.getDouble("estimator.junction_deviation", 0.05);
+		double[] accel = new double[] { accelerations.x, accelerations.y, accelerations.z };
+		planner = new LookaheadPlanner(new LookaheadPlanner.Sink() {
+			public void planned(int tag, double length, double entry, double cruise,
+					double exit, double acceleration, double seconds) {
+				layers.add(tag, seconds * 1000.0);
+			}
+		}, window, accel, deviation);
+	}
+
+	public void move(double dx, double dy, double dz, double feedrate, int layer) {
+		// the planner works in mm/s
+		planner.queue(dx, dy, dz, feedrate / 60.0, layer);
+	}
+
+	public void stop() {
+		planner.flush();
+	}
+}
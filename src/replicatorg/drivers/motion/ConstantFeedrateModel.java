@@ -0,0 +1,20 @@
+package replicatorg.drivers.motion;
+
+/**
+ * Assumes every move is made at its full feedrate from start to finish.
+ * This is what the estimator has always done; it underestimates jobs made
+ * of many short moves.
+ */
+public class ConstantFeedrateModel extends MotionModel {
+	public ConstantFeedrateModel(LayerTimes layers) {
+		super(layers);
+	}
+
+	public void move(double dx, double dy, double dz, double feedrate, int layer) {
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (length > 0 && feedrate > 0) {
+			// feedrate is mm per minute
+			layers.add(layer, length / feedrate * 60000.0);
+		}
+	}
+}
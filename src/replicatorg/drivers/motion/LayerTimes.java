@@ -0,0 +1,108 @@
+package replicatorg.drivers.motion;
+
+/**
+ * Build time broken down by layer.  A layer starts at the first move in
+ * the XY plane made above the current layer; everything up to the next
+ * such move (travel, Z hops, dwells, tool changes) is charged to it.
+ */
+public class LayerTimes {
+	/**
+	 * A move must be at least this far (in mm) above the current layer to
+	 * start a new one, so that spiral ("vase") prints don't produce a layer
+	 * for every segment.
+	 */
+	public static final double MIN_LAYER_STEP = 0.01;
+
+	private double[] z = new double[64];
+	private double[] millis = new double[64];
+	private int count = 0;
+	private double total = 0.0;
+
+	public int getLayerCount() { return count; }
+
+	/** The height of the given layer, in mm. */
+	public double getZ(int layer) { return z[layer]; }
+
+	/** The time spent on the given layer, in milliseconds. */
+	public double getMillis(int layer) { return millis[layer]; }
+
+	/** The total time over all layers, in milliseconds. */
+	public double getTotal() { return total; }
+
+	/**
+	 * The height of the current layer, or NaN if no layer has been started.
+	 */
+	public double getCurrentZ() {
+		return count == 0 ? Double.NaN : z[count - 1];
+	}
+
+	/**
+	 * Whether a move in the XY plane at height moveZ starts a new layer when
+	 * the current layer is at layerZ (NaN for none).
+	 */
+	public static boolean startsLayer(double layerZ, double moveZ) {
+		return Double.isNaN(layerZ) || moveZ >= layerZ + MIN_LAYER_STEP;
+	}
+
+	/**
+	 * @return the layer a move in the XY plane at the given height belongs
+	 * to, starting a new one if need be.
+	 */
+	public int layerFor(double moveZ) {
+		if (startsLayer(getCurrentZ(), moveZ)) {
+			open(moveZ);
+		}
+		return count - 1;
+	}
+
+	/**
+	 * @return the current layer, starting one at the given height if there
+	 * isn't one yet.
+	 */
+	public int current(double currentZ) {
+		if (count == 0) {
+			open(currentZ);
+		}
+		return count - 1;
+	}
+
+	/**
+	 * Start a new layer at the given height.
+	 */
+	public void open(double layerZ) {
+		if (count == z.length) {
+			double[] grownZ = new double[count * 2];
+			double[] grownMillis = new double[count * 2];
+			System.arraycopy(z, 0, grownZ, 0, count);
+			System.arraycopy(millis, 0, grownMillis, 0, count);
+			z = grownZ;
+			millis = grownMillis;
+		}
+		z[count] = layerZ;
+		millis[count] = 0.0;
+		count++;
+	}
+
+	public void add(int layer, double ms) {
+		millis[layer] += ms;
+		total += ms;
+	}
+
+	/**
+	 * Add the layers of a later part of the same job.  If the later part
+	 * starts on our current layer, the two are merged.
+	 * @return the layer the later part's first layer became
+	 */
+	public int append(LayerTimes next) {
+		int first = (next.count > 0 && count > 0 && next.z[0] == z[count - 1]) ? count - 1 : count;
+		for (int i = 0; i < next.count; i++) {
+			if (i == 0 && count > 0 && next.z[0] == z[count - 1]) {
+				add(count - 1, next.millis[0]);
+				continue;
+			}
+			open(next.z[i]);
+			add(count - 1, next.millis[i]);
+		}
+		return first;
+	}
+}
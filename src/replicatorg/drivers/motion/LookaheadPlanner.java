@@ -0,0 +1,223 @@
+package replicatorg.drivers.motion;
+
+/**
+ * A look-ahead motion planner in the style of the RepRap/grbl firmware
+ * planners.  Straight moves are queued into a fixed-size window.  For each
+ * move we work out how fast the machine can be going as it enters the move,
+ * limited by:
+ * <ul>
+ * <li>the feedrate of this move and the one before it,</li>
+ * <li>the corner between them (the "junction deviation" model), and</li>
+ * <li>the need to be able to brake to a stop by the end of the window.</li>
+ * </ul>
+ * When a move falls out of the window its entry and exit speeds are final,
+ * and it is handed to the Sink along with the time its trapezoidal speed
+ * profile takes.
+ *
+ * Speeds are in mm/s, accelerations in mm/s^2 and times in seconds.  The
+ * planner allocates nothing once constructed.
+ */
+public class LookaheadPlanner {
+	/**
+	 * Receives moves as their speed profiles become final.
+	 */
+	public interface Sink {
+		/**
+		 * @param tag the tag the move was queued with
+		 * @param length the length of the move in mm
+		 * @param entry speed at the start of the move
+		 * @param cruise the highest speed reached during the move
+		 * @param exit speed at the end of the move
+		 * @param acceleration the acceleration used along the move
+		 * @param seconds how long the move takes
+		 */
+		void planned(int tag, double length, double entry, double cruise,
+				double exit, double acceleration, double seconds);
+	}
+
+	// cosines this close to +/-1 are treated as a reversal or a straight line.
+	private static final double STRAIGHT = 0.999999;
+
+	private final Sink sink;
+	private final int size;
+	private final double junctionDeviation;
+	private final double[] axisAcceleration = new double[3];
+
+	// the window, as a ring buffer starting at head.
+	private final double[] length;
+	private final double[] acceleration;
+	private final double[] nominal;
+	private final double[] maxEntry;
+	// entry speed allowed by the moves after this one (the reverse pass)
+	private final double[] reverse;
+	// planned entry speed (the forward pass)
+	private final double[] entry;
+	private final int[] tag;
+	private int head = 0;
+	private int count = 0;
+
+	// the previous move, for the junction calculation.
+	private boolean moving = false;
+	private double lastUx, lastUy, lastUz;
+	private double lastNominal;
+
+	/**
+	 * @param sink where finished moves go
+	 * @param window the number of moves to look ahead over
+	 * @param accelerations maximum acceleration for the x, y and z axes;
+	 * zero or less means the axis is not limited
+	 * @param junctionDeviation the junction deviation in mm; bigger values
+	 * take corners faster
+	 */
+	public LookaheadPlanner(Sink sink, int window, double[] accelerations, double junctionDeviation) {
+		this.sink = sink;
+		this.size = Math.max(2, window);
+		this.junctionDeviation = junctionDeviation;
+		for (int i = 0; i < 3; i++) {
+			axisAcceleration[i] = accelerations[i] > 0 ? accelerations[i] : Double.POSITIVE_INFINITY;
+		}
+		length = new double[size];
+		acceleration = new double[size];
+		nominal = new double[size];
+		maxEntry = new double[size];
+		reverse = new double[size];
+		entry = new double[size];
+		tag = new int[size];
+	}
+
+	public int getWindowSize() { return size; }
+
+	/**
+	 * Queue a straight move.
+	 * @param dx signed x distance in mm
+	 * @param dy signed y distance in mm
+	 * @param dz signed z distance in mm
+	 * @param speed the requested speed in mm/s
+	 * @param moveTag passed back to the sink with this move
+	 */
+	public void queue(double dx, double dy, double dz, double speed, int moveTag) {
+		double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (len == 0 || speed <= 0) return;
+		double ux = dx / len;
+		double uy = dy / len;
+		double uz = dz / len;
+
+		// the acceleration along the move is limited by the slowest axis.
+		double accel = Double.POSITIVE_INFINITY;
+		if (ux != 0) accel = Math.min(accel, axisAcceleration[0] / Math.abs(ux));
+		if (uy != 0) accel = Math.min(accel, axisAcceleration[1] / Math.abs(uy));
+		if (uz != 0) accel = Math.min(accel, axisAcceleration[2] / Math.abs(uz));
+
+		double limit = 0.0;
+		if (moving) {
+			limit = Math.min(speed, lastNominal);
+			double cosTheta = -(ux * lastUx + uy * lastUy + uz * lastUz);
+			if (cosTheta > STRAIGHT) {
+				limit = 0.0;
+			} else if (cosTheta > -STRAIGHT) {
+				double sinHalf = Math.sqrt(0.5 * (1.0 - cosTheta));
+				double junction = Math.sqrt(accel * junctionDeviation * sinHalf / (1.0 - sinHalf));
+				limit = Math.min(limit, junction);
+			}
+		}
+
+		if (count == size) {
+			retire();
+		}
+		int i = (head + count) % size;
+		length[i] = len;
+		acceleration[i] = accel;
+		nominal[i] = speed;
+		maxEntry[i] = limit;
+		reverse[i] = -1;
+		tag[i] = moveTag;
+		if (count == 0) {
+			entry[i] = Math.min(limit, maxEntry(i, 0.0));
+		}
+		count++;
+
+		moving = true;
+		lastUx = ux;
+		lastUy = uy;
+		lastUz = uz;
+		lastNominal = speed;
+
+		replan();
+	}
+
+	/**
+	 * Bring the machine to a stop, handing every queued move to the sink.
+	 */
+	public void flush() {
+		while (count > 0) {
+			retire();
+		}
+		moving = false;
+	}
+
+	/**
+	 * Forget every queued move without handing it on, as when a build is
+	 * stopped.
+	 */
+	public void clear() {
+		count = 0;
+		moving = false;
+	}
+
+	// The fastest we can enter move i and still slow to exit by its end.
+	private double maxEntry(int i, double exit) {
+		return Math.sqrt(exit * exit + 2.0 * acceleration[i] * length[i]);
+	}
+
+	private void replan() {
+		// Reverse pass: the newest move must be able to stop.  Once a move's
+		// limit stops changing, the moves before it won't change either.
+		double exit = 0.0;
+		int first = count - 1;
+		for (int k = count - 1; k >= 0; k--) {
+			int i = (head + k) % size;
+			double e = Math.min(maxEntry[i], maxEntry(i, exit));
+			if (e == reverse[i]) break;
+			reverse[i] = e;
+			exit = e;
+			first = k;
+		}
+		// Forward pass: we can't enter a move faster than the last one let
+		// us accelerate to.  The oldest move's entry speed is already fixed.
+		for (int k = Math.max(1, first); k < count; k++) {
+			int i = (head + k) % size;
+			int p = (head + k - 1) % size;
+			entry[i] = Math.min(reverse[i], maxEntry(p, entry[p]));
+		}
+	}
+
+	private void retire() {
+		int i = head;
+		double v0 = entry[i];
+		double v1 = (count > 1) ? entry[(head + 1) % size] : 0.0;
+		double a = acceleration[i];
+		double len = length[i];
+		double vmax = Math.max(nominal[i], Math.max(v0, v1));
+		double seconds;
+		double cruise;
+		if (Double.isInfinite(a)) {
+			cruise = vmax;
+			seconds = len / vmax;
+		} else {
+			double accelDist = (vmax * vmax - v0 * v0) / (2.0 * a);
+			double decelDist = (vmax * vmax - v1 * v1) / (2.0 * a);
+			if (accelDist + decelDist <= len) {
+				cruise = vmax;
+				seconds = (vmax - v0) / a + (vmax - v1) / a + (len - accelDist - decelDist) / vmax;
+			} else {
+				// never reaches full speed: accelerate to a peak, then brake.
+				cruise = Math.sqrt((2.0 * a * len + v0 * v0 + v1 * v1) / 2.0);
+				cruise = Math.max(cruise, Math.max(v0, v1));
+				seconds = (cruise - v0) / a + (cruise - v1) / a;
+			}
+		}
+		head = (head + 1) % size;
+		count--;
+		sink.planned(tag[i], len, v0, cruise, v1, a, seconds);
+	}
+}
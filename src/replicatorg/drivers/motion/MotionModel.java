@@ -0,0 +1,58 @@
+package replicatorg.drivers.motion;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Works out how long the machine takes to make a sequence of moves, for
+ * build time estimates.  Time is charged to the layer each move was made
+ * on.
+ *
+ * Models may hold on to moves until they know what comes after them, so
+ * times are only complete once stop() has been called at the end of the
+ * job.  Stopping anywhere else changes the times.
+ */
+public abstract class MotionModel {
+	protected final LayerTimes layers;
+
+	protected MotionModel(LayerTimes layers) {
+		this.layers = layers;
+	}
+
+	public LayerTimes getLayers() { return layers; }
+
+	/**
+	 * Add a straight move.
+	 * @param dx signed x distance in mm
+	 * @param dy signed y distance in mm
+	 * @param dz signed z distance in mm
+	 * @param feedrate the feedrate in mm/minute, already limited to the
+	 * machine's maximum feedrates
+	 * @param layer the layer to charge the move to
+	 */
+	public abstract void move(double dx, double dy, double dz, double feedrate, int layer);
+
+	/**
+	 * The machine comes to a stop (for a dwell, say, or the end of the job).
+	 */
+	public void stop() {
+	}
+
+	/**
+	 * Pick a model for the given machine, according to the
+	 * "estimator.motion_model" preference: "constant", "accelerated", or
+	 * "auto" (the default), which uses acceleration if the machine
+	 * description gives it for any axis.
+	 */
+	public static MotionModel forMachine(MachineModel machine, LayerTimes layers) {
+		String name = Base.preferences.get("estimator.motion_model", "auto");
+		Point3d accel = machine.getMaximumAccelerations();
+		boolean hasAcceleration = accel.x > 0 || accel.y > 0 || accel.z > 0;
+		if ("constant".equals(name) || (!"accelerated".equals(name) && !hasAcceleration)) {
+			return new ConstantFeedrateModel(layers);
+		}
+		return new AcceleratedMotionModel(layers, accel);
+	}
+}
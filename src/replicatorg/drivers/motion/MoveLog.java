@@ -0,0 +1,65 @@
+package replicatorg.drivers.motion;
+
+/**
+ * Records moves and stops instead of timing them, so that part of a job can
+ * be worked through on one thread and timed later, in order, through the
+ * model that times the rest of the job.  How long a move takes with
+ * acceleration depends on the moves either side of it, so the parts of a
+ * job can't be timed separately and added up.
+ */
+public class MoveLog extends MotionModel {
+	// dx, dy, dz and feedrate of each move; a stop has a NaN feedrate.
+	private double[] moves = new double[256];
+	private int[] moveLayers = new int[64];
+	private int count = 0;
+
+	public MoveLog(LayerTimes layers) {
+		super(layers);
+	}
+
+	/** The number of moves and stops recorded. */
+	public int getCount() { return count; }
+
+	public void move(double dx, double dy, double dz, double feedrate, int layer) {
+		record(dx, dy, dz, feedrate, layer);
+	}
+
+	public void stop() {
+		record(0, 0, 0, Double.NaN, 0);
+	}
+
+	private void record(double dx, double dy, double dz, double feedrate, int layer) {
+		if (count == moveLayers.length) {
+			double[] grownMoves = new double[moves.length * 2];
+			int[] grownLayers = new int[count * 2];
+			System.arraycopy(moves, 0, grownMoves, 0, moves.length);
+			System.arraycopy(moveLayers, 0, grownLayers, 0, count);
+			moves = grownMoves;
+			moveLayers = grownLayers;
+		}
+		int i = count * 4;
+		moves[i] = dx;
+		moves[i + 1] = dy;
+		moves[i + 2] = dz;
+		moves[i + 3] = feedrate;
+		moveLayers[count] = layer;
+		count++;
+	}
+
+	/**
+	 * Hand everything recorded to another model, in the order it was
+	 * recorded.
+	 * @param firstLayer the layer in the other model's layers that this
+	 * log's layer 0 became
+	 */
+	public void replay(MotionModel to, int firstLayer) {
+		for (int j = 0; j < count; j++) {
+			int i = j * 4;
+			if (Double.isNaN(moves[i + 3])) {
+				to.stop();
+			} else {
+				to.move(moves[i], moves[i + 1], moves[i + 2], moves[i + 3], moveLayers[j] + firstLayer);
+			}
+		}
+	}
+}
@@ -5,11 +5,13 @@ package replicatorg.machine;
 
 /**
  * The MachineState indicates the current high-level status of the machine.
+ * A MachineState never changes once made; a change of state is a new
+ * MachineState, so a state can be shared between threads freely.
  * 
  * @author phooky
  * 
  */
-public class MachineState extends Object implements Cloneable {
+public final class MachineState {
 	/**
 	 * The state of a machine controller abstraction.
 	 */
@@ -45,24 +47,30 @@ public class MachineState extends Object implements Cloneable {
 		FILE
 	};
 	
-	private State state = State.NOT_ATTACHED;
-	private Target target = Target.NONE;
+	private final State state;
+	private final Target target;
 	/** True if the machine is paused. */
-	private boolean paused = false;
+	private final boolean paused;
 	
 	/** Create an unattached machine state with no target. */
 	public MachineState() {
+		this(State.NOT_ATTACHED);
 	}
 	
 	/** Create a machine state with the given state characteristic and no target. */
 	public MachineState(State state) {
-		this.state = state;
+		this(state, Target.NONE);
 	}
 	
 	/** Create a machine state with the given state and target. */
 	public MachineState(State state, Target target) {
+		this(state, target, false);
+	}
+
+	private MachineState(State state, Target target, boolean paused) {
 		this.state = state;
 		this.target = target;
+		this.paused = paused;
 	}
 	
 	public boolean isPaused() {
@@ -85,21 +93,22 @@ public class MachineState extends Object implements Cloneable {
 		return state == State.BUILDING && target == Target.SIMULATOR;
 	}
 
-	public void setPaused(boolean paused) {
-		this.paused = paused;
+	/** This state, paused or not. */
+	public MachineState withPaused(boolean paused) {
+		return new MachineState(state, target, paused);
 	}
 	
-	public void setTarget(Target target) {
-		this.target = target;
+	/** This state with another target. */
+	public MachineState withTarget(Target target) {
+		return new MachineState(state, target, paused);
 	}
 
 	/**
-	 * Set the new machine state.
-	 * This call resets the pause status to false.
+	 * This state moved on to the given state, with the same target.
+	 * The new state is not paused.
 	 */
-	public void setState(State state) {
-		this.state = state;
-		this.paused = false;
+	public MachineState withState(State state) {
+		return new MachineState(state, target, false);
 	}
 	
 	public Target getTarget() { return target; }
@@ -116,15 +125,6 @@ public class MachineState extends Object implements Cloneable {
 			state != State.CONNECTING;
 	}
 	
-	public MachineState clone() {
-		try {
-			return (MachineState)super.clone();
-		} catch (CloneNotSupportedException e) {
-			// Clone is supported.
-			throw new RuntimeException(e);
-		}
-	}
-	
 	public boolean equals(Object o) {
 		if (!(o instanceof MachineState)) return false;
 		MachineState other = (MachineState)o;
@@ -132,4 +132,8 @@ public class MachineState extends Object implements Cloneable {
 			other.target == target &&
 			other.paused == paused;
 	}
+
+	public int hashCode() {
+		return (state.ordinal() * 31 + target.ordinal()) * 2 + (paused ? 1 : 0);
+	}
 }
@@ -0,0 +1,138 @@
+package replicatorg.machine;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import replicatorg.app.Base;
+
+/**
+ * Hands build progress to MachineListeners without holding up the
+ * machine thread.  The machine thread reports progress after every
+ * command; only one report per sampling interval becomes an event, and
+ * events are delivered on a pool thread.  Each listener keeps only the
+ * latest event it hasn't seen yet, so a listener that falls behind skips
+ * straight to the newest progress instead of working through a backlog,
+ * and never slows down the machine thread or the other listeners.
+ * Call flush() before sending out a state change, so that no progress
+ * made before the change reaches a listener after it.
+ */
+public class ProgressPublisher {
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Machine progress");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * One listener, and the latest event waiting for it.  At most one
+	 * delivery to a listener is running or queued at a time; deliveries
+	 * are made holding the slot's lock.
+	 */
+	private static class Slot implements Runnable {
+		final MachineListener listener;
+		final AtomicReference<MachineProgressEvent> pending = new AtomicReference<MachineProgressEvent>();
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		Slot(MachineListener listener) {
+			this.listener = listener;
+		}
+
+		void offer(MachineProgressEvent event) {
+			pending.set(event);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				pool.execute(this);
+			}
+		}
+
+		/** Deliver the waiting event, if there is one, on this thread. */
+		synchronized void deliver() {
+			try {
+				MachineProgressEvent event = pending.getAndSet(null);
+				if (event != null) listener.machineProgress(event);
+			} catch (RuntimeException re) {
+				Base.logger.warning("Progress listener failed: " + re);
+			}
+		}
+
+		public void run() {
+			try {
+				deliver();
+			} finally {
+				scheduled.set(false);
+				// something may have come in while we were busy.
+				if (pending.get() != null) schedule();
+			}
+		}
+	}
+
+	private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<Slot>();
+	private final long intervalNanos;
+	private long lastSample;
+
+	/**
+	 * A publisher sampling at the rate given by the "ui.progress_interval_ms"
+	 * preference; 100ms by default.
+	 */
+	public ProgressPublisher() {
+		this(Base.preferences.getInt("ui.progress_interval_ms", 100));
+	}
+
+	/**
+	 * @param intervalMillis the shortest time between events
+	 */
+	public ProgressPublisher(long intervalMillis) {
+		intervalNanos = Math.max(0, intervalMillis) * 1000000L;
+		lastSample = System.nanoTime() - intervalNanos;
+	}
+
+	public void addListener(MachineListener listener) {
+		slots.add(new Slot(listener));
+	}
+
+	public void removeListener(MachineListener listener) {
+		for (Slot s : slots) {
+			if (s.listener == listener) slots.remove(s);
+		}
+	}
+
+	/**
+	 * Report progress.  Cheap enough to call after every command: an event
+	 * is only made if the sampling interval has passed, or if this is the
+	 * last line.  Only the thread running the build may call this.
+	 */
+	public void update(double elapsed, double estimated, int lines, int totalLines) {
+		long now = System.nanoTime();
+		if (lines != totalLines && now - lastSample < intervalNanos) return;
+		lastSample = now;
+		publish(new MachineProgressEvent(elapsed, estimated, lines, totalLines));
+	}
+
+	/**
+	 * Send an event to every listener, without sampling.
+	 */
+	public void publish(MachineProgressEvent event) {
+		for (Slot s : slots) {
+			s.offer(event);
+		}
+	}
+
+	/**
+	 * Deliver every waiting event on the calling thread, and wait for any
+	 * delivery already under way to finish.
+	 */
+	public void flush() {
+		for (Slot s : slots) {
+			s.deliver();
+		}
+	}
+}
@@ -46,6 +46,7 @@ public class MachineModel
 
 	//feedrate information
 	private Point3d maximumFeedrates;
+	private Point3d maximumAccelerations;
 	private Point3d stepsPerMM;
 	
 	//our drive status
@@ -71,6 +72,7 @@ public class MachineModel
 		minimum = new Point3d();
 		maximum = new Point3d();
 		maximumFeedrates = new Point3d();
+		maximumAccelerations = new Point3d();
 		stepsPerMM = new Point3d(1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool = new ToolModel();
@@ -115,24 +117,33 @@ public class MachineModel
 					 	maxFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "maxfeedrate"));
 					 	scale = Double.parseDouble(XML.getAttributeValue(axis, "scale"));
 					} catch (Exception e) {}
+
+					//acceleration is optional, in mm/s^2; 0 means unknown.
+				 	double acceleration = 0.0;
+					try {
+					 	acceleration = Double.parseDouble(XML.getAttributeValue(axis, "acceleration"));
+					} catch (Exception e) {}
 					
 					//create the right variables.
 					if (id.toLowerCase().equals("x"))
 					{
 						maximum.x = length;
 						maximumFeedrates.x = maxFeedrate;
+						maximumAccelerations.x = acceleration;
 						stepsPerMM.x = scale;
 					}
 					else if (id.toLowerCase().equals("y"))
 					{
 						maximum.y = length;
 						maximumFeedrates.y = maxFeedrate;
+						maximumAccelerations.y = acceleration;
 						stepsPerMM.y = scale;
 					}
 					else if (id.toLowerCase().equals("z"))
 					{
 						maximum.z = length;
 						maximumFeedrates.z = maxFeedrate;
+						maximumAccelerations.z = acceleration;
 						stepsPerMM.z = scale;
 					}
 
@@ -355,4 +366,12 @@ public class MachineModel
     return maximumFeedrates;
   }
 
+  /**
+   * Maximum acceleration of each axis in mm/s^2, or 0 where the machine
+   * description doesn't say.
+   */
+  public Point3d getMaximumAccelerations() {
+    return maximumAccelerations;
+  }
+
 }
@@ -52,6 +52,14 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 
 	public int scrollPosition;
 
+	/**
+	 * True if the file was too large to load into the editor.  Large files
+	 * are read-only, and are built straight from disk.
+	 */
+	private boolean large = false;
+
+	public boolean isLarge() { return large; }
+
 	public BuildCode(String name, File file) {
 		this.name = name;
 		this.file = file;
@@ -69,12 +77,21 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		if (file == null) {
 			program = "";
 			setModified(true);
+		} else if (file.length() > maxEditableBytes()) {
+			large = true;
+			program = "(" + file.getName() + " is too large to edit here.  It will be read directly from disk.)\n";
+			setModified(false);
 		} else {
+			large = false;
 			program = Base.loadFile(file);
 			setModified(false);
 		}
 	}
 
+	private static long maxEditableBytes() {
+		return Base.preferences.getInt("editor.max_file_size_mb", 32) * 1024L * 1024L;
+	}
+
 	/**
 	 * Save this piece of code, regardless of whether the modified flag is set
 	 * or not.
@@ -83,15 +100,30 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		// TODO re-enable history
 		// history.record(s, SketchHistory.SAVE);
 
+		// the program of a large file is only a placeholder; the file on
+		// disk is already the whole of it.
+		if (large) return;
 		Base.saveFile(program, file);
 		setModified(false);
 	}
 
+	/**
+	 * Large files can't be edited, so they're never modified.
+	 */
+	public void setModified(boolean modified) {
+		if (large && modified) return;
+		super.setModified(modified);
+	}
+
 	/**
 	 * Save this file to another location, used by Sketch.saveAs()
 	 */
 	public void saveAs(File newFile) throws IOException {
-		Base.saveFile(program, newFile);
+		if (large) {
+			Base.copyFile(file, newFile);
+		} else {
+			Base.saveFile(program, newFile);
+		}
 		file = newFile;
 		name = file.getName();
 		// we're still truncating the suffix, for now.
@@ -0,0 +1,257 @@
+package replicatorg.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.app.ParsedCommand;
+
+/**
+ * A gcode file on disk, along with a cache of its parsed form.  The cache
+ * lives next to the gcode file (foo.gcode -> foo.gcode.cache) and is keyed
+ * by the MD5 hash of the gcode, so an edited file is simply recompiled the
+ * next time it is used.
+ *
+ * The cache is checked (and if necessary rebuilt) the first time it's
+ * needed, so constructing one of these is cheap and can be done on the UI
+ * thread.
+ */
+public class CachedGCodeSource implements ParsedGCodeSource, Closeable {
+	private static final int MAGIC = 0x52474350; // "RGCP"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".cache";
+
+	private final File file;
+	private final File cacheFile;
+
+	private MappedFileSource text = null;
+
+	private boolean validated = false;
+	private boolean cacheUsable = false;
+	private int lineCount = -1;
+
+	public CachedGCodeSource(File file) {
+		this.file = file;
+		this.cacheFile = new File(file.getPath() + SUFFIX);
+	}
+
+	public File getFile() { return file; }
+
+	/**
+	 * The text of the gcode file, mapped into memory on first use.
+	 */
+	private synchronized MappedFileSource getText() throws IOException {
+		if (text == null) {
+			text = new MappedFileSource(file);
+		}
+		return text;
+	}
+
+	/**
+	 * Let go of the mapped text, if it was mapped.  It's mapped again if
+	 * the source is used afterwards.
+	 */
+	public synchronized void close() {
+		if (text != null) {
+			text.close();
+			text = null;
+		}
+	}
+
+	public Iterator<String> iterator() {
+		try {
+			return getText().iterator();
+		} catch (IOException ioe) {
+			Base.logger.severe("Could not open " + file + ": " + ioe.getMessage());
+			return Arrays.asList(new String[0]).iterator();
+		}
+	}
+
+	public int getLineCount() {
+		validate();
+		return lineCount;
+	}
+
+	public CloseableIterator<ParsedCommand> parsedIterator() {
+		validate();
+		if (cacheUsable) {
+			try {
+				return new CacheIterator();
+			} catch (IOException ioe) {
+				Base.logger.warning("Could not read gcode cache " + cacheFile + ": " + ioe.getMessage());
+			}
+		}
+		// No cache; parse the text as we go.  The text is mapped, so there
+		// is nothing to close.
+		final Iterator<String> lines = iterator();
+		final GCodeParser parser = new GCodeParser();
+		return new CloseableIterator<ParsedCommand>() {
+			private boolean closed = false;
+			public boolean hasNext() { return !closed && lines.hasNext(); }
+			public ParsedCommand next() {
+				if (closed) throw new NoSuchElementException();
+				parser.parse(lines.next());
+				return parser.getParsedCommand();
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+			public void close() { closed = true; }
+		};
+	}
+
+	/**
+	 * Make sure the cache on disk matches the current contents of the gcode
+	 * file, rebuilding it if it doesn't.
+	 */
+	private synchronized void validate() {
+		if (validated) return;
+		validated = true;
+		try {
+			byte[] hash = hashFile(file);
+			if (readHeader(hash)) {
+				cacheUsable = true;
+				return;
+			}
+			Base.logger.info("Compiling " + file.getName() + "...");
+			compile(hash);
+			cacheUsable = true;
+		} catch (IOException ioe) {
+			Base.logger.warning("Could not build gcode cache " + cacheFile + ": " + ioe.getMessage());
+			lineCount = countLines();
+		}
+	}
+
+	private boolean readHeader(byte[] hash) {
+		if (!cacheFile.exists()) return false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+				byte[] cachedHash = new byte[hash.length];
+				in.readFully(cachedHash);
+				if (!Arrays.equals(hash, cachedHash)) return false;
+				lineCount = in.readInt();
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	private void compile(byte[] hash) throws IOException {
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+		int count = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(hash);
+			out.writeInt(0); // patched below, once we know the line count
+			GCodeParser parser = new GCodeParser();
+			for (Iterator<String> i = iterator(); i.hasNext();) {
+				parser.parse(i.next());
+				parser.getParsedCommand().write(out);
+				count++;
+			}
+		} finally {
+			out.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+		try {
+			raf.seek(8 + hash.length);
+			raf.writeInt(count);
+		} finally {
+			raf.close();
+		}
+		cacheFile.delete();
+		if (!tmpFile.renameTo(cacheFile)) {
+			tmpFile.delete();
+			throw new IOException("could not rename " + tmpFile);
+		}
+		lineCount = count;
+	}
+
+	private int countLines() {
+		try {
+			return getText().getLineCount();
+		} catch (IOException ioe) {
+			return 0;
+		}
+	}
+
+	private static byte[] hashFile(File f) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException("MD5 is not available");
+		}
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[65536];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				digest.update(buf, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Streams records out of the cache file.  The file is closed at the end,
+	 * or when the iterator is closed.
+	 */
+	private class CacheIterator implements CloseableIterator<ParsedCommand> {
+		private final DataInputStream in;
+		private int remaining;
+
+		CacheIterator() throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 65536));
+			in.skipBytes(8 + 16);
+			remaining = in.readInt();
+		}
+
+		public boolean hasNext() { return remaining > 0; }
+
+		public ParsedCommand next() {
+			if (remaining <= 0) throw new NoSuchElementException();
+			try {
+				ParsedCommand cmd = ParsedCommand.read(in);
+				if (--remaining == 0) close();
+				return cmd;
+			} catch (IOException ioe) {
+				close();
+				throw new RuntimeException("Error reading gcode cache " + cacheFile, ioe);
+			}
+		}
+
+		public void close() {
+			remaining = 0;
+			try {
+				in.close();
+			} catch (IOException ioe) {
+				Base.logger.fine("Could not close gcode cache " + cacheFile + ": " + ioe.getMessage());
+			}
+		}
+
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+}
@@ -0,0 +1,17 @@
+package replicatorg.model;
+
+import java.util.Iterator;
+
+/**
+ * An iterator that holds on to something, such as an open file, until it
+ * reaches the end.  A caller that stops iterating early should close it.
+ */
+public interface CloseableIterator<T> extends Iterator<T> {
+
+	/**
+	 * Let go of whatever the iterator holds.  It has no more elements
+	 * afterwards.  Closing it again does nothing.
+	 */
+	void close();
+
+}
@@ -6,6 +6,7 @@ package replicatorg.model;
 import java.util.Iterator;
 
 import replicatorg.app.syntax.JEditTextArea;
+import replicatorg.app.syntax.SyntaxDocument;
 
 /**
  * @author phooky
@@ -20,10 +21,17 @@ public class JEditTextAreaSource implements GCodeSource {
 	}
 	
 	public Iterator<String> iterator() {
+		return iterator(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns an iterator over the lines [from, to).
+	 */
+	public Iterator<String> iterator(final int from, final int to) {
 		final JEditTextArea ta = this.textarea;
 		return new Iterator<String>() {
-			int idx = 0;
-			public boolean hasNext() { return idx < ta.getLineCount(); }
+			int idx = from;
+			public boolean hasNext() { return idx < to && idx < ta.getLineCount(); }
 			public String next() { String s = ta.getLineText(idx); idx = idx + 1; return s; }
 			public void remove() { throw new UnsupportedOperationException(); }
 		};
@@ -33,5 +41,12 @@ public class JEditTextAreaSource implements GCodeSource {
 		return textarea.getLineCount();
 	}
 
+	/**
+	 * The document being edited, so that changes to it can be tracked.
+	 */
+	public SyntaxDocument getDocument() {
+		return textarea.getDocument();
+	}
+
 	
 }
@@ -0,0 +1,222 @@
+package replicatorg.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A GCodeSource that reads lines straight out of a memory-mapped file, so
+ * that a file of any size can be built or estimated without ever holding
+ * its text in memory.  Lines are decoded one at a time as they're iterated.
+ *
+ * The line count and an index for random access are built lazily, the
+ * first time they're asked for.  The index only records the offset of
+ * every INDEX_STRIDE'th line, so it stays small even for huge files.
+ *
+ * Bytes are mapped straight to chars (ISO-8859-1); gcode is plain ASCII.
+ * Line terminators are handled like BufferedReader.readLine().
+ *
+ * The mappings are held until the source is closed.  Java has no way to
+ * unmap a file, so closing drops them and leaves the rest to the garbage
+ * collector.  Reading a closed source, even through an iterator made
+ * before it was closed, throws IllegalStateException, so that a job can't
+ * quietly end early.
+ */
+public class MappedFileSource implements GCodeSource, Closeable {
+	// Files are mapped in regions of this size, so files over 2GB still work.
+	private static final int REGION_SHIFT = 28;
+	private static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+
+	private static final int INDEX_STRIDE = 1024;
+
+	private final File file;
+	private final long length;
+	// null once the source is closed
+	private volatile MappedByteBuffer[] regions;
+
+	// offset of lines 0, INDEX_STRIDE, 2*INDEX_STRIDE, ...
+	private long[] index = null;
+	private int lineCount = -1;
+
+	public MappedFileSource(File file) throws IOException {
+		this.file = file;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			length = channel.size();
+			int regionCount = (int)((length + REGION_MASK) >>> REGION_SHIFT);
+			MappedByteBuffer[] mapped = new MappedByteBuffer[regionCount];
+			for (int i = 0; i < regionCount; i++) {
+				long start = (long)i << REGION_SHIFT;
+				long size = Math.min(length - start, 1L << REGION_SHIFT);
+				mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+			regions = mapped;
+		} finally {
+			// The mappings remain valid after the channel is closed.
+			in.close();
+		}
+	}
+
+	public File getFile() { return file; }
+
+	/**
+	 * Let go of the file's mappings.  The source can't be read afterwards.
+	 */
+	public void close() {
+		regions = null;
+	}
+
+	private MappedByteBuffer[] getRegions() {
+		MappedByteBuffer[] mapped = regions;
+		if (mapped == null) throw new IllegalStateException(file.getName() + " has been closed.");
+		return mapped;
+	}
+
+	public Iterator<String> iterator() {
+		return new LineIterator(new Cursor(0), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns an iterator over the lines [from, to).
+	 */
+	public Iterator<String> iterator(int from, int to) {
+		Cursor cursor = seek(from);
+		return new LineIterator(cursor, to - from);
+	}
+
+	public synchronized int getLineCount() {
+		buildIndex();
+		return lineCount;
+	}
+
+	/**
+	 * Returns the text of the given line, or null if the file is shorter.
+	 */
+	public String getLine(int line) {
+		return seek(line).readLine();
+	}
+
+	private Cursor seek(int line) {
+		synchronized (this) {
+			buildIndex();
+		}
+		if (line >= lineCount) {
+			return new Cursor(length);
+		}
+		Cursor cursor = new Cursor(index[line / INDEX_STRIDE]);
+		for (int i = line % INDEX_STRIDE; i > 0; i--) {
+			cursor.skipLine();
+		}
+		return cursor;
+	}
+
+	private void buildIndex() {
+		if (index != null) return;
+		long[] offsets = new long[16];
+		int count = 0;
+		Cursor cursor = new Cursor(0);
+		while (cursor.pos < length) {
+			if (count % INDEX_STRIDE == 0) {
+				int slot = count / INDEX_STRIDE;
+				if (slot == offsets.length) {
+					long[] grown = new long[offsets.length * 2];
+					System.arraycopy(offsets, 0, grown, 0, offsets.length);
+					offsets = grown;
+				}
+				offsets[slot] = cursor.pos;
+			}
+			cursor.skipLine();
+			count++;
+		}
+		lineCount = count;
+		index = offsets;
+	}
+
+	/**
+	 * A read position in the file.  Cursors only use absolute gets on the
+	 * mapped buffers, so any number of them can be used concurrently.
+	 */
+	private class Cursor {
+		long pos;
+		private char[] chars = new char[128];
+
+		Cursor(long pos) {
+			this.pos = pos;
+		}
+
+		private int read() {
+			MappedByteBuffer[] mapped = getRegions();
+			if (pos >= length) return -1;
+			MappedByteBuffer region = mapped[(int)(pos >>> REGION_SHIFT)];
+			int b = region.get((int)(pos & REGION_MASK)) & 0xff;
+			pos++;
+			return b;
+		}
+
+		// Swallow the \n of a \r\n pair.
+		private void endLine(int c) {
+			if (c == '\r' && pos < length) {
+				MappedByteBuffer[] mapped = getRegions();
+				MappedByteBuffer region = mapped[(int)(pos >>> REGION_SHIFT)];
+				if (region.get((int)(pos & REGION_MASK)) == '\n') pos++;
+			}
+		}
+
+		String readLine() {
+			getRegions();
+			if (pos >= length) return null;
+			int len = 0;
+			int c;
+			while ((c = read()) != -1 && c != '\n' && c != '\r') {
+				if (len == chars.length) {
+					char[] grown = new char[chars.length * 2];
+					System.arraycopy(chars, 0, grown, 0, len);
+					chars = grown;
+				}
+				chars[len++] = (char)c;
+			}
+			endLine(c);
+			return new String(chars, 0, len);
+		}
+
+		void skipLine() {
+			int c;
+			while ((c = read()) != -1 && c != '\n' && c != '\r') {
+			}
+			endLine(c);
+		}
+	}
+
+	private static class LineIterator implements Iterator<String> {
+		private final Cursor cursor;
+		private int remaining;
+		private String next;
+
+		LineIterator(Cursor cursor, int count) {
+			this.cursor = cursor;
+			this.remaining = count;
+			advance();
+		}
+
+		private void advance() {
+			next = (remaining-- > 0) ? cursor.readLine() : null;
+		}
+
+		public boolean hasNext() { return next != null; }
+
+		public String next() {
+			if (next == null) throw new NoSuchElementException();
+			String line = next;
+			advance();
+			return line;
+		}
+
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+}
@@ -0,0 +1,22 @@
+package replicatorg.model;
+
+import replicatorg.app.ParsedCommand;
+
+/**
+ * A GCodeSource that can also hand out its lines already parsed, so that
+ * consumers can skip the text scan.  Both iterators walk the same lines in
+ * the same order.
+ *
+ * The parsed iterator may hold the source open until it reaches the end,
+ * so a caller that stops early must close it.
+ */
+public interface ParsedGCodeSource extends GCodeSource {
+
+	/**
+	 * Returns an iterator starting at the beginning of this source's gcode.
+	 * @return an iterator over the parsed gcode, to be closed if it isn't
+	 * run to the end
+	 */
+	CloseableIterator<ParsedCommand> parsedIterator();
+
+}
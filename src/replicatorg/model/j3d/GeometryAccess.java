@@ -0,0 +1,33 @@
+package replicatorg.model.j3d;
+
+import javax.media.j3d.GeometryArray;
+import javax.vecmath.Point3d;
+
+/**
+ * Reads the vertices of a GeometryArray whether its data is copied into it or
+ * held by reference.  Java3D won't hand out single vertices of geometry built
+ * by reference, as binary STL files are loaded, so for those the data is read
+ * from the array it refers to.
+ */
+public class GeometryAccess {
+	private static boolean isByReference(GeometryArray ga) {
+		return (ga.getVertexFormat() & GeometryArray.BY_REFERENCE) != 0;
+	}
+
+	public static void getCoordinate(GeometryArray ga, int index, Point3d p) {
+		if (!isByReference(ga)) {
+			ga.getCoordinate(index, p);
+			return;
+		}
+		float[] coords = ga.getCoordRefFloat();
+		p.set(coords[index*3], coords[index*3+1], coords[index*3+2]);
+	}
+
+	public static void getNormal(GeometryArray ga, int index, float[] normal) {
+		if (!isByReference(ga)) {
+			ga.getNormal(index, normal);
+			return;
+		}
+		System.arraycopy(ga.getNormalRefFloat(), index*3, normal, 0, 3);
+	}
+}
@@ -33,25 +33,21 @@ public class StlAsciiWriter extends ModelWriter {
 		w.printf("solid %s\n", name);
 		int faces = g.getVertexCount()/3;
 		float[] norm = new float[3];
-		double[] coord = new double[3];
+		Point3d face3d = new Point3d();
 		for (int faceIdx = 0; faceIdx < faces; faceIdx++) {
-			g.getNormal(faceIdx*3, norm);
+			GeometryAccess.getNormal(g, faceIdx*3, norm);
 			Vector3f norm3f = new Vector3f(norm);
 			transform.transform(norm3f);
 			norm3f.normalize();
 			w.printf("  facet normal %e %e %e\n", norm3f.x,norm3f.y,norm3f.z);
 			w.printf("    outer loop\n");
-			Point3d face3d;
-			g.getCoordinate(faceIdx*3, coord);
-			face3d = new Point3d(coord);
+			GeometryAccess.getCoordinate(g, faceIdx*3, face3d);
 			transform.transform(face3d);
 			w.printf("      vertex %e %e %e\n", face3d.x,face3d.y,face3d.z);
-			g.getCoordinate((faceIdx*3)+1, coord);
-			face3d = new Point3d(coord);
+			GeometryAccess.getCoordinate(g, (faceIdx*3)+1, face3d);
 			transform.transform(face3d);
 			w.printf("      vertex %e %e %e\n", face3d.x,face3d.y,face3d.z);
-			g.getCoordinate((faceIdx*3)+2, coord);
-			face3d = new Point3d(coord);
+			GeometryAccess.getCoordinate(g, (faceIdx*3)+2, face3d);
 			transform.transform(face3d);
 			w.printf("      vertex %e %e %e\n", face3d.x,face3d.y,face3d.z);
 			w.printf("    endloop\n");
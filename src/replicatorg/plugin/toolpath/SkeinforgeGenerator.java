@@ -216,9 +216,40 @@ public class SkeinforgeGenerator extends ToolpathGenerator {
 		}
 	}
 	
+	/**
+	 * Set up without asking, as when running without a display.
+	 * @param profile the path of a profile, or the name of an installed one
+	 * @return false if there's no such profile.
+	 */
+	public boolean configure(String profile, boolean useRaft) {
+		this.useRaft = useRaft;
+		if (new File(profile).isDirectory()) {
+			this.profile = profile;
+			return true;
+		}
+		for (Profile p : getProfiles()) {
+			if (p.toString().equals(profile)) {
+				this.profile = p.getFullPath();
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public BuildCode generateToolpath() {
 		String path = model.getPath();
-		
+		File gcode = generateToolpath(path);
+		if (gcode == null) return null;
+		int lastIdx = path.lastIndexOf('.'); 
+		String root = (lastIdx >= 0)?path.substring(0,lastIdx):path;
+		return new BuildCode(root,gcode);
+	}
+
+	/**
+	 * Slice the model at the given path.
+	 * @return the gcode file written, or null if skeinforge failed.
+	 */
+	public File generateToolpath(String path) {
 		List<String> arguments = new LinkedList<String>();
 		// The -u makes python output unbuffered.  Oh joyous day.
 		String[] baseArguments = { PythonUtils.getPythonPath(),"-u","skeinforge.py","-p",profile};
@@ -269,7 +300,7 @@ public class SkeinforgeGenerator extends ToolpathGenerator {
 		}
 		int lastIdx = path.lastIndexOf('.'); 
 		String root = (lastIdx >= 0)?path.substring(0,lastIdx):path;
-		return new BuildCode(root,new File(root+".gcode"));
+		return new File(root+".gcode");
 	}
 
 	class ListDivider {};